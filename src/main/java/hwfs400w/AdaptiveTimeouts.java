@@ -0,0 +1,341 @@
+/* This file is licensed under Creative Commons License CC-CC0 1.0 (http://creativecommons.org/publicdomain/zero/1.0/).
+ *
+ * Created 2026-10-18 by bastel.
+ */
+
+package hwfs400w;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Learns timeouts from observed durations.
+ * <p>
+ * Durations are recorded per device ({@code host:port}), resolution, preview / no preview and {@link Phase}.
+ * For each key a streaming estimate of the {@link #quantile} is kept (P&#178; algorithm, constant memory),
+ * the timeout is that estimate plus a margin, but never more than the static timeout configured in {@link S400WSettings}.
+ * Until {@link #minSamples} durations have been observed the static timeout is used.
+ * <p>
+ * Timeouts are recorded with the static timeout, so repeated timeouts let the learned value grow back to it.
+ * <p>
+ * If a file is set, the model is loaded from and saved to it, see {@link #getDefault()}.
+ * Saving happens in the background, at most every 30 seconds, and on {@link #save()}.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author bastel
+ * @since 2026-10-18
+ */
+public class AdaptiveTimeouts
+{
+	private final static Logger log = Logger.getLogger(AdaptiveTimeouts.class.getName());
+
+	/** Prefix for properties, usually &lt;package-name&gt;.&lt;class-name&gt; of {@link S400W} class. */
+	private final static String PROPERTY_KEY = S400W.class.getName() + ".timeout.adaptive";
+
+	/** Minimum time between two saves, to not write the file for every response. */
+	private final static long SAVE_INTERVAL = 30000;
+
+	/** Timed phases, each with its own model. */
+	public enum Phase
+	{
+		/** Socket connect, see {@link S400WSettings#timeoutConnect}. */
+		CONNECT,
+
+		/** Status, version and battery responses, see {@link S400WSettings#timeoutStandard}. */
+		STANDARD,
+
+		/** Response to setting the resolution, see {@link S400WSettings#timeoutStandard}. */
+		RESOLUTION,
+
+		/** Response to starting a scan, see {@link S400WSettings#timeoutStandard}. */
+		SCAN_GO,
+
+		/** Response to starting the cleaning, see {@link S400WSettings#timeoutStandard}. */
+		CLEAN_GO,
+
+		/** Response to starting the calibration, see {@link S400WSettings#timeoutStandard}. */
+		CALIBRATE_GO,
+
+		/** Cleaning, see {@link S400WSettings#timeoutClean}. */
+		CLEAN,
+
+		/** Calibration, see {@link S400WSettings#timeoutCalibrate}. */
+		CALIBRATE,
+
+		/** Longest wait for a block of scan data, see {@link S400WSettings#timeoutData}. */
+		DATA,
+
+		/** Wait for the jpeg size, see {@link S400WSettings#timeoutSize} and {@link S400WSettings#timeoutSkipped}. */
+		SIZE
+	}
+
+	private static AdaptiveTimeouts DEFAULT;
+
+	/** Estimated quantile, default: 0.99. */
+	public final double quantile;
+
+	/** Relative margin added to the estimate, default: 0.5. */
+	public final double margin;
+
+	/** Minimal margin added to the estimate, default: 1 second. */
+	public final Duration minMargin;
+
+	/** Number of samples necessary before the estimate is used, default: 20. */
+	public final int minSamples;
+
+	private final Path _file;
+	private final Map<String, Estimator> _models = new HashMap<>();
+	private final Object _saveLock = new Object();
+	private boolean _dirty;
+	private long _saved;
+
+
+	/**
+	 * Creates a new model.
+	 *
+	 * @param file file to load and save the model, or {@code null}
+	 */
+	public AdaptiveTimeouts(Path file, double quantile, double margin, Duration minMargin, int minSamples)
+	{
+		if ( quantile<=0 || quantile>=1 ) throw new IllegalArgumentException("quantile=" + quantile);
+		this.quantile = quantile;
+		this.margin = margin;
+		this.minMargin = minMargin;
+		this.minSamples = Math.max(5, minSamples);
+		_file = file;
+		if ( file!=null && Files.exists(file) ) load();
+	}
+
+
+	/**
+	 * Returns the default model configured by system properties, or {@code null} if adaptive timeouts aren't enabled:
+	 * <ul>
+	 * <li>{@code hwfs400w.S400W.timeout.adaptive.file}: file to persist the model, enables adaptive timeouts, default: none
+	 * <li>{@code hwfs400w.S400W.timeout.adaptive.quantile}, {@code .margin}, {@code .minMargin} (seconds), {@code .samples}
+	 * </ul>
+	 * The model is saved on shutdown.
+	 */
+	public static synchronized AdaptiveTimeouts getDefault()
+	{
+		final String file = System.getProperty(PROPERTY_KEY + ".file", "");
+		if ( DEFAULT==null && !file.isEmpty() ) {
+			DEFAULT = new AdaptiveTimeouts(
+				Paths.get(file),
+				Double.parseDouble(System.getProperty(PROPERTY_KEY + ".quantile", "0.99")),
+				Double.parseDouble(System.getProperty(PROPERTY_KEY + ".margin", "0.5")),
+				Duration.parse("PT" + System.getProperty(PROPERTY_KEY + ".minMargin", "1") + "S"),
+				Integer.getInteger(PROPERTY_KEY + ".samples", 20));
+			Runtime.getRuntime().addShutdownHook(new Thread(DEFAULT::save, "s400w-timeouts"));
+			log.info("adaptive timeouts in " + file);
+		}
+		return DEFAULT;
+	}
+
+
+	/**
+	 * Returns the timeout to use.
+	 *
+	 * @param device {@code host:port}
+	 * @param dpi resolution, {@code 0} if not applicable
+	 * @param preview {@code true} if a preview is / was requested
+	 * @param phase the phase
+	 * @param fallback static timeout, used until enough samples exist and as upper limit
+	 */
+	public synchronized Duration timeout(String device, int dpi, boolean preview, Phase phase, Duration fallback)
+	{
+		Estimator e = _models.get(key(device, dpi, preview, phase));
+		if ( e==null || e.count<minSamples ) return fallback;
+		long estimate = (long)Math.ceil(e.quantile());
+		long millis = estimate + Math.max(minMargin.toMillis(), (long)(estimate * margin));
+		return millis<fallback.toMillis() ? Duration.ofMillis(millis) : fallback;
+	}
+
+
+	/**
+	 * Records an observed duration, a timeout is recorded with the static timeout.
+	 * A due save runs on its own thread, not on the caller's.
+	 */
+	public void record(String device, int dpi, boolean preview, Phase phase, Duration observed)
+	{
+		final boolean save;
+		synchronized ( this ) {
+			_models.computeIfAbsent(key(device, dpi, preview, phase), k -> new Estimator(quantile)).add(observed.toMillis());
+			_dirty = true;
+			final long now = System.currentTimeMillis();
+			save = _file!=null && now - _saved>SAVE_INTERVAL;
+			if ( save ) _saved = now;
+		}
+		if ( save ) Threads.newThread("s400w-timeouts-save", this::save).start();
+	}
+
+
+	/**
+	 * Saves the model if it has changed and a file is set.
+	 * The file is written without holding the model's lock, {@link #record} isn't blocked meanwhile.
+	 */
+	public void save()
+	{
+		if ( _file==null ) return;
+		synchronized ( _saveLock ) {
+			final Properties props = new Properties();
+			synchronized ( this ) {
+				if ( !_dirty ) return;
+				_models.forEach((k, e) -> props.setProperty(k, e.toString()));
+				_dirty = false;
+				_saved = System.currentTimeMillis();
+			}
+			try {
+				Path parent = _file.toAbsolutePath().getParent();
+				if ( parent!=null ) Files.createDirectories(parent);
+				Path tmp = Files.createTempFile(parent, ".hwfs400w-timeouts", ".tmp");
+				try ( OutputStream out = Files.newOutputStream(tmp) ) {
+					props.store(out, "S400W adaptive timeouts");
+				}
+				Files.move(tmp, _file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (IOException e) {
+				log.log(Level.WARNING, "save(" + _file + ")", e);
+				synchronized ( this ) {
+					_dirty = true;
+				}
+			}
+		}
+	}
+
+
+	private void load()
+	{
+		Properties props = new Properties();
+		try ( InputStream in = Files.newInputStream(_file) ) {
+			props.load(in);
+		}
+		catch (IOException e) {
+			log.log(Level.WARNING, "load(" + _file + ")", e);
+			return;
+		}
+		for ( String key : props.stringPropertyNames() ) {
+			try {
+				_models.put(key, Estimator.parse(quantile, props.getProperty(key)));
+			} catch (RuntimeException e) {
+				log.warning("load(" + _file + "): ignoring " + key + ": " + e);
+			}
+		}
+		if ( log.isLoggable(Level.FINE) ) log.fine("load(" + _file + "): " + _models.size() + " models");
+	}
+
+
+	private static String key(String device, int dpi, boolean preview, Phase phase)
+	{
+		return device + '|' + dpi + '|' + (preview ? "preview" : "direct") + '|' + phase;
+	}
+
+
+	/**
+	 * P&#178; quantile estimator (Jain, Chlamtac 1985), five markers instead of all samples.
+	 */
+	private final static class Estimator
+	{
+		final double[] q  = new double[5];
+		final double[] n  = new double[5];
+		final double[] np = new double[5];
+		final double[] dn;
+		final double p;
+		long count;
+
+
+		Estimator(double p)
+		{
+			this.p = p;
+			dn = new double[] { 0, p / 2, p, (1 + p) / 2, 1 };
+			for ( int i = 0; i<5; i++ ) {
+				n[i] = i;
+				np[i] = 4 * dn[i];
+			}
+		}
+
+
+		void add(double x)
+		{
+			if ( count<5 ) {
+				q[(int)count++] = x;
+				if ( count==5 ) Arrays.sort(q);
+				return;
+			}
+			count++;
+			int k;
+			if ( x<q[0] ) {
+				q[0] = x;
+				k = 0;
+			}
+			else if ( x>=q[4] ) {
+				q[4] = x;
+				k = 3;
+			}
+			else {
+				k = 0;
+				while ( x>=q[k + 1] ) k++;
+			}
+			for ( int i = k + 1; i<5; i++ ) n[i]++;
+			for ( int i = 0; i<5; i++ ) np[i] += dn[i];
+			for ( int i = 1; i<4; i++ ) {
+				double d = np[i] - n[i];
+				if ( d>=1 && n[i + 1] - n[i]>1 || d<=-1 && n[i - 1] - n[i]<-1 ) {
+					int s = d<0 ? -1 : 1;
+					double qp = q[i] + s / (n[i + 1] - n[i - 1])
+						* ((n[i] - n[i - 1] + s) * (q[i + 1] - q[i]) / (n[i + 1] - n[i])
+						 + (n[i + 1] - n[i] - s) * (q[i] - q[i - 1]) / (n[i] - n[i - 1]));
+					if ( q[i - 1]>=qp || qp>=q[i + 1] ) qp = q[i] + s * (q[i + s] - q[i]) / (n[i + s] - n[i]);
+					q[i] = qp;
+					n[i] += s;
+				}
+			}
+		}
+
+
+		double quantile()
+		{
+			if ( count>=5 ) return q[2];
+			double[] sorted = Arrays.copyOf(q, (int)count);
+			Arrays.sort(sorted);
+			return sorted[Math.min(sorted.length - 1, (int)Math.ceil(p * sorted.length) - 1)];
+		}
+
+
+		@Override
+		public String toString()
+		{
+			StringBuilder sb = new StringBuilder().append(count);
+			for ( double[] a : new double[][] { q, n, np } ) for ( double v : a ) sb.append(' ').append(String.format(Locale.ROOT, "%.3f", v));
+			return sb.toString();
+		}
+
+
+		static Estimator parse(double p, String value)
+		{
+			String[] parts = value.trim().split("\\s+");
+			if ( parts.length!=16 ) throw new IllegalArgumentException("expected 16 values: " + value);
+			Estimator e = new Estimator(p);
+			e.count = Long.parseLong(parts[0]);
+			for ( int i = 0; i<5; i++ ) {
+				e.q [i] = Double.parseDouble(parts[1 + i]);
+				e.n [i] = Double.parseDouble(parts[6 + i]);
+				e.np[i] = Double.parseDouble(parts[11 + i]);
+			}
+			return e;
+		}
+	}
+}
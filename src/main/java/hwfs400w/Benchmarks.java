@@ -0,0 +1,297 @@
+/* This file is licensed under Creative Commons License CC-CC0 1.0 (http://creativecommons.org/publicdomain/zero/1.0/).
+ *
+ * Created 2026-10-18 by bastel.
+ */
+
+package hwfs400w;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Micro benchmarks of the image processing on sample scans.
+ * <p>
+ * Arguments: {@code decode|png|transcode|deskew|kernels [--runs=10] [--threads=<cpus>] [--lines=900] <jpeg>...}
+ * <ul>
+ * <li>{@code decode} compares {@link ImageIO} with sequential and parallel {@link JpegStripeDecoder} decoding and checks
+ * that both decoder modes produce the same pixels.
+ * <li>{@code png} compares writing the decoded RGB image as PNG by {@link ImageIO} and by {@link PngWriter}
+ * with and without pool, and checks that {@link ImageIO} reads the same pixels back.
+ * <li>{@code transcode} compares the sizes and times of the {@link JpegTranscoder} modes and checks
+ * that {@link ImageIO} decodes the same pixels as from the original.
+ * <li>{@code deskew} compares {@link SkewEstimator} estimation and G4 conversion with and without {@link Deskewer},
+ * rotating by 1 degree if the scan isn't skewed.
+ * <li>{@code kernels} times the {@link PreviewKernels} chain of luma, histogram and Otsu threshold, adaptive threshold
+ * and row and column projection over {@code --lines} preview lines, sampled from the jpeg, or synthetic without one.
+ * </ul>
+ * Times are medians after a warm-up run.
+ *
+ * @author bastel
+ * @since 2026-10-18
+ */
+public class Benchmarks
+{
+	public static void main(String[] args) throws IOException
+	{
+		int runs = 10;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int lines = 900;
+		int first = 1;
+		for ( ; first<args.length && args[first].startsWith("--"); first++ ) {
+			if ( args[first].startsWith("--runs=") ) runs = Integer.parseInt(args[first].substring(7));
+			else if ( args[first].startsWith("--threads=") ) threads = Integer.parseInt(args[first].substring(10));
+			else if ( args[first].startsWith("--lines=") ) lines = Integer.parseInt(args[first].substring(8));
+		}
+		final boolean kernels = args.length>0 && "kernels".equals(args[0]);
+		if ( args.length<=first && !kernels || !args[0].matches("decode|png|transcode|deskew|kernels") || lines<1 || lines>12000 ) {
+			System.err.println("Usage: Benchmarks decode|png|transcode|deskew|kernels [--runs=10] [--threads=<cpus>] [--lines=900] <jpeg>...");
+			System.exit(2);
+		}
+		final ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			if ( kernels && args.length<=first ) kernels(null, "synthetic", lines, runs);
+			for ( int i = first; i<args.length; i++ ) {
+				if ( kernels ) {
+					kernels(ImageIO.read(Paths.get(args[i]).toFile()), args[i], lines, runs);
+					continue;
+				}
+				if ( "decode".equals(args[0]) ) decode(Files.readAllBytes(Paths.get(args[i])), args[i], runs, pool);
+				else if ( "png".equals(args[0]) ) png(Files.readAllBytes(Paths.get(args[i])), args[i], runs, pool);
+				else if ( "transcode".equals(args[0]) ) transcode(Files.readAllBytes(Paths.get(args[i])), args[i], runs);
+				else deskew(Files.readAllBytes(Paths.get(args[i])), args[i], runs, pool);
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+
+	private static void decode(byte[] jpeg, String name, int runs, ForkJoinPool pool) throws IOException
+	{
+		final Checksum sequential = new Checksum(), parallel = new Checksum();
+		new JpegStripeDecoder(new ByteArrayInputStream(jpeg), 0).decode(sequential);
+		new JpegStripeDecoder(new ByteArrayInputStream(jpeg), 0).decode(parallel, pool);
+		System.out.println(String.format(Locale.ROOT, "%s: %dx%d, %,d bytes, parallel output %s",
+			name, sequential.width, sequential.height, jpeg.length, sequential.crc.getValue()==parallel.crc.getValue() ? "identical" : "DIFFERENT"));
+
+		final double imageio = time(runs, () -> ImageIO.read(new ByteArrayInputStream(jpeg)));
+		final double seq = time(runs, () -> new JpegStripeDecoder(new ByteArrayInputStream(jpeg), 0).decode(new Checksum()));
+		final double par = time(runs, () -> new JpegStripeDecoder(new ByteArrayInputStream(jpeg), 0).decode(new Checksum(), pool));
+		System.out.println(String.format(Locale.ROOT, "  ImageIO.read          %8.1f ms", imageio));
+		System.out.println(String.format(Locale.ROOT, "  stripes, sequential   %8.1f ms  %5.2fx", seq, imageio / seq));
+		System.out.println(String.format(Locale.ROOT, "  stripes, parallel(%d) %8.1f ms  %5.2fx", pool.getParallelism(), par, imageio / par));
+	}
+
+
+	private static void png(byte[] jpeg, String name, int runs, ForkJoinPool pool) throws IOException
+	{
+		final BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+		final int width = image.getWidth(), height = image.getHeight();
+		final byte[] rgb = new byte[width * height * 3];
+		final int[] line = new int[width];
+		for ( int y = 0, i = 0; y<height; y++ ) {
+			image.getRGB(0, y, width, 1, line, 0, width);
+			for ( int x = 0; x<width; x++, i += 3 ) {
+				rgb[i] = (byte)(line[x] >> 16);
+				rgb[i + 1] = (byte)(line[x] >> 8);
+				rgb[i + 2] = (byte)line[x];
+			}
+		}
+		final Path file = Files.createTempFile("s400w-bench", ".png");
+		try {
+			final Run parallel = () -> {
+				final PngWriter png = new PngWriter(file, width, 3, pool);
+				png.open(-1);
+				// rows arrive in preview sized pieces
+				for ( int i = 0; i<rgb.length; i += 61440 ) png.write(rgb, i, Math.min(61440, rgb.length - i));
+				png.close();
+			};
+			parallel.run();
+			final boolean same = same(image, ImageIO.read(file.toFile()));
+			final long size = Files.size(file);
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			ImageIO.write(image, "png", out);
+			System.out.println(String.format(Locale.ROOT, "%s: %dx%d RGB, PNG %,d bytes (ImageIO %,d bytes), pixels %s",
+				name, width, height, size, out.size(), same ? "identical" : "DIFFERENT"));
+
+			final double imageio = time(runs, () -> ImageIO.write(image, "png", new ByteArrayOutputStream()));
+			final double seq = time(runs, () -> {
+				final PngWriter png = new PngWriter(file, width, 3, null);
+				png.open(-1);
+				png.write(rgb, 0, rgb.length);
+				png.close();
+			});
+			final double par = time(runs, parallel);
+			System.out.println(String.format(Locale.ROOT, "  ImageIO.write         %8.1f ms", imageio));
+			System.out.println(String.format(Locale.ROOT, "  PngWriter, sequential %8.1f ms  %5.2fx", seq, imageio / seq));
+			System.out.println(String.format(Locale.ROOT, "  PngWriter, parallel(%d) %6.1f ms  %5.2fx", pool.getParallelism(), par, imageio / par));
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+
+	private static void transcode(byte[] jpeg, String name, int runs) throws IOException
+	{
+		final BufferedImage original = ImageIO.read(new ByteArrayInputStream(jpeg));
+		System.out.println(String.format(Locale.ROOT, "%s: %dx%d, %,d bytes", name, original.getWidth(), original.getHeight(), jpeg.length));
+		for ( JpegTranscoder.Mode mode : JpegTranscoder.Mode.values() ) {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream(jpeg.length);
+			JpegTranscoder.transcode(new ByteArrayInputStream(jpeg), out, mode);
+			final boolean same = same(original, ImageIO.read(new ByteArrayInputStream(out.toByteArray())));
+			final double ms = time(runs, () -> JpegTranscoder.transcode(new ByteArrayInputStream(jpeg), new ByteArrayOutputStream(jpeg.length), mode));
+			System.out.println(String.format(Locale.ROOT, "  %-11s %,12d bytes %6.1f%% %8.1f ms  pixels %s",
+				mode, out.size(), 100.0 * (out.size() - jpeg.length) / jpeg.length, ms, same ? "identical" : "DIFFERENT"));
+		}
+	}
+
+
+	private static void deskew(byte[] jpeg, String name, int runs, ForkJoinPool pool) throws IOException
+	{
+		final SkewEstimator skew = new SkewEstimator();
+		new JpegStripeDecoder(new ByteArrayInputStream(jpeg), 0).decode(skew, pool);
+		final double angle = Double.isNaN(skew.getAngle()) || Math.abs(skew.getAngle())<0.05 ? 1 : skew.getAngle();
+		System.out.println(String.format(Locale.ROOT, "%s: %,d bytes, skew %.2f degrees, rotating by %.2f degrees", name, jpeg.length, skew.getAngle(), angle));
+
+		final double estimate = time(runs, () -> new JpegStripeDecoder(new ByteArrayInputStream(jpeg), 0).decode(new SkewEstimator(), pool));
+		final double g4 = time(runs, () -> new JpegStripeDecoder(new ByteArrayInputStream(jpeg), 0).decode(new Binarizer(new TiffG4Writer()), pool));
+		final double deskewed = time(runs, () -> new JpegStripeDecoder(new ByteArrayInputStream(jpeg), 0).decode(new Deskewer(new Binarizer(new TiffG4Writer()), angle), pool));
+		System.out.println(String.format(Locale.ROOT, "  decode + estimate     %8.1f ms", estimate));
+		System.out.println(String.format(Locale.ROOT, "  G4                    %8.1f ms", g4));
+		System.out.println(String.format(Locale.ROOT, "  G4, deskewed          %8.1f ms  %+5.1f ms", deskewed, deskewed - g4));
+	}
+
+
+	private static void kernels(BufferedImage image, String name, int lines, int runs) throws IOException
+	{
+		final int width = PreviewKernels.WIDTH, pixels = width * lines;
+		final byte[] rgb = new byte[lines * PreviewKernels.LINE_BYTES];
+		for ( int y = 0, i = 0; y<lines; y++ ) {
+			for ( int x = 0; x<width; x++, i += 3 ) {
+				// nearest pixel of the page, or an unevenly lit page with a dark text line every 24 rows
+				final int c = image!=null ? image.getRGB(x * image.getWidth() / width, y * image.getHeight() / lines)
+					: (y % 24<3 && x % 11<8 ? 0x202020 : 0x010101 * (160 + 80 * x / width));
+				rgb[i] = (byte)(c >> 16);
+				rgb[i + 1] = (byte)(c >> 8);
+				rgb[i + 2] = (byte)c;
+			}
+		}
+		final byte[] gray = new byte[pixels], bits = new byte[pixels];
+		final int[] histogram = new int[256], integral = new int[(width + 1) * (lines + 1)];
+		final long[] rows = new long[lines], columns = new long[width];
+		final int[] otsu = new int[1];
+
+		final Run luma = () -> PreviewKernels.luma(rgb, 0, gray, 0, pixels);
+		final Run threshold = () -> {
+			Arrays.fill(histogram, 0);
+			PreviewKernels.histogram(gray, 0, pixels, histogram);
+			otsu[0] = PreviewKernels.otsu(histogram);
+		};
+		final Run adaptive = () -> PreviewKernels.adaptiveThreshold(gray, 0, width, lines, 15, 15, integral, bits, 0);
+		final Run projection = () -> {
+			Arrays.fill(rows, 0);
+			Arrays.fill(columns, 0);
+			PreviewKernels.rowProjection(bits, 0, width, lines, rows);
+			PreviewKernels.columnProjection(bits, 0, width, lines, columns);
+		};
+		final Run chain = () -> {
+			luma.run();
+			threshold.run();
+			adaptive.run();
+			projection.run();
+		};
+		// small inputs, one warm-up run doesn't get them compiled
+		for ( int i = 0; i<50; i++ ) chain.run();
+		long black = 0;
+		for ( long r : rows ) black += r;
+		System.out.println(String.format(Locale.ROOT, "%s: %d preview lines, Otsu threshold %d, adaptive %.1f%% black",
+			name, lines, otsu[0], 100.0 * black / pixels));
+
+		final String[] names = { "luma", "histogram + Otsu", "adaptive threshold", "projections", "chain" };
+		final Run[] kernels = { luma, threshold, adaptive, projection, chain };
+		for ( int i = 0; i<kernels.length; i++ ) {
+			final double ms = time(runs, kernels[i]);
+			System.out.println(String.format(Locale.ROOT, "  %-20s %8.3f ms  %,8.0f lines/ms", names[i], ms, lines / ms));
+		}
+	}
+
+
+	private static boolean same(BufferedImage a, BufferedImage b)
+	{
+		if ( a.getWidth()!=b.getWidth() || a.getHeight()!=b.getHeight() ) return false;
+		for ( int y = 0; y<a.getHeight(); y++ ) {
+			for ( int x = 0; x<a.getWidth(); x++ ) {
+				if ( (a.getRGB(x, y) & 0xffffff)!=(b.getRGB(x, y) & 0xffffff) ) return false;
+			}
+		}
+		return true;
+	}
+
+
+	private interface Run
+	{
+		void run() throws IOException;
+	}
+
+
+	/**
+	 * Returns the median duration in milliseconds, after one warm-up run.
+	 */
+	private static double time(int runs, Run run) throws IOException
+	{
+		run.run();
+		final long[] nanos = new long[runs];
+		for ( int i = 0; i<runs; i++ ) {
+			final long start = System.nanoTime();
+			run.run();
+			nanos[i] = System.nanoTime() - start;
+		}
+		Arrays.sort(nanos);
+		return nanos[runs / 2] / 1e6;
+	}
+
+
+	/**
+	 * Checksum of all stripes, in order.
+	 */
+	private final static class Checksum implements StripeConsumer
+	{
+		final CRC32 crc = new CRC32();
+		int width, height, rows;
+
+
+		@Override
+		public void begin(int w, int h, int dpi)
+		{
+			width = w;
+			height = h;
+		}
+
+
+		@Override
+		public void stripe(byte[] pixels, int offset, int y, int n) throws IOException
+		{
+			if ( y!=rows ) throw new IOException("Stripe at " + y + ", expected " + rows);
+			crc.update(pixels, offset, n * width);
+			rows += n;
+		}
+
+
+		@Override
+		public void end() throws IOException
+		{
+			if ( rows!=height ) throw new IOException(rows + " of " + height + " rows");
+		}
+	}
+}
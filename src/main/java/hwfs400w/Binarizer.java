@@ -0,0 +1,115 @@
+/* This file is licensed under Creative Commons License CC-CC0 1.0 (http://creativecommons.org/publicdomain/zero/1.0/).
+ *
+ * Created 2026-10-18 by bastel.
+ */
+
+package hwfs400w;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Turns gray stripes into bitonal stripes by {@link PreviewKernels#adaptiveThreshold adaptive thresholding}.
+ * <p>
+ * Only a band of rows around the rows being thresholded is kept, the window reaches half its size above and below,
+ * so output lags behind input by half a window.
+ *
+ * @author bastel
+ * @since 2026-10-18
+ */
+public class Binarizer implements StripeConsumer
+{
+	/** Minimum number of rows thresholded at once, amortizes the window overlap. */
+	private final static int BATCH = 64;
+
+	private final StripeConsumer _target;
+	private final int _percent;
+	private int _window, _half;
+	private int _width;
+
+	/** Buffered gray rows {@code [_base, _base + _rows)}. */
+	private byte[] _gray = new byte[0];
+	private int _base, _rows;
+
+	/** Next row to threshold. */
+	private int _next;
+
+	private int[] _integral = new int[0];
+	private byte[] _bits = new byte[0];
+
+
+	/**
+	 * Creates a binarizer with a window of 1/8 inch and a threshold of 15% below the window mean.
+	 */
+	public Binarizer(StripeConsumer target)
+	{
+		this(target, 0, 15);
+	}
+
+
+	/**
+	 * @param window window size in pixels, {@code 0} for 1/8 inch
+	 * @param percent how much darker than the window mean a black pixel is
+	 */
+	public Binarizer(StripeConsumer target, int window, int percent)
+	{
+		_target = target;
+		_window = window;
+		_percent = percent;
+	}
+
+
+	@Override
+	public void begin(int width, int height, int dpi) throws IOException
+	{
+		_width = width;
+		if ( _window<=0 ) _window = Math.max(15, (dpi>0 ? dpi : 300) / 8);
+		_half = _window / 2;
+		_base = _rows = _next = 0;
+		_target.begin(width, height, dpi);
+	}
+
+
+	@Override
+	public void stripe(byte[] pixels, int offset, int y, int rows) throws IOException
+	{
+		final int need = (_rows + rows) * _width;
+		if ( need>_gray.length ) _gray = Arrays.copyOf(_gray, Math.max(need, (BATCH + 2 * _half) * _width));
+		System.arraycopy(pixels, offset, _gray, _rows * _width, rows * _width);
+		_rows += rows;
+		process(false);
+	}
+
+
+	@Override
+	public void end() throws IOException
+	{
+		process(true);
+		_target.end();
+	}
+
+
+	/**
+	 * Thresholds all rows whose window is complete, drops rows not needed anymore.
+	 */
+	private void process(boolean last) throws IOException
+	{
+		final int available = _base + _rows;
+		final int limit = last ? available : available - _half;
+		if ( limit<=_next || (!last && limit - _next<BATCH) ) return;
+
+		final int top = Math.max(_base, _next - _half), bottom = Math.min(available, limit + _half), rows = bottom - top;
+		if ( (_width + 1) * (rows + 1)>_integral.length ) _integral = new int[(_width + 1) * (rows + 1)];
+		if ( _width * rows>_bits.length ) _bits = new byte[_width * rows];
+		PreviewKernels.adaptiveThreshold(_gray, (top - _base) * _width, _width, rows, _window, _percent, _integral, _bits, 0);
+		_target.stripe(_bits, (_next - top) * _width, _next, limit - _next);
+		_next = limit;
+
+		final int drop = _next - _half - _base;
+		if ( drop>0 ) {
+			System.arraycopy(_gray, drop * _width, _gray, 0, (_rows - drop) * _width);
+			_base += drop;
+			_rows -= drop;
+		}
+	}
+}
@@ -0,0 +1,365 @@
+/* This file is licensed under Creative Commons License CC-CC0 1.0 (http://creativecommons.org/publicdomain/zero/1.0/).
+ *
+ * Created 2026-10-18 by bastel.
+ */
+
+package hwfs400w;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link ScanDataReceiver} that feeds the same scan data to several consumers at once.
+ * <p>
+ * Data written by the scan loop is copied once into a shared bounded ring buffer.
+ * Every consumer has its own cursor into that buffer and is drained on its own thread,
+ * so a slow consumer (disk, network, thumbnailer) does not add its latency to the socket reads.
+ * <p>
+ * If the ring buffer is full the {@link Overflow} policy decides what happens:
+ * either the producer waits for the slowest consumer, or the slowest consumer is
+ * detached from the ring buffer and continues from a temporary spill file.
+ * <p>
+ * {@link #close()} waits until every consumer has received all data and has been closed itself.
+ * Errors of consumers don't stop the other consumers, they are reported by {@link #close()}.
+ * <p>
+ * The receiver can be reused for several phases (preview / jpeg), but not concurrently.
+ *
+ * @author bastel
+ * @since 2026-10-18
+ */
+public class BroadcastReceiver implements ScanDataReceiver
+{
+	private final static Logger log = Logger.getLogger(BroadcastReceiver.class.getName());
+
+	/** What to do if the ring buffer is full. */
+	public enum Overflow
+	{
+		/** Producer waits until the slowest consumer made room. */
+		BLOCK,
+
+		/** The slowest consumer is moved to a temporary file, the producer continues. */
+		SPILL
+	}
+
+	/** Default ring buffer size, 1 MiB. */
+	public final static int DEFAULT_CAPACITY = 1 << 20;
+
+	/** Maximum number of bytes handed to a consumer at once. */
+	private final static int CHUNK = 65536;
+
+	private final ScanDataReceiver[] _receivers;
+	private final Overflow _overflow;
+	private final byte[] _ring;
+
+	/** Guards all fields below. */
+	private final Object _lock = new Object();
+
+	/** Total number of bytes written since {@link #open(long)}. */
+	private long _head;
+
+	/** Set by {@link #close()}, no more data. */
+	private boolean _closed;
+
+	private Consumer[] _consumers;
+
+
+	/**
+	 * Creates a new broadcast receiver with {@link #DEFAULT_CAPACITY} and {@link Overflow#BLOCK}.
+	 */
+	public BroadcastReceiver(ScanDataReceiver... receivers)
+	{
+		this(DEFAULT_CAPACITY, Overflow.BLOCK, receivers);
+	}
+
+
+	/**
+	 * Creates a new broadcast receiver.
+	 *
+	 * @param capacity size of the shared ring buffer in bytes
+	 * @param overflow policy if the ring buffer is full
+	 * @param receivers the consumers
+	 */
+	public BroadcastReceiver(int capacity, Overflow overflow, ScanDataReceiver... receivers)
+	{
+		Objects.requireNonNull(overflow, "overflow");
+		if ( capacity<=0 ) throw new IllegalArgumentException("capacity=" + capacity);
+		if ( receivers.length==0 ) throw new IllegalArgumentException("no receivers");
+		for ( ScanDataReceiver r : receivers ) Objects.requireNonNull(r, "receiver");
+		_receivers = receivers.clone();
+		_overflow = overflow;
+		_ring = new byte[capacity];
+	}
+
+
+	@Override
+	public void open(long length) throws IOException
+	{
+		synchronized (_lock) {
+			if ( _consumers!=null ) throw new IllegalStateException("already open");
+			_head = 0;
+			_closed = false;
+			_consumers = new Consumer[_receivers.length];
+			for ( int i = 0; i<_receivers.length; i++ ) _consumers[i] = new Consumer(i, _receivers[i], length);
+		}
+		for ( Consumer c : _consumers ) c.thread.start();
+	}
+
+
+	@Override
+	public void write(byte[] array, int offset, int length) throws IOException
+	{
+		synchronized (_lock) {
+			if ( _consumers==null || _closed ) throw new IllegalStateException("not open");
+			while ( length>0 ) {
+				final int free = free();
+				if ( free==0 ) {
+					if ( _overflow==Overflow.SPILL ) {
+						spillSlowest();
+					} else {
+						await();
+					}
+					continue;
+				}
+				final int n = Math.min(free, length);
+				final int pos = (int)(_head % _ring.length);
+				final int first = Math.min(n, _ring.length - pos);
+				System.arraycopy(array, offset, _ring, pos, first);
+				System.arraycopy(array, offset + first, _ring, 0, n - first);
+				for ( Consumer c : _consumers ) if ( c.spill!=null && c.error==null ) c.append(array, offset, n);
+				_head += n;
+				offset += n;
+				length -= n;
+				_lock.notifyAll();
+			}
+		}
+	}
+
+
+	/**
+	 * Signals end of data and waits until all consumers are done.
+	 *
+	 * @throws IOException the first error of any consumer, further errors are added as suppressed.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		final Consumer[] consumers;
+		synchronized (_lock) {
+			if ( _consumers==null ) return;
+			consumers = _consumers;
+			_closed = true;
+			_lock.notifyAll();
+		}
+		boolean interrupted = false;
+		for ( Consumer c : consumers ) {
+			while ( c.thread.isAlive() ) {
+				try {
+					c.thread.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		synchronized (_lock) {
+			_consumers = null;
+		}
+		if ( interrupted ) Thread.currentThread().interrupt();
+		IOException error = null;
+		for ( Consumer c : consumers ) {
+			if ( c.error==null ) continue;
+			if ( error==null ) error = new IOException("Broadcast consumer failed", c.error);
+			else error.addSuppressed(c.error);
+		}
+		if ( error!=null ) throw error;
+	}
+
+
+	/**
+	 * Number of bytes that can be written without overwriting data of a consumer still reading from the ring buffer.
+	 */
+	private int free()
+	{
+		long tail = _head;
+		for ( Consumer c : _consumers ) if ( c.spill==null && c.error==null ) tail = Math.min(tail, c.cursor);
+		return _ring.length - (int)(_head - tail);
+	}
+
+
+	/**
+	 * Moves all consumers with the lowest cursor to their spill files.
+	 */
+	private void spillSlowest() throws IOException
+	{
+		long tail = _head;
+		for ( Consumer c : _consumers ) if ( c.spill==null && c.error==null ) tail = Math.min(tail, c.cursor);
+		for ( Consumer c : _consumers ) if ( c.spill==null && c.error==null && c.cursor==tail ) c.spill();
+	}
+
+
+	private void await() throws InterruptedIOException
+	{
+		try {
+			_lock.wait();
+		} catch (InterruptedException e) {
+			throw (InterruptedIOException)new InterruptedIOException("Interrupted while waiting for consumers").initCause(e);
+		}
+	}
+
+
+	/**
+	 * Reads ring buffer data into a consumer's private buffer. Must be called with {@link #_lock} held.
+	 */
+	private void copy(long from, byte[] dst, int length)
+	{
+		final int pos = (int)(from % _ring.length);
+		final int first = Math.min(length, _ring.length - pos);
+		System.arraycopy(_ring, pos, dst, 0, first);
+		System.arraycopy(_ring, 0, dst, first, length - first);
+	}
+
+
+	/**
+	 * A single consumer with its cursor, thread and optional spill file.
+	 */
+	private final class Consumer implements Runnable
+	{
+		final ScanDataReceiver receiver;
+		final long length;
+		final Thread thread;
+		final byte[] chunk = new byte[Math.min(CHUNK, _ring.length)];
+
+		/** Number of bytes already handed to {@link #receiver}. */
+		long cursor;
+
+		/** Spill file, once the consumer fell behind, {@code null} otherwise. */
+		FileChannel spill;
+		Path spillPath;
+
+		/** Stream position of the first byte in the spill file. */
+		long spillStart;
+
+		/** Number of bytes in the spill file. */
+		long spillLength;
+
+		volatile Throwable error;
+
+
+		Consumer(int index, ScanDataReceiver receiver, long length)
+		{
+			this.receiver = receiver;
+			this.length = length;
+			this.thread = Threads.newThread("s400w-broadcast-" + index, this);
+		}
+
+
+		@Override
+		public void run()
+		{
+			boolean opened = false;
+			try {
+				receiver.open(length);
+				opened = true;
+				while ( true ) {
+					int n;
+					long from;
+					boolean fromSpill;
+					synchronized (_lock) {
+						while ( cursor==_head && !_closed ) _lock.wait();
+						if ( cursor==_head ) break;
+						from = cursor;
+						n = (int)Math.min(chunk.length, _head - cursor);
+						fromSpill = spill!=null;
+						if ( !fromSpill ) copy(from, chunk, n);
+					}
+					// spill file data only grows and is never overwritten, so it can be read without lock
+					if ( fromSpill ) read(from - spillStart, n);
+					receiver.write(chunk, 0, n);
+					synchronized (_lock) {
+						cursor += n;
+						_lock.notifyAll();
+					}
+				}
+			}
+			catch (Throwable e) {
+				log.log(Level.WARNING, thread.getName(), e);
+				fail(e);
+			}
+			finally {
+				if ( opened ) {
+					try {
+						receiver.close();
+					} catch (Throwable e) {
+						log.log(Level.WARNING, thread.getName() + ".close()", e);
+						fail(e);
+					}
+				}
+				synchronized (_lock) {
+					if ( spill!=null ) {
+						try { spill.close(); } catch (IOException e) {}
+						try { Files.deleteIfExists(spillPath); } catch (IOException e) {}
+						spill = null;
+					}
+				}
+			}
+		}
+
+
+		private void fail(Throwable e)
+		{
+			synchronized (_lock) {
+				if ( error==null ) error = e;
+				else if ( error!=e ) error.addSuppressed(e);
+				// we're out of the game, release the producer
+				_lock.notifyAll();
+			}
+		}
+
+
+		/**
+		 * Moves the not yet consumed ring buffer contents into a spill file. Must be called with {@link #_lock} held.
+		 */
+		void spill() throws IOException
+		{
+			if ( log.isLoggable(Level.FINE) ) log.fine(thread.getName() + ": spilling " + (_head - cursor) + " bytes");
+			spillPath = Files.createTempFile("s400w-spill", ".tmp");
+			spill = FileChannel.open(spillPath, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+			spillStart = cursor;
+			spillLength = 0;
+			for ( long pos = cursor; pos<_head; ) {
+				int n = (int)Math.min(chunk.length, _head - pos);
+				int off = (int)(pos % _ring.length);
+				n = Math.min(n, _ring.length - off);
+				append(_ring, off, n);
+				pos += n;
+			}
+		}
+
+
+		/**
+		 * Appends data to the spill file. Must be called with {@link #_lock} held.
+		 */
+		void append(byte[] array, int offset, int n) throws IOException
+		{
+			ByteBuffer buf = ByteBuffer.wrap(array, offset, n);
+			while ( buf.hasRemaining() ) spillLength += spill.write(buf, spillLength);
+		}
+
+
+		private void read(long position, int n) throws IOException
+		{
+			ByteBuffer buf = ByteBuffer.wrap(chunk, 0, n);
+			while ( buf.hasRemaining() ) {
+				if ( spill.read(buf, position + buf.position())<0 ) throw new IOException("Spill file truncated");
+			}
+		}
+	}
+
+}
@@ -0,0 +1,64 @@
+/* This file is licensed under Creative Commons License CC-CC0 1.0 (http://creativecommons.org/publicdomain/zero/1.0/).
+ *
+ * Created 2026-10-18 by bastel.
+ */
+
+package hwfs400w;
+
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link ScanStage} writing a straightened bitonal CCITT G4 TIFF of the spooled jpeg.
+ * <p>
+ * Spooled jobs don't keep their preview, so the skew is estimated from a first pass over the jpeg by {@link SkewEstimator},
+ * a second pass rotates it by {@link Deskewer}, both stripe by stripe.
+ * The result is written next to the spooled jpeg as {@code <id>.deskewed.tif}, a job run again keeps an existing result.
+ * Configured as {@code pipelineStages=hwfs400w.DeskewStage}.
+ *
+ * @author bastel
+ * @since 2026-10-18
+ */
+public class DeskewStage implements ScanStage
+{
+	private final static Logger log = Logger.getLogger(DeskewStage.class.getName());
+
+
+	@Override
+	public void process(ScanJob job) throws Exception
+	{
+		final Path target = job.resolve(".deskewed.tif");
+		if ( Files.exists(target) ) return;
+		final SkewEstimator skew = new SkewEstimator();
+		try ( InputStream in = Files.newInputStream(job.getFile()) ) {
+			new JpegStripeDecoder(in, job.getDpi()).decode(skew, ForkJoinPool.commonPool());
+		}
+		final TiffG4Writer tiff = new TiffG4Writer();
+		final Deskewer deskewer = new Deskewer(new Binarizer(tiff), skew.getAngle());
+		try ( InputStream in = Files.newInputStream(job.getFile()) ) {
+			new JpegStripeDecoder(in, job.getDpi()).decode(deskewer, ForkJoinPool.commonPool());
+		}
+		final Path part = Files.createTempFile(target.toAbsolutePath().getParent(), "scan", ".part");
+		try {
+			try ( FileChannel file = FileChannel.open(part, StandardOpenOption.WRITE) ) {
+				tiff.writeTo(Channels.newOutputStream(file));
+				file.force(true);
+			}
+			Files.move(part, target, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally {
+			Files.deleteIfExists(part);
+		}
+		if ( log.isLoggable(Level.FINE) ) log.fine(String.format(Locale.ROOT, "process(%s): skew %.2f degrees, estimated in %d ms, rotated in %d ms",
+			job.getId(), skew.getAngle(), skew.getMillis(), deskewer.getMillis()));
+	}
+}
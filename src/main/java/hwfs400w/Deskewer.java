@@ -0,0 +1,185 @@
+/* This file is licensed under Creative Commons License CC-CC0 1.0 (http://creativecommons.org/publicdomain/zero/1.0/).
+ *
+ * Created 2026-10-18 by bastel.
+ */
+
+package hwfs400w;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Rotates gray stripes by a small angle around the page center, e.g. as estimated by {@link SkewEstimator},
+ * with bilinear interpolation. The page keeps its size, uncovered corners become white.
+ * <p>
+ * Only the band of rows the next output rows are interpolated from is kept, it reaches {@code width * sin(angle)} rows,
+ * so memory is a few stripes instead of the whole page. Output lags behind input by about half that band.
+ * Angles below 0.05 degrees, or {@link Double#NaN}, pass the stripes on unchanged.
+ *
+ * @author bastel
+ * @since 2026-10-18
+ */
+public class Deskewer implements StripeConsumer
+{
+	/** Minimum number of rows rotated at once. */
+	private final static int BATCH = 64;
+
+	/** Fixed point fraction bits of source coordinates. */
+	private final static int FRACTION = 16;
+
+	private final StripeConsumer _target;
+	private final double _degrees;
+	private final boolean _identity;
+	private int _width, _height;
+
+	/** Sine and cosine of the angle in fixed point, and the rows the outer columns reach above and below the center column. */
+	private long _sin, _cos;
+	private double _reach;
+
+	/** Buffered gray rows {@code [_base, _base + _rows)}. */
+	private byte[] _gray = new byte[0];
+	private int _base, _rows;
+
+	/** Next row to rotate. */
+	private int _next;
+
+	private byte[] _out = new byte[0];
+	private long _nanos;
+
+
+	/**
+	 * @param degrees angle of the page content, positive if lines descend to the right
+	 */
+	public Deskewer(StripeConsumer target, double degrees)
+	{
+		_target = target;
+		_degrees = degrees;
+		_identity = Double.isNaN(degrees) || Math.abs(degrees)<0.05;
+	}
+
+
+	@Override
+	public void begin(int width, int height, int dpi) throws IOException
+	{
+		_width = width;
+		_height = height;
+		_base = _rows = _next = 0;
+		if ( !_identity ) {
+			final double radians = Math.toRadians(_degrees);
+			_sin = Math.round(Math.sin(radians) * (1 << FRACTION));
+			_cos = Math.round(Math.cos(radians) * (1 << FRACTION));
+			_reach = Math.abs(Math.sin(radians)) * (width + 1) / 2.0;
+		}
+		_target.begin(width, height, dpi);
+	}
+
+
+	@Override
+	public void stripe(byte[] pixels, int offset, int y, int rows) throws IOException
+	{
+		if ( _identity ) {
+			_target.stripe(pixels, offset, y, rows);
+			return;
+		}
+		final long start = System.nanoTime();
+		final int need = (_rows + rows) * _width;
+		if ( need>_gray.length ) _gray = Arrays.copyOf(_gray, Math.max(need, (BATCH + 2 * (int)_reach + 4) * _width));
+		System.arraycopy(pixels, offset, _gray, _rows * _width, rows * _width);
+		_rows += rows;
+		process(false);
+		_nanos += System.nanoTime() - start;
+	}
+
+
+	@Override
+	public void end() throws IOException
+	{
+		if ( !_identity ) {
+			final long start = System.nanoTime();
+			process(true);
+			_nanos += System.nanoTime() - start;
+		}
+		_target.end();
+	}
+
+
+	/**
+	 * Returns the time spent rotating in milliseconds, without the target's time.
+	 */
+	public long getMillis()
+	{
+		return _nanos / 1000000L;
+	}
+
+
+	/**
+	 * Returns the source row of the center column of output row {@code y}.
+	 */
+	private double sourceRow(int y)
+	{
+		final double cy = (_height - 1) / 2.0;
+		return cy + (y - cy) * _cos / (double)(1 << FRACTION);
+	}
+
+
+	/**
+	 * Rotates all rows whose source rows are complete, drops rows not needed anymore.
+	 */
+	private void process(boolean last) throws IOException
+	{
+		final int available = _base + _rows;
+		int limit = _next;
+		if ( last ) {
+			limit = _height;
+		}
+		else {
+			while ( limit<_height && sourceRow(limit) + _reach + 2<available ) limit++;
+		}
+		if ( limit<=_next || (!last && limit - _next<BATCH) ) return;
+
+		final int rows = limit - _next;
+		if ( rows * _width>_out.length ) _out = new byte[rows * _width];
+		final long cx = (long)(_width - 1) << (FRACTION - 1), cy = (long)(_height - 1) << (FRACTION - 1);
+		for ( int y = _next, o = 0; y<limit; y++ ) {
+			// source of column 0, then step along the rotated row
+			final long dy = ((long)y << FRACTION) - cy;
+			long sx = cx + ((-cx * _cos - dy * _sin) >> FRACTION);
+			long sy = cy + ((-cx * _sin + dy * _cos) >> FRACTION);
+			for ( int x = 0; x<_width; x++, o++, sx += _cos, sy += _sin ) _out[o] = sample(sx, sy);
+		}
+		_target.stripe(_out, 0, _next, rows);
+		_next = limit;
+
+		final int drop = (int)Math.floor(sourceRow(_next) - _reach) - 2 - _base;
+		if ( drop>0 ) {
+			final int keep = Math.max(0, _rows - drop);
+			System.arraycopy(_gray, Math.min(drop, _rows) * _width, _gray, 0, keep * _width);
+			_base += drop;
+			_rows = keep;
+		}
+	}
+
+
+	/**
+	 * Interpolates the source at a fixed point position, white outside of the page or of the buffered rows.
+	 */
+	private byte sample(long sx, long sy)
+	{
+		final int x0 = (int)(sx >> FRACTION), y0 = (int)(sy >> FRACTION) - _base;
+		final int fx = (int)(sx >> (FRACTION - 8)) & 0xff, fy = (int)(sy >> (FRACTION - 8)) & 0xff;
+		if ( x0>=0 && x0<_width - 1 && y0>=0 && y0<_rows - 1 ) {
+			final int i = y0 * _width + x0;
+			final int top = (_gray[i] & 0xff) * (256 - fx) + (_gray[i + 1] & 0xff) * fx;
+			final int bottom = (_gray[i + _width] & 0xff) * (256 - fx) + (_gray[i + _width + 1] & 0xff) * fx;
+			return (byte)((top * (256 - fy) + bottom * fy + 32768) >> 16);
+		}
+		return (byte)((pixel(x0, y0) * (256 - fx) + pixel(x0 + 1, y0) * fx) * (256 - fy)
+			+ (pixel(x0, y0 + 1) * (256 - fx) + pixel(x0 + 1, y0 + 1) * fx) * fy + 32768 >> 16);
+	}
+
+
+	private int pixel(int x, int y)
+	{
+		return x<0 || x>=_width || y<0 || y>=_rows ? 255 : _gray[y * _width + x] & 0xff;
+	}
+}
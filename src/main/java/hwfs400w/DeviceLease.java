@@ -0,0 +1,278 @@
+/* This file is licensed under Creative Commons License CC-CC0 1.0 (http://creativecommons.org/publicdomain/zero/1.0/).
+ *
+ * Created 2026-10-18 by bastel.
+ */
+
+package hwfs400w;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.GroupPrincipal;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.UserPrincipal;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Exclusive ownership of a scanner across threads and JVMs, using a file lock in a shared directory.
+ * <p>
+ * The lock file is named after the scanner's {@code host:port}. Threads of the same JVM queue fairly
+ * in front of the lock file, other JVMs poll it until the waiting time is up. A crashed holder
+ * releases the lock by the operating system. The lock file in use is logged once.
+ * <p>
+ * A directory created here is writable for all users but sticky ({@code rwxrwxrwt}), so only its owner
+ * removes or replaces a lock file, or, with a group, writable for the group only and setgid ({@code rwxrws---}).
+ * Lock files aren't followed if they are symbolic links, and are refused if they have other links or
+ * belong to a user other than this process' or the directory's, unless the directory is closed to others
+ * and the file has the directory's group. So users sharing a scanner, e.g. a servlet container and the command line,
+ * should share a group, see {@link S400WSettings#leaseGroup}.
+ * <p>
+ * Each acquisition increments a fencing token stored in the lock file. A lease expires after its duration.
+ * {@link #check()} fails afterwards, and if the lock file holds another token, i.e. another holder took over,
+ * e.g. where file locks aren't reliable like on network file systems. So a stalled holder can't send commands
+ * on a lease it isn't supposed to own anymore.
+ * Short leases are meant for status calls, long leases for scans and other lengthy operations.
+ *
+ * @author bastel
+ * @since 2026-10-18
+ */
+public final class DeviceLease implements Closeable
+{
+	private final static Logger log = Logger.getLogger(DeviceLease.class.getName());
+
+	/** Lease kinds. */
+	public enum Kind
+	{
+		/** Status, version, battery state, resolution, power off. */
+		SHORT,
+
+		/** Scan, clean, calibrate. */
+		LONG
+	}
+
+	/** Queues of this JVM by lock file. */
+	private final static Map<Path, Semaphore> LOCAL = new ConcurrentHashMap<>();
+
+	/** Identifies this process in lock files. */
+	private final static String OWNER = ManagementFactory.getRuntimeMXBean().getName();
+
+	/** Size of the lock file: token, expiry and owner, rewritten in place so it is never read short. */
+	private final static int HEADER = 128;
+
+	/** Whether modes, links and owners can be checked. */
+	private final static boolean UNIX = FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+
+	private final Path _path;
+	private final Semaphore _local;
+	private final FileChannel _channel;
+	private final FileLock _lock;
+	private final long _token;
+	private final long _expires;
+	private boolean _closed;
+
+
+	private DeviceLease(Path path, Semaphore local, FileChannel channel, FileLock lock, long token, long expires)
+	{
+		_path = path;
+		_local = local;
+		_channel = channel;
+		_lock = lock;
+		_token = token;
+		_expires = expires;
+	}
+
+
+	/**
+	 * Acquires the lease for a scanner, without a group.
+	 *
+	 * @see #acquire(Path, String, String, int, Kind, Duration, Duration)
+	 */
+	public static DeviceLease acquire(Path directory, String host, int port, Kind kind, Duration duration, Duration wait) throws IOException, InterruptedIOException
+	{
+		return acquire(directory, "", host, port, kind, duration, wait);
+	}
+
+
+	/**
+	 * Acquires the lease for a scanner.
+	 *
+	 * @param directory shared directory for lock files
+	 * @param group group of the users sharing the directory, empty for all users
+	 * @param host scanner host
+	 * @param port scanner port
+	 * @param kind lease kind
+	 * @param duration lease duration
+	 * @param wait maximum time to wait
+	 * @return the lease, or {@code null} if it couldn't be acquired in time.
+	 * @throws IOException if the lock file can't be accessed or isn't trustworthy.
+	 * @throws InterruptedIOException if interrupted while waiting.
+	 */
+	public static DeviceLease acquire(Path directory, String group, String host, int port, Kind kind, Duration duration, Duration wait) throws IOException, InterruptedIOException
+	{
+		final Path path = directory.resolve("s400w-" + host.replaceAll("[^A-Za-z0-9.-]", "_") + "_" + port + ".lock").toAbsolutePath();
+		final long deadline = System.nanoTime() + wait.toNanos();
+		final Semaphore local = LOCAL.computeIfAbsent(path, p -> {
+			log.info("lock file " + p);
+			return new Semaphore(1, true);
+		});
+		try {
+			if ( !local.tryAcquire(wait.toNanos(), TimeUnit.NANOSECONDS) ) return null;
+		} catch (InterruptedException e) {
+			throw (InterruptedIOException)new InterruptedIOException("Interrupted while waiting for lease").initCause(e);
+		}
+
+		FileChannel channel = null;
+		try {
+			final GroupPrincipal shared = !UNIX || group.isEmpty() ? null
+				: FileSystems.getDefault().getUserPrincipalLookupService().lookupPrincipalByGroupName(group);
+			directory(directory, shared);
+			final boolean created = !Files.exists(path, LinkOption.NOFOLLOW_LINKS);
+			channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, LinkOption.NOFOLLOW_LINKS);
+			if ( UNIX ) {
+				if ( created ) share(path, shared, shared==null ? 0666 : 0660);
+				verify(path, directory);
+			}
+			FileLock lock;
+			long pause = 10;
+			while ( (lock = channel.tryLock())==null ) {
+				long left = deadline - System.nanoTime();
+				if ( left<=0 ) {
+					if ( log.isLoggable(Level.FINE) ) log.fine("acquire(" + path + "): timeout");
+					channel.close();
+					local.release();
+					return null;
+				}
+				S400W.sleep(Math.min(pause, TimeUnit.NANOSECONDS.toMillis(left) + 1));
+				pause = Math.min(pause * 2, 200);
+			}
+
+			ByteBuffer buf = ByteBuffer.allocate(8);
+			long token = channel.read(buf, 0)==8 ? buf.getLong(0) + 1 : 1;
+			long expires = System.currentTimeMillis() + duration.toMillis();
+			byte[] owner = (OWNER + " " + kind + "\n").getBytes(StandardCharsets.UTF_8);
+			buf = ByteBuffer.allocate(HEADER).putLong(token).putLong(expires).put(owner, 0, Math.min(owner.length, HEADER - 16));
+			buf.clear();
+			while ( buf.hasRemaining() ) channel.write(buf, buf.position());
+			if ( channel.size()>HEADER ) channel.truncate(HEADER);
+			channel.force(false);
+			if ( log.isLoggable(Level.FINE) ) log.fine("acquire(" + path + "): " + kind + " token=" + token);
+			return new DeviceLease(path, local, channel, lock, token, expires);
+		}
+		catch (IOException | RuntimeException e) {
+			if ( channel!=null ) try { channel.close(); } catch (IOException x) {}
+			local.release();
+			throw e;
+		}
+	}
+
+
+	/**
+	 * Creates the directory if necessary, sticky for all users or setgid for the group,
+	 * and refuses one that is writable for all users but not sticky.
+	 */
+	private static void directory(Path directory, GroupPrincipal group) throws IOException
+	{
+		if ( !Files.isDirectory(directory) ) {
+			Files.createDirectories(directory);
+			if ( UNIX ) share(directory, group, group==null ? 01777 : 02770);
+		}
+		if ( !UNIX ) return;
+		final int mode = (Integer)Files.getAttribute(directory, "unix:mode");
+		if ( (mode & 01002)==0002 ) throw new IOException(directory + " is writable for all users but not sticky");
+	}
+
+
+	/**
+	 * Sets group and mode despite the umask, if owned.
+	 */
+	private static void share(Path path, GroupPrincipal group, int mode)
+	{
+		try {
+			if ( group!=null ) Files.getFileAttributeView(path, PosixFileAttributeView.class, LinkOption.NOFOLLOW_LINKS).setGroup(group);
+			Files.setAttribute(path, "unix:mode", mode, LinkOption.NOFOLLOW_LINKS);
+		} catch (IOException e) {
+			if ( log.isLoggable(Level.FINE) ) log.fine("share(" + path + "): " + e);
+		}
+	}
+
+
+	/**
+	 * Refuses a lock file that isn't a regular file, has other links or belongs to an untrusted user.
+	 */
+	private static void verify(Path path, Path directory) throws IOException
+	{
+		final PosixFileAttributes file = Files.readAttributes(path, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		if ( !file.isRegularFile() ) throw new IOException(path + " isn't a regular file");
+		if ( ((Number)Files.getAttribute(path, "unix:nlink", LinkOption.NOFOLLOW_LINKS)).intValue()!=1 ) throw new IOException(path + " has other links");
+		final PosixFileAttributes dir = Files.readAttributes(directory, PosixFileAttributes.class);
+		final UserPrincipal self = FileSystems.getDefault().getUserPrincipalLookupService().lookupPrincipalByName(System.getProperty("user.name"));
+		if ( file.owner().equals(self) || file.owner().equals(dir.owner()) ) return;
+		if ( !dir.permissions().contains(PosixFilePermission.OTHERS_WRITE) && file.group().equals(dir.group()) ) return;
+		throw new IOException(path + " belongs to " + file.owner());
+	}
+
+
+	/**
+	 * Returns the fencing token, increasing with every acquisition of the same lock file.
+	 */
+	public long getToken()
+	{
+		return _token;
+	}
+
+
+	/**
+	 * Returns {@code true} if the lease has neither been closed nor expired.
+	 */
+	public boolean isValid()
+	{
+		return !_closed && System.currentTimeMillis()<_expires;
+	}
+
+
+	/**
+	 * Throws if the lease isn't valid anymore, or the lock file doesn't hold this lease's token.
+	 *
+	 * @throws IOException if the lease has been closed, has expired or has been taken over.
+	 */
+	public void check() throws IOException
+	{
+		if ( !isValid() ) throw new IOException("Lease " + _token + " on " + _path + (_closed ? " closed" : " expired"));
+		final ByteBuffer buf = ByteBuffer.allocate(8);
+		final long token = _channel.read(buf, 0)==8 ? buf.getLong(0) : -1;
+		if ( token!=_token ) throw new IOException("Lease " + _token + " on " + _path + " taken over by token " + token);
+	}
+
+
+	/**
+	 * Releases the lease.
+	 */
+	@Override
+	public void close()
+	{
+		if ( _closed ) return;
+		_closed = true;
+		try { _lock.release(); } catch (IOException e) {}
+		try { _channel.close(); } catch (IOException e) {}
+		_local.release();
+		if ( log.isLoggable(Level.FINE) ) log.fine("release(" + _path + "): token=" + _token);
+	}
+}
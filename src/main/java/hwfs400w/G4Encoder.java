@@ -0,0 +1,184 @@
+/* This file is licensed under Creative Commons License CC-CC0 1.0 (http://creativecommons.org/publicdomain/zero/1.0/).
+ *
+ * Created 2026-10-18 by bastel.
+ */
+
+package hwfs400w;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A CCITT T.6 (Group 4) encoder for bitonal rows, MSB first.
+ * Each row is coded relative to the previous one, keeping just the changing elements of two rows.
+ *
+ * @author bastel
+ * @since 2026-10-18
+ */
+final class G4Encoder
+{
+	/** Terminating codes, run lengths 0..63. */
+	private final static int[] WHITE_TERMINATING = codes(
+		"00110101", "000111", "0111", "1000", "1011", "1100", "1110", "1111",
+		"10011", "10100", "00111", "01000", "001000", "000011", "110100", "110101",
+		"101010", "101011", "0100111", "0001100", "0001000", "0010111", "0000011", "0000100",
+		"0101000", "0101011", "0010011", "0100100", "0011000", "00000010", "00000011", "00011010",
+		"00011011", "00010010", "00010011", "00010100", "00010101", "00010110", "00010111", "00101000",
+		"00101001", "00101010", "00101011", "00101100", "00101101", "00000100", "00000101", "00001010",
+		"00001011", "01010010", "01010011", "01010100", "01010101", "00100100", "00100101", "01011000",
+		"01011001", "01011010", "01011011", "01001010", "01001011", "00110010", "00110011", "00110100");
+
+	private final static int[] BLACK_TERMINATING = codes(
+		"0000110111", "010", "11", "10", "011", "0011", "0010", "00011",
+		"000101", "000100", "0000100", "0000101", "0000111", "00000100", "00000111", "000011000",
+		"0000010111", "0000011000", "0000001000", "00001100111", "00001101000", "00001101100", "00000110111", "00000101000",
+		"00000010111", "00000011000", "000011001010", "000011001011", "000011001100", "000011001101", "000001101000", "000001101001",
+		"000001101010", "000001101011", "000011010010", "000011010011", "000011010100", "000011010101", "000011010110", "000011010111",
+		"000001101100", "000001101101", "000011011010", "000011011011", "000001010100", "000001010101", "000001010110", "000001010111",
+		"000001100100", "000001100101", "000001010010", "000001010011", "000000100100", "000000110111", "000000111000", "000000100111",
+		"000000101000", "000001011000", "000001011001", "000000101011", "000000101100", "000001011010", "000001100110", "000001100111");
+
+	/** Make up codes, run lengths 64..1728. */
+	private final static int[] WHITE_MAKEUP = codes(
+		"11011", "10010", "010111", "0110111", "00110110", "00110111", "01100100", "01100101",
+		"01101000", "01100111", "011001100", "011001101", "011010010", "011010011", "011010100", "011010101",
+		"011010110", "011010111", "011011000", "011011001", "011011010", "011011011", "010011000", "010011001",
+		"010011010", "011000", "010011011");
+
+	private final static int[] BLACK_MAKEUP = codes(
+		"0000001111", "000011001000", "000011001001", "000001011011", "000000110011", "000000110100", "000000110101", "0000001101100",
+		"0000001101101", "0000001001010", "0000001001011", "0000001001100", "0000001001101", "0000001110010", "0000001110011", "0000001110100",
+		"0000001110101", "0000001110110", "0000001110111", "0000001010010", "0000001010011", "0000001010100", "0000001010101", "0000001011010",
+		"0000001011011", "0000001100100", "0000001100101");
+
+	/** Make up codes of both colours, run lengths 1792..2560. */
+	private final static int[] EXTENDED_MAKEUP = codes(
+		"00000001000", "00000001100", "00000001101", "000000010010", "000000010011", "000000010100", "000000010101", "000000010110",
+		"000000010111", "000000011100", "000000011101", "000000011110", "000000011111");
+
+	/** Vertical mode codes, {@code a1 - b1} from -3 to 3. */
+	private final static int[] VERTICAL = codes("0000010", "000010", "010", "1", "011", "000011", "0000011");
+
+	private final static int PASS = codes("0001")[0], HORIZONTAL = codes("001")[0], EOL = codes("000000000001")[0];
+
+	private final OutputStream _out;
+	private final int _width;
+
+	/** Changing elements of the reference and the current row, followed by {@code _width} at least three times. */
+	private int[] _reference, _current;
+
+	private long _buffer;
+	private int _count;
+
+
+	G4Encoder(OutputStream out, int width)
+	{
+		_out = out;
+		_width = width;
+		_reference = new int[width + 3];
+		_current = new int[width + 3];
+		_reference[0] = _reference[1] = _reference[2] = width;
+	}
+
+
+	/**
+	 * Encodes a row of {@code width} pixels, {@code 1} is black.
+	 */
+	void encode(byte[] row, int offset) throws IOException
+	{
+		int n = 0, color = 0;
+		for ( int x = 0; x<_width; x++ ) {
+			if ( row[offset + x]!=color ) {
+				_current[n++] = x;
+				color ^= 1;
+			}
+		}
+		_current[n] = _current[n + 1] = _current[n + 2] = _width;
+
+		final int[] cur = _current, ref = _reference;
+		int a0 = -1, i = 0, j = 0;
+		color = 0;
+		while ( a0<_width ) {
+			while ( cur[i]<=a0 ) i++;
+			final int a1 = cur[i];
+			while ( j>0 && ref[j - 1]>a0 ) j--;
+			while ( ref[j]<=a0 || (j & 1)!=color ) {
+				if ( ref[j]>=_width ) break;
+				j++;
+			}
+			final int b1 = ref[j], b2 = ref[j + 1];
+			if ( b2<a1 ) {
+				put(PASS);
+				a0 = b2;
+			}
+			else if ( a1 - b1>=-3 && a1 - b1<=3 ) {
+				put(VERTICAL[a1 - b1 + 3]);
+				a0 = a1;
+				color ^= 1;
+			}
+			else {
+				final int a2 = cur[i + 1];
+				put(HORIZONTAL);
+				run(a1 - Math.max(a0, 0), color);
+				run(a2 - a1, color ^ 1);
+				a0 = a2;
+			}
+		}
+		_current = ref;
+		_reference = cur;
+	}
+
+
+	/**
+	 * Writes the end of facsimile block and flushes the last byte.
+	 */
+	void finish() throws IOException
+	{
+		put(EOL);
+		put(EOL);
+		if ( _count>0 ) put(0, 8 - _count);
+	}
+
+
+	private void run(int length, int color) throws IOException
+	{
+		while ( length>=2560 ) {
+			put(EXTENDED_MAKEUP[EXTENDED_MAKEUP.length - 1]);
+			length -= 2560;
+		}
+		if ( length>=64 ) {
+			final int makeup = length / 64;
+			put(makeup<=27 ? (color==0 ? WHITE_MAKEUP : BLACK_MAKEUP)[makeup - 1] : EXTENDED_MAKEUP[makeup - 28]);
+			length %= 64;
+		}
+		put((color==0 ? WHITE_TERMINATING : BLACK_TERMINATING)[length]);
+	}
+
+
+	/**
+	 * Converts bit strings to {@code code << 4 | length}.
+	 */
+	private static int[] codes(String... bits)
+	{
+		final int[] codes = new int[bits.length];
+		for ( int i = 0; i<bits.length; i++ ) codes[i] = Integer.parseInt(bits[i], 2) << 4 | bits[i].length();
+		return codes;
+	}
+
+
+	private void put(int code) throws IOException
+	{
+		put(code >>> 4, code & 15);
+	}
+
+
+	private void put(int code, int length) throws IOException
+	{
+		_buffer = _buffer << length | code;
+		_count += length;
+		while ( _count>=8 ) {
+			_count -= 8;
+			_out.write((int)(_buffer >>> _count));
+		}
+	}
+}
@@ -0,0 +1,378 @@
+/* This file is licensed under Creative Commons License CC-CC0 1.0 (http://creativecommons.org/publicdomain/zero/1.0/).
+ *
+ * Created 2026-10-18 by bastel.
+ */
+
+package hwfs400w;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link ScanDataReceiver} that parses the marker structure of jpeg data while passing it on to another receiver.
+ * <p>
+ * The parser is a byte-wise state machine: it doesn't buffer or decode anything, it reads the frame header
+ * (dimensions, components, sampling factors), the restart interval, counts restart markers and checks
+ * that the data ends with EOI. Parsing stops at the first structural error, data is still passed on
+ * and only searched for EOI, so {@link #isTruncated()} tells a malformed but complete jpeg from a cut off one.
+ * <p>
+ * If a resolution is given, the density of a JFIF APP0 segment is set to it in passing, the scanner
+ * always writes a fixed density. Note that this modifies the arrays given to {@link #write(byte[], int, int)}.
+ *
+ * @author bastel
+ * @since 2026-10-18
+ */
+public class JpegMarkerParser implements ScanDataReceiver
+{
+	private final static Logger log = Logger.getLogger(JpegMarkerParser.class.getName());
+
+	private enum State
+	{
+		/** Expecting 0xFF of SOI. */
+		START,
+		/** Expecting 0xD8 of SOI. */
+		SOI,
+		/** Expecting 0xFF of a marker. */
+		MARKER,
+		/** Expecting the marker code, fill bytes are skipped. */
+		CODE,
+		LENGTH_HIGH,
+		LENGTH_LOW,
+		/** Inside a marker segment. */
+		SEGMENT,
+		/** Inside entropy coded data. */
+		ENTROPY,
+		/** Entropy coded data, after 0xFF. */
+		ENTROPY_FF,
+		/** After EOI. */
+		END,
+		/** Structural error, parsing stopped. */
+		ERROR
+	}
+
+	private final static int SOF0 = 0xC0, DHT = 0xC4, JPG = 0xC8, DAC = 0xCC;
+	private final static int RST0 = 0xD0, SOI_ = 0xD8, EOI = 0xD9, SOS = 0xDA, DRI = 0xDD, APP0 = 0xE0;
+
+	/** Bytes kept of a segment of interest, enough for SOF with 4 components and the JFIF header. */
+	private final static int HEADER = 18;
+
+	private final ScanDataReceiver _target;
+	private final int _dpi;
+
+	private State _state = State.START;
+	private int _marker;
+	private int _length;
+	private int _position;
+	private final byte[] _header = new byte[HEADER];
+	private long _offset;
+
+	private int _frame;
+	private int _width, _height, _precision;
+	private int _components;
+	private final int[] _sampling = new int[4];
+	private int _restartInterval;
+	private int _restarts;
+	private int _scans;
+	private boolean _jfif;
+	private boolean _patched;
+	private long _trailing;
+	private long _expected = -1;
+	private String _error;
+	/** EOI seen, also after a structural error. */
+	private boolean _eoi;
+	/** Last byte was 0xFF, to find EOI after a structural error. */
+	private boolean _ff;
+
+
+	/**
+	 * Creates a parser.
+	 *
+	 * @param target receiver of the data
+	 * @param dpi resolution to set as JFIF density, or {@code 0} to keep it
+	 */
+	public JpegMarkerParser(ScanDataReceiver target, int dpi)
+	{
+		Objects.requireNonNull(target, "target");
+		_target = target;
+		_dpi = dpi;
+	}
+
+
+	@Override
+	public void open(long length) throws IOException
+	{
+		_expected = length;
+		_target.open(length);
+	}
+
+
+	@Override
+	public void write(byte[] array, int offset, int length) throws IOException
+	{
+		parse(array, offset, length);
+		_target.write(array, offset, length);
+	}
+
+
+	@Override
+	public void close() throws IOException
+	{
+		if ( _state!=State.END && _state!=State.ERROR ) error("truncated, no EOI");
+		if ( _expected>=0 && _offset!=_expected && _error==null ) error(_offset + " of " + _expected + " bytes");
+		if ( log.isLoggable(Level.FINE) ) log.fine("close(): " + this);
+		_target.close();
+	}
+
+
+	/**
+	 * Returns {@code true} if the data was a complete jpeg with a frame header and at least one scan.
+	 */
+	public boolean isValid()
+	{
+		return _error==null && _state==State.END && _frame!=0 && _scans>0;
+	}
+
+
+	/**
+	 * Returns {@code true} if the data was cut off, that is shorter than announced by {@link #open(long)}
+	 * or without EOI. A jpeg that isn't {@link #isValid() valid} but not truncated is complete, just not well formed.
+	 */
+	public boolean isTruncated()
+	{
+		return !_eoi || _expected>=0 && _offset<_expected;
+	}
+
+
+	/**
+	 * Returns the first structural error, or {@code null}.
+	 */
+	public String getError()
+	{
+		return _error;
+	}
+
+
+	/**
+	 * Returns the frame type, e.g. {@code 0xC0} for baseline, {@code 0xC2} for progressive, {@code 0} if no frame header was seen.
+	 */
+	public int getFrameType()
+	{
+		return _frame;
+	}
+
+
+	public int getWidth()
+	{
+		return _width;
+	}
+
+
+	public int getHeight()
+	{
+		return _height;
+	}
+
+
+	public int getPrecision()
+	{
+		return _precision;
+	}
+
+
+	public int getComponents()
+	{
+		return _components;
+	}
+
+
+	/**
+	 * Returns the sampling factors of the components, e.g. {@code 2x1,1x1,1x1}.
+	 */
+	public String getSampling()
+	{
+		final StringBuilder sb = new StringBuilder();
+		for ( int i = 0; i<_components; i++ ) {
+			if ( i>0 ) sb.append(',');
+			sb.append(_sampling[i] >> 4).append('x').append(_sampling[i] & 15);
+		}
+		return sb.toString();
+	}
+
+
+	/**
+	 * Returns the restart interval in MCUs, {@code 0} if there are no restart markers.
+	 */
+	public int getRestartInterval()
+	{
+		return _restartInterval;
+	}
+
+
+	/**
+	 * Returns the number of restart markers seen.
+	 */
+	public int getRestarts()
+	{
+		return _restarts;
+	}
+
+
+	/**
+	 * Returns whether the JFIF density has been set to the resolution.
+	 */
+	public boolean isDensityPatched()
+	{
+		return _patched;
+	}
+
+
+	/**
+	 * Returns the number of bytes after EOI.
+	 */
+	public long getTrailing()
+	{
+		return _trailing;
+	}
+
+
+	@Override
+	public String toString()
+	{
+		return String.format("JpegMarkerParser [valid=%s, frame=%02X, %dx%d, precision=%d, sampling=%s, restart=%d/%d, scans=%d, jfif=%s, density=%s, trailing=%d%s]",
+			isValid(), _frame, _width, _height, _precision, getSampling(), _restartInterval, _restarts, _scans, _jfif, _patched ? _dpi : "-", _trailing,
+			_error==null ? "" : ", error=" + _error);
+	}
+
+
+	private void parse(byte[] array, int offset, int length)
+	{
+		for ( int i = offset, end = offset + length; i<end; i++, _offset++ ) {
+			final int b = array[i] & 0xFF;
+			switch (_state) {
+				case START:
+					_state = b==0xFF ? State.SOI : fail("no SOI");
+					break;
+
+				case SOI:
+					_state = b==SOI_ ? State.MARKER : fail("no SOI");
+					break;
+
+				case MARKER:
+					_state = b==0xFF ? State.CODE : fail(String.format("marker expected, got %02X", b));
+					break;
+
+				case CODE:
+					if ( b==0xFF ) break;
+					_marker = b;
+					if ( b==EOI ) _eoi = true;
+					if ( b==EOI ) _state = _scans>0 ? State.END : fail("EOI before SOS");
+					else if ( b==0x00 || b==SOI_ || b>=RST0 && b<=RST0 + 7 ) _state = fail(String.format("unexpected marker %02X", b));
+					else _state = State.LENGTH_HIGH;
+					break;
+
+				case LENGTH_HIGH:
+					_length = b << 8;
+					_state = State.LENGTH_LOW;
+					break;
+
+				case LENGTH_LOW:
+					_length = (_length | b) - 2;
+					_position = 0;
+					if ( _length<0 ) _state = fail("segment length " + (_length + 2));
+					else _state = _length==0 ? segmentEnd() : State.SEGMENT;
+					break;
+
+				case SEGMENT:
+					if ( _position<HEADER ) _header[_position] = (byte)b;
+					if ( _marker==APP0 && _jfif && _dpi>0 && _position>=7 && _position<12 ) {
+						// units (1 = dpi), x density, y density
+						array[i] = (byte)(_position==7 ? 1 : _position % 2==0 ? _dpi >> 8 : _dpi);
+						if ( _position==11 ) _patched = true;
+					}
+					if ( _marker==APP0 && _position==4 ) _jfif = _header[0]=='J' && _header[1]=='F' && _header[2]=='I' && _header[3]=='F' && _header[4]==0;
+					if ( ++_position==_length ) _state = segmentEnd();
+					break;
+
+				case ENTROPY:
+					if ( b==0xFF ) _state = State.ENTROPY_FF;
+					break;
+
+				case ENTROPY_FF:
+					if ( b==0x00 ) {
+						_state = State.ENTROPY;
+					}
+					else if ( b>=RST0 && b<=RST0 + 7 ) {
+						if ( _restartInterval==0 ) _state = fail("RST without DRI");
+						else if ( b - RST0!=(_restarts & 7) ) _state = fail(String.format("RST%d out of sequence", b - RST0));
+						else {
+							_restarts++;
+							_state = State.ENTROPY;
+						}
+					}
+					else if ( b!=0xFF ) {
+						// end of scan: EOI or next segment (progressive / multi scan), handled as marker code
+						_state = State.CODE;
+						i--;
+						_offset--;
+					}
+					break;
+
+				case END:
+					_trailing++;
+					break;
+
+				case ERROR:
+					if ( _ff && b==EOI ) _eoi = true;
+					_ff = b==0xFF;
+					break;
+			}
+		}
+	}
+
+
+	/**
+	 * Evaluates a complete marker segment and returns the next state.
+	 */
+	private State segmentEnd()
+	{
+		final int m = _marker;
+		if ( m>=SOF0 && m<=SOF0 + 15 && m!=DHT && m!=JPG && m!=DAC ) {
+			if ( _frame!=0 ) return fail("second frame header");
+			if ( _length<6 ) return fail("short SOF");
+			_frame = m;
+			_precision = _header[0] & 0xFF;
+			_height = (_header[1] & 0xFF) << 8 | _header[2] & 0xFF;
+			_width = (_header[3] & 0xFF) << 8 | _header[4] & 0xFF;
+			_components = _header[5] & 0xFF;
+			if ( _components<1 || _components>4 || _length!=6 + 3 * _components ) return fail("SOF with " + _components + " components");
+			for ( int c = 0; c<_components; c++ ) _sampling[c] = _header[6 + 3 * c + 1] & 0xFF;
+			if ( _width==0 ) return fail("width 0");
+		}
+		else if ( m==DRI ) {
+			if ( _length!=2 ) return fail("DRI length");
+			_restartInterval = (_header[0] & 0xFF) << 8 | _header[1] & 0xFF;
+		}
+		else if ( m==SOS ) {
+			if ( _frame==0 ) return fail("SOS before SOF");
+			_scans++;
+			_restarts = 0;
+			return State.ENTROPY;
+		}
+		return State.MARKER;
+	}
+
+
+	private State fail(String error)
+	{
+		error(error + " at byte " + _offset);
+		return State.ERROR;
+	}
+
+
+	private void error(String error)
+	{
+		if ( _error==null ) _error = error;
+	}
+}
@@ -0,0 +1,687 @@
+/* This file is licensed under Creative Commons License CC-CC0 1.0 (http://creativecommons.org/publicdomain/zero/1.0/).
+ *
+ * Created 2026-10-18 by bastel.
+ */
+
+package hwfs400w;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * A streaming decoder for baseline jpeg images, delivering the luminance as gray stripes of one MCU row each.
+ * <p>
+ * Only the first (luminance) component is transformed, chroma coefficients are just skipped.
+ * Memory is bounded by a single MCU row, regardless of the image size.
+ * Images with restart markers can be decoded in parallel, see {@link #decode(StripeConsumer, ForkJoinPool)}.
+ * Progressive, arithmetic coded, lossless and multi-scan images aren't supported.
+ *
+ * @author bastel
+ * @since 2026-10-18
+ */
+public final class JpegStripeDecoder
+{
+	/** Natural order index of zigzag position. */
+	final static int[] ZIGZAG = {
+		 0,  1,  8, 16,  9,  2,  3, 10, 17, 24, 32, 25, 18, 11,  4,  5,
+		12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13,  6,  7, 14, 21, 28,
+		35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51,
+		58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63 };
+
+	/** IDCT basis, {@code C(u)/2 * cos((2x+1)u*pi/16)} at {@code [u * 8 + x]}. */
+	private final static float[] IDCT = new float[64];
+
+	static {
+		for ( int u = 0; u<8; u++ ) {
+			for ( int x = 0; x<8; x++ ) {
+				IDCT[u * 8 + x] = (float)((u==0 ? Math.sqrt(0.5) : 1) / 2 * Math.cos((2 * x + 1) * u * Math.PI / 16));
+			}
+		}
+	}
+
+	private final InputStream _in;
+	private final int _dpi;
+
+	private final int[][] _quant = new int[4][];
+	private final Huffman[] _dcTables = new Huffman[4];
+	private final Huffman[] _acTables = new Huffman[4];
+	private int _restartInterval;
+	private int _jfifDpi;
+
+	private int _width, _height;
+	private int _components;
+	private int[] _id, _h, _v, _tq;
+	private int _hmax, _vmax;
+
+
+	/**
+	 * @param in jpeg data
+	 * @param dpi resolution reported to the consumer, {@code 0} to use the JFIF density
+	 */
+	public JpegStripeDecoder(InputStream in, int dpi)
+	{
+		_in = in instanceof BufferedInputStream ? in : new BufferedInputStream(in, 65536);
+		_dpi = dpi;
+	}
+
+
+	/**
+	 * Decodes the image sequentially.
+	 *
+	 * @throws IOException if the data can't be read or isn't a supported jpeg.
+	 */
+	public void decode(StripeConsumer consumer) throws IOException
+	{
+		decode(consumer, null);
+	}
+
+
+	/**
+	 * Decodes the image, in parallel if it has restart markers.
+	 * <p>
+	 * Restart markers reset the entropy decoder, so the data between them can be decoded independently.
+	 * The entropy coded data is read into memory, split at restart markers that start an MCU row,
+	 * and chunks of MCU rows are decoded as pool tasks. Stripes are delivered in order on the calling thread,
+	 * each spanning a chunk. Without restart markers, or if they don't start enough MCU rows, the image is decoded sequentially.
+	 *
+	 * @param pool pool to decode on, {@code null} to decode sequentially
+	 * @throws IOException if the data can't be read or isn't a supported jpeg.
+	 */
+	public void decode(StripeConsumer consumer, ForkJoinPool pool) throws IOException
+	{
+		if ( read()!=0xff || read()!=0xd8 ) throw new IOException("Not a jpeg");
+		boolean frame = false;
+		while ( true ) {
+			final int marker = nextMarker();
+			switch (marker) {
+				case 0xc0: // SOF0 baseline
+				case 0xc1: // SOF1 extended sequential, huffman
+					readFrame();
+					frame = true;
+					break;
+
+				case 0xc4:
+					readHuffmanTables();
+					break;
+
+				case 0xdb:
+					readQuantTables();
+					break;
+
+				case 0xdd:
+					readLength();
+					_restartInterval = read2();
+					break;
+
+				case 0xe0:
+					readJfif();
+					break;
+
+				case 0xda:
+					if ( !frame ) throw new IOException("Scan before frame");
+					readScan(consumer, pool);
+					consumer.end();
+					return;
+
+				case 0xd9:
+					throw new IOException("No scan");
+
+				default:
+					if ( marker>=0xc0 && marker<=0xcf && marker!=0xc4 && marker!=0xc8 && marker!=0xcc ) {
+						throw new IOException(String.format("Unsupported jpeg (SOF%d)", marker - 0xc0));
+					}
+					skip(readLength());
+			}
+		}
+	}
+
+
+	private void readFrame() throws IOException
+	{
+		readLength();
+		if ( read()!=8 ) throw new IOException("Unsupported jpeg precision");
+		_height = read2();
+		_width = read2();
+		_components = read();
+		if ( _height==0 || _width==0 || (_components!=1 && _components!=3) ) throw new IOException("Unsupported jpeg frame " + _width + "x" + _height + "x" + _components);
+		_id = new int[_components];
+		_h = new int[_components];
+		_v = new int[_components];
+		_tq = new int[_components];
+		_hmax = _vmax = 1;
+		for ( int c = 0; c<_components; c++ ) {
+			_id[c] = read();
+			int hv = read();
+			_h[c] = _components==1 ? 1 : hv >> 4;
+			_v[c] = _components==1 ? 1 : hv & 15;
+			_tq[c] = read() & 3;
+			if ( _h[c]<1 || _h[c]>4 || _v[c]<1 || _v[c]>4 ) throw new IOException("Invalid sampling factors");
+			_hmax = Math.max(_hmax, _h[c]);
+			_vmax = Math.max(_vmax, _v[c]);
+		}
+	}
+
+
+	private void readQuantTables() throws IOException
+	{
+		for ( int left = readLength(); left>0; ) {
+			final int pq = read();
+			final int[] table = new int[64];
+			for ( int k = 0; k<64; k++ ) table[k] = (pq >> 4)==0 ? read() : read2();
+			_quant[pq & 3] = table;
+			left -= 1 + ((pq >> 4)==0 ? 64 : 128);
+		}
+	}
+
+
+	private void readHuffmanTables() throws IOException
+	{
+		for ( int left = readLength(); left>0; ) {
+			final int tc = read();
+			final int[] counts = new int[17];
+			int total = 0;
+			for ( int l = 1; l<=16; l++ ) total += counts[l] = read();
+			final int[] values = new int[total];
+			for ( int i = 0; i<total; i++ ) values[i] = read();
+			(tc >> 4==0 ? _dcTables : _acTables)[tc & 3] = new Huffman(counts, values);
+			left -= 17 + total;
+		}
+	}
+
+
+	private void readJfif() throws IOException
+	{
+		final int length = readLength();
+		final byte[] data = new byte[length];
+		for ( int i = 0; i<length; i++ ) data[i] = (byte)read();
+		if ( length>=12 && data[0]=='J' && data[1]=='F' && data[2]=='I' && data[3]=='F' && data[4]==0 ) {
+			final int units = data[7], density = (data[8] & 0xff) << 8 | (data[9] & 0xff);
+			_jfifDpi = units==1 ? density : units==2 ? (int)Math.round(density * 2.54) : 0;
+		}
+	}
+
+
+	private void readScan(StripeConsumer consumer, ForkJoinPool pool) throws IOException
+	{
+		readLength();
+		final int n = read();
+		if ( n!=_components ) throw new IOException("Unsupported jpeg (multiple scans)");
+		final Scan scan = new Scan(n);
+		for ( int i = 0; i<n; i++ ) {
+			final int id = read(), t = read();
+			if ( id!=_id[i] ) throw new IOException("Unsupported jpeg (component order)");
+			scan.dc[i] = _dcTables[t >> 4];
+			scan.ac[i] = _acTables[t & 15 & 3];
+			scan.quant[i] = _quant[_tq[i]];
+			if ( scan.dc[i]==null || scan.ac[i]==null || scan.quant[i]==null ) throw new IOException("Missing jpeg table");
+		}
+		skip(3);
+
+		consumer.begin(_width, _height, _dpi>0 ? _dpi : _jfifDpi);
+		if ( pool!=null && _restartInterval>0 ) decodeParallel(scan, consumer, pool);
+		else decodeRows(scan, new Entropy(_in), 0, scan.mcusY, consumer, null);
+	}
+
+
+	/**
+	 * Decodes MCU rows sequentially, delivering each row as a stripe to the consumer,
+	 * or into consecutive rows of {@code out}.
+	 */
+	private void decodeRows(Scan scan, Entropy entropy, int from, int to, StripeConsumer consumer, byte[] out) throws IOException
+	{
+		final byte[] plane = new byte[scan.planeWidth * scan.planeRows];
+		final byte[] stripe = out!=null ? out : scan.direct ? plane : new byte[_width * scan.mcuHeight];
+		final int[] block = new int[64];
+		final float[] work = new float[64];
+		final int[] pred = new int[scan.n];
+		for ( int my = from; my<to; my++ ) {
+			final int offset = out==null ? 0 : (my - from) * scan.mcuHeight * _width;
+			final int y = my * scan.mcuHeight, rows = Math.min(scan.mcuHeight, _height - y);
+			if ( scan.direct ) {
+				decodeRow(scan, entropy, my, pred, block, work, stripe, offset);
+			}
+			else {
+				decodeRow(scan, entropy, my, pred, block, work, plane, 0);
+				for ( int r = 0; r<rows; r++ ) {
+					final int src = r * _v[0] / _vmax * scan.planeWidth, dst = offset + r * _width;
+					if ( _h[0]==_hmax ) System.arraycopy(plane, src, stripe, dst, _width);
+					else for ( int x = 0; x<_width; x++ ) stripe[dst + x] = plane[src + x * _h[0] / _hmax];
+				}
+			}
+			if ( consumer!=null ) consumer.stripe(stripe, 0, y, rows);
+		}
+	}
+
+
+	/**
+	 * Decodes the luminance of an MCU row into the plane, skipping chroma.
+	 */
+	private void decodeRow(Scan scan, Entropy entropy, int my, int[] pred, int[] block, float[] work, byte[] plane, int offset) throws IOException
+	{
+		for ( int mx = 0, mcu = my * scan.mcusX; mx<scan.mcusX; mx++, mcu++ ) {
+			if ( _restartInterval>0 && mcu>0 && mcu % _restartInterval==0 ) entropy.restart(pred);
+			for ( int c = 0; c<scan.n; c++ ) {
+				for ( int by = 0; by<_v[c]; by++ ) {
+					for ( int bx = 0; bx<_h[c]; bx++ ) {
+						if ( c==0 ) {
+							pred[0] = entropy.decodeBlock(scan.dc[0], scan.ac[0], pred[0], scan.quant[0], block);
+							idct(block, work, plane, offset + by * 8 * scan.planeWidth + (mx * _h[0] + bx) * 8, scan.planeWidth);
+						}
+						else {
+							pred[c] = entropy.decodeBlock(scan.dc[c], scan.ac[c], pred[c], null, null);
+						}
+					}
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Decodes chunks of MCU rows starting at restart markers on the pool, at most two chunks per worker at a time,
+	 * and delivers them in order. Falls back to sequential decoding of the data read
+	 * if there aren't enough restart markers at MCU row starts.
+	 */
+	private void decodeParallel(Scan scan, StripeConsumer consumer, ForkJoinPool pool) throws IOException
+	{
+		final byte[] data = readFully();
+		// MCU rows between rows starting with a restart interval
+		final int step = _restartInterval / gcd(_restartInterval, scan.mcusX);
+		final int parallelism = pool.getParallelism();
+		final int chunk = Math.max(1, scan.mcusY / (parallelism * 4) / step) * step;
+		if ( parallelism<2 || chunk>=scan.mcusY ) {
+			decodeRows(scan, new Entropy(data, 0), 0, scan.mcusY, consumer, null);
+			return;
+		}
+		final int[] restarts = findRestarts(data, (scan.mcusY - 1) / chunk * chunk * scan.mcusX / _restartInterval);
+		if ( restarts==null ) {
+			decodeRows(scan, new Entropy(data, 0), 0, scan.mcusY, consumer, null);
+			return;
+		}
+
+		final ArrayDeque<ForkJoinTask<byte[]>> pending = new ArrayDeque<>();
+		int next = 0;
+		for ( int delivered = 0; delivered<scan.mcusY; delivered += chunk ) {
+			while ( next<scan.mcusY && pending.size()<parallelism * 2 ) {
+				final int from = next, to = Math.min(scan.mcusY, next + chunk);
+				final int segment = from * scan.mcusX / _restartInterval;
+				final int start = segment==0 ? 0 : restarts[segment - 1];
+				pending.add(pool.submit(() -> {
+					final byte[] out = new byte[(to - from) * scan.mcuHeight * _width];
+					decodeRows(scan, new Entropy(data, start), from, to, null, out);
+					return out;
+				}));
+				next = to;
+			}
+			final byte[] out;
+			try {
+				out = pending.remove().get();
+			}
+			catch (InterruptedException e) {
+				for ( ForkJoinTask<byte[]> t : pending ) t.cancel(false);
+				throw (InterruptedIOException)new InterruptedIOException("Interrupted decoding").initCause(e);
+			}
+			catch (ExecutionException e) {
+				for ( ForkJoinTask<byte[]> t : pending ) t.cancel(false);
+				if ( e.getCause() instanceof IOException ) throw (IOException)e.getCause();
+				throw new IOException("Decoding failed", e.getCause());
+			}
+			final int y = delivered * scan.mcuHeight;
+			consumer.stripe(out, 0, y, Math.min(chunk * scan.mcuHeight, _height - y));
+		}
+	}
+
+
+	/**
+	 * Returns the offsets of the first restart markers in the entropy coded data.
+	 *
+	 * @return offsets of the 0xFF of {@code count} restart markers, or {@code null} if there are less.
+	 */
+	private static int[] findRestarts(byte[] data, int count)
+	{
+		final int[] offsets = new int[count];
+		int found = 0;
+		for ( int i = 0; i<data.length - 1 && found<count; i++ ) {
+			if ( data[i]!=(byte)0xff ) continue;
+			final int b = data[i + 1] & 0xff;
+			if ( b>=0xd0 && b<=0xd7 ) offsets[found++] = i;
+			else if ( b!=0xff && b!=0 ) break;
+		}
+		return found==count ? offsets : null;
+	}
+
+
+	private static int gcd(int a, int b)
+	{
+		return b==0 ? a : gcd(b, a % b);
+	}
+
+
+	private byte[] readFully() throws IOException
+	{
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 20);
+		final byte[] buffer = new byte[65536];
+		for ( int r = _in.read(buffer); r>=0; r = _in.read(buffer) ) out.write(buffer, 0, r);
+		return out.toByteArray();
+	}
+
+
+	/**
+	 * Transforms a block into 8x8 pixels.
+	 */
+	static void idct(int[] block, float[] work, byte[] out, int offset, int stride)
+	{
+		boolean flat = true;
+		for ( int i = 1; i<64 && flat; i++ ) flat = block[i]==0;
+		if ( flat ) {
+			final byte value = clamp(block[0] / 8f + 128);
+			for ( int y = 0; y<8; y++ ) Arrays.fill(out, offset + y * stride, offset + y * stride + 8, value);
+			return;
+		}
+		for ( int v = 0; v<8; v++ ) {
+			for ( int x = 0; x<8; x++ ) {
+				float sum = 0;
+				for ( int u = 0; u<8; u++ ) sum += IDCT[u * 8 + x] * block[v * 8 + u];
+				work[v * 8 + x] = sum;
+			}
+		}
+		for ( int x = 0; x<8; x++ ) {
+			for ( int y = 0; y<8; y++ ) {
+				float sum = 0;
+				for ( int v = 0; v<8; v++ ) sum += IDCT[v * 8 + y] * work[v * 8 + x];
+				out[offset + y * stride + x] = clamp(sum + 128);
+			}
+		}
+	}
+
+
+	private static byte clamp(float value)
+	{
+		final int i = Math.round(value);
+		return (byte)(i<0 ? 0 : i>255 ? 255 : i);
+	}
+
+
+	private static int extend(int value, int bits)
+	{
+		return value<1 << (bits - 1) ? value - (1 << bits) + 1 : value;
+	}
+
+
+	private int nextMarker() throws IOException
+	{
+		int b;
+		while ( (b = read())!=0xff ) ;
+		while ( (b = read())==0xff ) ;
+		return b;
+	}
+
+
+	private int readLength() throws IOException
+	{
+		final int length = read2() - 2;
+		if ( length<0 ) throw new IOException("Corrupt jpeg segment");
+		return length;
+	}
+
+
+	private int read2() throws IOException
+	{
+		return read() << 8 | read();
+	}
+
+
+	private int read() throws IOException
+	{
+		final int b = _in.read();
+		if ( b<0 ) throw new EOFException("Truncated jpeg");
+		return b;
+	}
+
+
+	private void skip(int n) throws IOException
+	{
+		while ( n-->0 ) read();
+	}
+
+
+	/**
+	 * Reads entropy coded data from a stream or an array, one per thread.
+	 */
+	final static class Entropy
+	{
+		private final InputStream _in;
+		private final byte[] _data;
+		private int _position;
+
+		/** Bit buffer state, the marker that ended the data or {@code -1}. */
+		private int _bits, _count, _marker = -1;
+
+
+		Entropy(InputStream in)
+		{
+			_in = in;
+			_data = null;
+		}
+
+
+		Entropy(byte[] data, int position)
+		{
+			_in = null;
+			_data = data;
+			_position = position;
+		}
+
+
+		/**
+		 * Expects a restart marker and resets the decoder state.
+		 */
+		void restart(int[] pred) throws IOException
+		{
+			_bits = _count = 0;
+			if ( _marker<0 ) {
+				int b;
+				do {
+					while ( (b = read())!=0xff ) ;
+					while ( (b = read())==0xff ) ;
+				} while ( b==0 );
+				_marker = b;
+			}
+			if ( _marker<0xd0 || _marker>0xd7 ) throw new IOException(String.format("Expected restart marker, got %02x", _marker));
+			_marker = -1;
+			Arrays.fill(pred, 0);
+		}
+
+
+		/**
+		 * Decodes a block's coefficients, dequantized in natural order if {@code quant!=null}.
+		 *
+		 * @return the new dc predictor
+		 */
+		int decodeBlock(Huffman dc, Huffman ac, int pred, int[] quant, int[] block) throws IOException
+		{
+			int t = decode(dc);
+			pred += t==0 ? 0 : extend(bits(t), t);
+			if ( quant!=null ) {
+				Arrays.fill(block, 0);
+				block[0] = pred * quant[0];
+			}
+			for ( int k = 1; k<64; ) {
+				final int rs = decode(ac), r = rs >> 4, s = rs & 15;
+				if ( s==0 ) {
+					if ( r!=15 ) break;
+					k += 16;
+					continue;
+				}
+				k += r;
+				if ( k>63 ) throw new IOException("Corrupt jpeg data");
+				final int value = extend(bits(s), s);
+				if ( quant!=null ) block[ZIGZAG[k]] = value * quant[k];
+				k++;
+			}
+			return pred;
+		}
+
+
+		/**
+		 * Decodes a block's quantized coefficients in zigzag order into {@code out}, with the absolute dc value.
+		 * The coefficients not coded must already be zero.
+		 *
+		 * @return the new dc predictor
+		 */
+		int decodeCoefficients(Huffman dc, Huffman ac, int pred, short[] out, int offset) throws IOException
+		{
+			final int t = decode(dc);
+			pred += t==0 ? 0 : extend(bits(t), t);
+			out[offset] = (short)pred;
+			for ( int k = 1; k<64; ) {
+				final int rs = decode(ac), r = rs >> 4, s = rs & 15;
+				if ( s==0 ) {
+					if ( r!=15 ) break;
+					k += 16;
+					continue;
+				}
+				k += r;
+				if ( k>63 ) throw new IOException("Corrupt jpeg data");
+				out[offset + k++] = (short)extend(bits(s), s);
+			}
+			return pred;
+		}
+
+
+		/**
+		 * Decodes a huffman coded value.
+		 */
+		private int decode(Huffman table) throws IOException
+		{
+			if ( _count<16 ) fill();
+			final int fast = table.fast[_bits >>> (_count - Huffman.FAST) & (1 << Huffman.FAST) - 1];
+			if ( fast!=0 ) {
+				_count -= fast >> 8;
+				return fast & 0xff;
+			}
+			for ( int l = Huffman.FAST + 1; l<=16; l++ ) {
+				final int code = _bits >>> (_count - l) & (1 << l) - 1;
+				if ( code<=table.max[l] ) {
+					_count -= l;
+					return table.values[table.offset[l] + code];
+				}
+			}
+			throw new IOException("Corrupt jpeg data (huffman code)");
+		}
+
+
+		private int bits(int n) throws IOException
+		{
+			if ( _count<n ) fill();
+			_count -= n;
+			return _bits >>> _count & (1 << n) - 1;
+		}
+
+
+		/**
+		 * Fills the bit buffer to more than 24 bits, with zero bits once a marker has been reached.
+		 */
+		private void fill() throws IOException
+		{
+			while ( _count<=24 ) {
+				int b = 0;
+				if ( _marker<0 ) {
+					b = read();
+					if ( b==0xff ) {
+						int next;
+						while ( (next = read())==0xff ) ;
+						if ( next!=0 ) {
+							_marker = next;
+							b = 0;
+						}
+					}
+				}
+				_bits = _bits << 8 | b;
+				_count += 8;
+			}
+		}
+
+
+		private int read() throws IOException
+		{
+			final int b = _data!=null ? (_position<_data.length ? _data[_position++] & 0xff : -1) : _in.read();
+			if ( b<0 ) throw new EOFException("Truncated jpeg");
+			return b;
+		}
+	}
+
+
+	/**
+	 * Parameters of the scan.
+	 */
+	private final class Scan
+	{
+		final int n;
+		final Huffman[] dc, ac;
+		final int[][] quant;
+		final int mcuWidth = 8 * _hmax, mcuHeight = 8 * _vmax;
+		final int mcusX = (_width + mcuWidth - 1) / mcuWidth, mcusY = (_height + mcuHeight - 1) / mcuHeight;
+		final int planeWidth = mcusX * _h[0] * 8, planeRows = _v[0] * 8;
+
+		/** Luminance is full resolution and has no padding, so it's decoded right into the stripe. */
+		final boolean direct = _h[0]==_hmax && _v[0]==_vmax && planeWidth==_width;
+
+
+		Scan(int n)
+		{
+			this.n = n;
+			dc = new Huffman[n];
+			ac = new Huffman[n];
+			quant = new int[n][];
+		}
+	}
+
+
+	/**
+	 * A huffman table with a lookup table for short codes.
+	 */
+	static final class Huffman
+	{
+		/** Code length resolved by lookup. */
+		final static int FAST = 9;
+
+		/** {@code length << 8 | value} by the next {@value #FAST} bits, {@code 0} for longer codes. */
+		final int[] fast = new int[1 << FAST];
+
+		/** Largest code by length, {@code -1} if none. */
+		final int[] max = new int[17];
+
+		/** Index of the first value of a length minus its first code. */
+		final int[] offset = new int[17];
+
+		final int[] values;
+
+
+		Huffman(int[] counts, int[] values)
+		{
+			this.values = values;
+			int code = 0, index = 0;
+			for ( int l = 1; l<=16; l++ ) {
+				offset[l] = index - code;
+				for ( int i = 0; i<counts[l]; i++, code++, index++ ) {
+					if ( l<=FAST ) {
+						final int shift = FAST - l;
+						for ( int j = 0; j<1 << shift; j++ ) fast[code << shift | j] = l << 8 | values[index];
+					}
+				}
+				max[l] = counts[l]==0 ? -1 : code - 1;
+				code <<= 1;
+			}
+		}
+	}
+}
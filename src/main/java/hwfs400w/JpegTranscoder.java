@@ -0,0 +1,844 @@
+/* This file is licensed under Creative Commons License CC-CC0 1.0 (http://creativecommons.org/publicdomain/zero/1.0/).
+ *
+ * Created 2026-10-18 by bastel.
+ */
+
+package hwfs400w;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hwfs400w.JpegStripeDecoder.Entropy;
+import hwfs400w.JpegStripeDecoder.Huffman;
+
+/**
+ * Lossless transcoding of baseline jpeg images to progressive jpeg, or to baseline jpeg with optimized huffman tables.
+ * <p>
+ * Like {@code jpegtran -optimize} and {@code -progressive}, the quantized DCT coefficients are read and entropy coded again,
+ * so the image stays bit-exact while the file typically shrinks by 5-10%. The huffman tables of each scan are generated
+ * from its symbol statistics, gathered in a first pass. Progressive output uses the scan script of libjpeg's
+ * {@code jpeg_simple_progression}, so browsers paint a coarse image of the whole page early and refine it.
+ * Restart markers are kept in baseline output, progressive output has none. All other segments are copied.
+ * <p>
+ * The coefficients of the whole image are held in memory, 128 bytes per block, e.g. 26 MB for an A4 page at 300 dpi with 4:2:0 sampling.
+ * Only single scan, 8 bit, huffman coded images with one or three components are supported, as written by the scanner.
+ *
+ * @author bastel
+ * @since 2026-10-18
+ */
+public final class JpegTranscoder
+{
+	private final static Logger log = Logger.getLogger(JpegTranscoder.class.getName());
+
+	public enum Mode
+	{
+		/** Baseline with optimized huffman tables. */
+		OPTIMIZED(".optimized.jpg"),
+		/** Progressive with optimized huffman tables. */
+		PROGRESSIVE(".progressive.jpg");
+
+		private final String _suffix;
+
+
+		private Mode(String suffix)
+		{
+			_suffix = suffix;
+		}
+
+
+		/**
+		 * Returns the file name suffix of transcoded scans, e.g. {@code .progressive.jpg}.
+		 */
+		public String suffix()
+		{
+			return _suffix;
+		}
+	}
+
+	/** Progressive scans of color images: component ({@code -1} for all), Ss, Se, Ah, Al. */
+	private final static int[][] SCRIPT_COLOR = {
+		{ -1, 0,  0, 0, 1 },
+		{  0, 1,  5, 0, 2 },
+		{  2, 1, 63, 0, 1 },
+		{  1, 1, 63, 0, 1 },
+		{  0, 6, 63, 0, 2 },
+		{  0, 1, 63, 2, 1 },
+		{ -1, 0,  0, 1, 0 },
+		{  2, 1, 63, 1, 0 },
+		{  1, 1, 63, 1, 0 },
+		{  0, 1, 63, 1, 0 } };
+
+	/** Progressive scans of gray images. */
+	private final static int[][] SCRIPT_GRAY = {
+		{ 0, 0,  0, 0, 1 },
+		{ 0, 1,  5, 0, 2 },
+		{ 0, 6, 63, 0, 2 },
+		{ 0, 1, 63, 2, 1 },
+		{ 0, 0,  0, 1, 0 },
+		{ 0, 1, 63, 1, 0 } };
+
+	private final InputStream _in;
+
+	/** Segments copied as they are, e.g. APPn and DQT. */
+	private final ByteArrayOutputStream _segments = new ByteArrayOutputStream();
+	private final Huffman[] _dcTables = new Huffman[4];
+	private final Huffman[] _acTables = new Huffman[4];
+	private int _restartInterval;
+
+	private byte[] _frame;
+	private int _frameMarker;
+	private int _width, _height;
+	private int _components;
+	private int[] _id, _h, _v, _td, _ta;
+	private int _hmax, _vmax, _mcusX, _mcusY;
+
+	/** Quantized coefficients by component in zigzag order, 64 per block, in rows of {@code _blocksX[c]} blocks. */
+	private short[][] _coefficients;
+	private int[] _blocksX;
+
+
+	private JpegTranscoder(InputStream in)
+	{
+		_in = in instanceof BufferedInputStream ? in : new BufferedInputStream(in, 65536);
+	}
+
+
+	/**
+	 * Transcodes a jpeg image.
+	 *
+	 * @param in baseline jpeg data
+	 * @param out receives the transcoded jpeg, isn't closed
+	 * @throws IOException if the data can't be read or written, or isn't a supported jpeg.
+	 */
+	public static void transcode(InputStream in, OutputStream out, Mode mode) throws IOException
+	{
+		final JpegTranscoder transcoder = new JpegTranscoder(in);
+		transcoder.read();
+		final OutputStream o = new BufferedOutputStream(out, 65536);
+		if ( mode==Mode.PROGRESSIVE ) transcoder.writeProgressive(o);
+		else transcoder.writeOptimized(o);
+		o.flush();
+	}
+
+
+	/**
+	 * Transcodes a jpeg file, unless the target already exists.
+	 * The target appears atomically once it's complete and synced, so it can serve as cache.
+	 *
+	 * @return {@code true} if transcoded, {@code false} if the target existed
+	 * @throws IOException if the files can't be read or written, or the image isn't a supported jpeg.
+	 */
+	public static boolean transcode(Path jpeg, Path target, Mode mode) throws IOException
+	{
+		if ( Files.exists(target) ) return false;
+		final long start = System.nanoTime();
+		final Path part = Files.createTempFile(target.toAbsolutePath().getParent(), "scan", ".part");
+		try {
+			try ( InputStream in = Files.newInputStream(jpeg); FileChannel file = FileChannel.open(part, StandardOpenOption.WRITE) ) {
+				transcode(in, Channels.newOutputStream(file), mode);
+				file.force(true);
+			}
+			Files.move(part, target, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally {
+			Files.deleteIfExists(part);
+		}
+		if ( log.isLoggable(Level.FINE) ) log.fine(String.format("transcode(%s): %s %,d -> %,d bytes, %d ms",
+			jpeg.getFileName(), mode, Files.size(jpeg), Files.size(target), (System.nanoTime() - start) / 1000000L));
+		return true;
+	}
+
+
+	private void read() throws IOException
+	{
+		if ( read1()!=0xff || read1()!=0xd8 ) throw new IOException("Not a jpeg");
+		while ( true ) {
+			final int marker = nextMarker();
+			switch (marker) {
+				case 0xc0: // SOF0 baseline
+				case 0xc1: // SOF1 extended sequential, huffman
+					readFrame(marker);
+					break;
+
+				case 0xc4:
+					readHuffmanTables();
+					break;
+
+				case 0xdd:
+					readLength();
+					_restartInterval = read2();
+					break;
+
+				case 0xda:
+					if ( _frame==null ) throw new IOException("Scan before frame");
+					readScan();
+					return;
+
+				case 0xd9:
+					throw new IOException("No scan");
+
+				default:
+					if ( marker>=0xc0 && marker<=0xcf && marker!=0xc8 && marker!=0xcc ) {
+						throw new IOException(String.format("Unsupported jpeg (SOF%d)", marker - 0xc0));
+					}
+					final byte[] data = new byte[readLength()];
+					readFully(data);
+					segment(_segments, marker, data);
+			}
+		}
+	}
+
+
+	private void readFrame(int marker) throws IOException
+	{
+		_frame = new byte[readLength()];
+		readFully(_frame);
+		_frameMarker = marker;
+		if ( _frame.length<6 || _frame[0]!=8 ) throw new IOException("Unsupported jpeg precision");
+		_height = (_frame[1] & 0xff) << 8 | _frame[2] & 0xff;
+		_width = (_frame[3] & 0xff) << 8 | _frame[4] & 0xff;
+		_components = _frame[5] & 0xff;
+		if ( _height==0 || _width==0 || (_components!=1 && _components!=3) || _frame.length!=6 + 3 * _components ) {
+			throw new IOException("Unsupported jpeg frame " + _width + "x" + _height + "x" + _components);
+		}
+		_id = new int[_components];
+		_h = new int[_components];
+		_v = new int[_components];
+		_td = new int[_components];
+		_ta = new int[_components];
+		_hmax = _vmax = 1;
+		for ( int c = 0; c<_components; c++ ) {
+			_id[c] = _frame[6 + 3 * c] & 0xff;
+			final int hv = _frame[7 + 3 * c] & 0xff;
+			_h[c] = _components==1 ? 1 : hv >> 4;
+			_v[c] = _components==1 ? 1 : hv & 15;
+			if ( _h[c]<1 || _h[c]>4 || _v[c]<1 || _v[c]>4 ) throw new IOException("Invalid sampling factors");
+			_hmax = Math.max(_hmax, _h[c]);
+			_vmax = Math.max(_vmax, _v[c]);
+		}
+		_mcusX = (_width + 8 * _hmax - 1) / (8 * _hmax);
+		_mcusY = (_height + 8 * _vmax - 1) / (8 * _vmax);
+		_blocksX = new int[_components];
+		_coefficients = new short[_components][];
+		for ( int c = 0; c<_components; c++ ) {
+			_blocksX[c] = _mcusX * _h[c];
+			_coefficients[c] = new short[_blocksX[c] * _mcusY * _v[c] * 64];
+		}
+	}
+
+
+	private void readHuffmanTables() throws IOException
+	{
+		for ( int left = readLength(); left>0; ) {
+			final int tc = read1();
+			final int[] counts = new int[17];
+			int total = 0;
+			for ( int l = 1; l<=16; l++ ) total += counts[l] = read1();
+			final int[] values = new int[total];
+			for ( int i = 0; i<total; i++ ) values[i] = read1();
+			(tc >> 4==0 ? _dcTables : _acTables)[tc & 3] = new Huffman(counts, values);
+			left -= 17 + total;
+		}
+	}
+
+
+	/**
+	 * Reads the coefficients of the interleaved baseline scan.
+	 */
+	private void readScan() throws IOException
+	{
+		readLength();
+		final int n = read1();
+		if ( n!=_components ) throw new IOException("Unsupported jpeg (multiple scans)");
+		final Huffman[] dc = new Huffman[n], ac = new Huffman[n];
+		for ( int i = 0; i<n; i++ ) {
+			final int id = read1(), t = read1();
+			if ( id!=_id[i] ) throw new IOException("Unsupported jpeg (component order)");
+			_td[i] = t >> 4 & 3;
+			_ta[i] = t & 3;
+			dc[i] = _dcTables[_td[i]];
+			ac[i] = _acTables[_ta[i]];
+			if ( dc[i]==null || ac[i]==null ) throw new IOException("Missing jpeg table");
+		}
+		skip(3);
+
+		final Entropy entropy = new Entropy(_in);
+		final int[] pred = new int[n];
+		for ( int my = 0, mcu = 0; my<_mcusY; my++ ) {
+			for ( int mx = 0; mx<_mcusX; mx++, mcu++ ) {
+				if ( _restartInterval>0 && mcu>0 && mcu % _restartInterval==0 ) entropy.restart(pred);
+				for ( int c = 0; c<n; c++ ) {
+					for ( int by = 0; by<_v[c]; by++ ) {
+						for ( int bx = 0; bx<_h[c]; bx++ ) {
+							final int offset = ((my * _v[c] + by) * _blocksX[c] + mx * _h[c] + bx) * 64;
+							pred[c] = entropy.decodeCoefficients(dc[c], ac[c], pred[c], _coefficients[c], offset);
+						}
+					}
+				}
+			}
+		}
+	}
+
+
+	private void writeOptimized(OutputStream out) throws IOException
+	{
+		writeHeader(out, _frameMarker);
+		final int[] all = all();
+		final Table[] dc = tables(all, _td, 0), ac = tables(all, _ta, 1);
+		scan(new Encoder(null), all, 0, 63, 0, 0, dc, ac, _restartInterval);
+		writeTables(out, dc, ac);
+		if ( _restartInterval>0 ) segment(out, 0xdd, new byte[] { (byte)(_restartInterval >> 8), (byte)_restartInterval });
+		writeScanHeader(out, all, 0, 63, 0, 0, true, true);
+		scan(new Encoder(out), all, 0, 63, 0, 0, dc, ac, _restartInterval);
+		out.write(0xff);
+		out.write(0xd9);
+	}
+
+
+	private void writeProgressive(OutputStream out) throws IOException
+	{
+		writeHeader(out, 0xc2);
+		for ( int[] s : _components==1 ? SCRIPT_GRAY : SCRIPT_COLOR ) {
+			final int[] comps = s[0]<0 ? all() : new int[] { s[0] };
+			final int ss = s[1], se = s[2], ah = s[3], al = s[4];
+			// dc refinement bits aren't huffman coded
+			final Table[] dc = ss==0 && ah==0 ? tables(comps, _td, 0) : null;
+			final Table[] ac = ss>0 ? tables(comps, _ta, 1) : null;
+			if ( dc!=null || ac!=null ) scan(new Encoder(null), comps, ss, se, ah, al, dc, ac, 0);
+			writeTables(out, dc, ac);
+			writeScanHeader(out, comps, ss, se, ah, al, dc!=null, ac!=null);
+			scan(new Encoder(out), comps, ss, se, ah, al, dc, ac, 0);
+		}
+		out.write(0xff);
+		out.write(0xd9);
+	}
+
+
+	private int[] all()
+	{
+		final int[] all = new int[_components];
+		for ( int c = 0; c<_components; c++ ) all[c] = c;
+		return all;
+	}
+
+
+	/**
+	 * Encodes a scan, or gathers its symbol statistics.
+	 *
+	 * @param comps components of the scan, interleaved if more than one
+	 * @param dc dc tables of the components, {@code null} if not used
+	 * @param ac ac tables of the components, {@code null} if not used
+	 * @param interval restart interval, {@code 0} for none
+	 */
+	private void scan(Encoder e, int[] comps, int ss, int se, int ah, int al, Table[] dc, Table[] ac, int interval) throws IOException
+	{
+		final int[] pred = new int[comps.length];
+		int mcu = 0, restarts = 0;
+		if ( comps.length==1 ) {
+			// non-interleaved: the component's blocks, without the padding to whole MCUs
+			final int c = comps[0];
+			final int blocksX = ((_width * _h[c] + _hmax - 1) / _hmax + 7) / 8, blocksY = ((_height * _v[c] + _vmax - 1) / _vmax + 7) / 8;
+			for ( int by = 0; by<blocksY; by++ ) {
+				for ( int bx = 0; bx<blocksX; bx++, mcu++ ) {
+					if ( interval>0 && mcu>0 && mcu % interval==0 ) {
+						e.restart(restarts++);
+						Arrays.fill(pred, 0);
+					}
+					block(e, c, (by * _blocksX[c] + bx) * 64, 0, pred, ss, se, ah, al, dc, ac);
+				}
+			}
+		}
+		else {
+			for ( int my = 0; my<_mcusY; my++ ) {
+				for ( int mx = 0; mx<_mcusX; mx++, mcu++ ) {
+					if ( interval>0 && mcu>0 && mcu % interval==0 ) {
+						e.restart(restarts++);
+						Arrays.fill(pred, 0);
+					}
+					for ( int i = 0; i<comps.length; i++ ) {
+						final int c = comps[i];
+						for ( int by = 0; by<_v[c]; by++ ) {
+							for ( int bx = 0; bx<_h[c]; bx++ ) {
+								block(e, c, ((my * _v[c] + by) * _blocksX[c] + mx * _h[c] + bx) * 64, i, pred, ss, se, ah, al, dc, ac);
+							}
+						}
+					}
+				}
+			}
+		}
+		e.finish();
+	}
+
+
+	private void block(Encoder e, int c, int offset, int i, int[] pred, int ss, int se, int ah, int al, Table[] dc, Table[] ac) throws IOException
+	{
+		final short[] coefficients = _coefficients[c];
+		if ( ss==0 && se==63 ) {
+			e.sequential(dc[i], ac[i], coefficients[offset] - pred[i], coefficients, offset);
+			pred[i] = coefficients[offset];
+		}
+		else if ( ss==0 && ah==0 ) {
+			final int value = coefficients[offset] >> al;
+			e.dc(dc[i], value - pred[i]);
+			pred[i] = value;
+		}
+		else if ( ss==0 ) {
+			e.bits(coefficients[offset] >> al & 1, 1);
+		}
+		else if ( ah==0 ) {
+			e.acFirst(ac[i], coefficients, offset, ss, se, al);
+		}
+		else {
+			e.acRefine(ac[i], coefficients, offset, ss, se, al);
+		}
+	}
+
+
+	/**
+	 * Returns tables of a class for the components, one per table slot.
+	 */
+	private static Table[] tables(int[] comps, int[] slots, int cls)
+	{
+		final Table[] bySlot = new Table[4], tables = new Table[comps.length];
+		for ( int i = 0; i<comps.length; i++ ) {
+			final int slot = slots[comps[i]];
+			if ( bySlot[slot]==null ) bySlot[slot] = new Table(cls, slot);
+			tables[i] = bySlot[slot];
+		}
+		return tables;
+	}
+
+
+	private void writeHeader(OutputStream out, int frameMarker) throws IOException
+	{
+		out.write(0xff);
+		out.write(0xd8);
+		_segments.writeTo(out);
+		segment(out, frameMarker, _frame);
+	}
+
+
+	/**
+	 * Generates the tables from their statistics and writes them, each once.
+	 */
+	private static void writeTables(OutputStream out, Table[] dc, Table[] ac) throws IOException
+	{
+		final List<Table> tables = new ArrayList<>();
+		for ( Table[] group : new Table[][] { dc, ac } ) {
+			if ( group==null ) continue;
+			for ( Table t : group ) {
+				if ( !tables.contains(t) ) tables.add(t);
+			}
+		}
+		if ( tables.isEmpty() ) return;
+		final ByteArrayOutputStream data = new ByteArrayOutputStream();
+		for ( Table t : tables ) {
+			t.generate();
+			data.write(t.cls << 4 | t.slot);
+			data.write(t.bits, 1, 16);
+			data.write(t.values);
+		}
+		segment(out, 0xc4, data.toByteArray());
+	}
+
+
+	private void writeScanHeader(OutputStream out, int[] comps, int ss, int se, int ah, int al, boolean dc, boolean ac) throws IOException
+	{
+		final byte[] data = new byte[1 + 2 * comps.length + 3];
+		data[0] = (byte)comps.length;
+		for ( int i = 0; i<comps.length; i++ ) {
+			data[1 + 2 * i] = (byte)_id[comps[i]];
+			data[2 + 2 * i] = (byte)((dc ? _td[comps[i]] : 0) << 4 | (ac ? _ta[comps[i]] : 0));
+		}
+		data[data.length - 3] = (byte)ss;
+		data[data.length - 2] = (byte)se;
+		data[data.length - 1] = (byte)(ah << 4 | al);
+		segment(out, 0xda, data);
+	}
+
+
+	private static void segment(OutputStream out, int marker, byte[] data) throws IOException
+	{
+		out.write(0xff);
+		out.write(marker);
+		out.write(data.length + 2 >> 8);
+		out.write(data.length + 2);
+		out.write(data);
+	}
+
+
+	private int nextMarker() throws IOException
+	{
+		int b;
+		while ( (b = read1())!=0xff ) ;
+		while ( (b = read1())==0xff ) ;
+		return b;
+	}
+
+
+	private int readLength() throws IOException
+	{
+		final int length = read2() - 2;
+		if ( length<0 ) throw new IOException("Corrupt jpeg segment");
+		return length;
+	}
+
+
+	private int read2() throws IOException
+	{
+		return read1() << 8 | read1();
+	}
+
+
+	private int read1() throws IOException
+	{
+		final int b = _in.read();
+		if ( b<0 ) throw new EOFException("Truncated jpeg");
+		return b;
+	}
+
+
+	private void readFully(byte[] data) throws IOException
+	{
+		for ( int n = 0, r; n<data.length; n += r ) {
+			if ( (r = _in.read(data, n, data.length - n))<0 ) throw new EOFException("Truncated jpeg");
+		}
+	}
+
+
+	private void skip(int n) throws IOException
+	{
+		while ( n-->0 ) read1();
+	}
+
+
+	private static int bitLength(int value)
+	{
+		return 32 - Integer.numberOfLeadingZeros(value);
+	}
+
+
+	/**
+	 * A huffman table being built, symbol counts first, then codes.
+	 */
+	private final static class Table
+	{
+		final int cls, slot;
+
+		/** Symbol counts, the last entry is reserved. */
+		final int[] counts = new int[257];
+
+		/** Code and code length by symbol. */
+		final int[] code = new int[256], size = new int[256];
+
+		/** Number of codes by length, and symbols by code, as in DHT. */
+		final byte[] bits = new byte[17];
+		byte[] values;
+
+
+		Table(int cls, int slot)
+		{
+			this.cls = cls;
+			this.slot = slot;
+		}
+
+
+		/**
+		 * Generates the optimal table with codes of at most 16 bits, as {@code jpeg_gen_optimal_table} of libjpeg (JPEG spec K.2).
+		 */
+		void generate()
+		{
+			final int[] freq = counts.clone(), codesize = new int[257], others = new int[257];
+			Arrays.fill(others, -1);
+			// the reserved symbol gets the longest code, so no code is all ones
+			freq[256] = 1;
+			boolean used = false;
+			for ( int i = 0; i<256 && !used; i++ ) used = freq[i]>0;
+			if ( !used ) freq[0] = 1;
+			while ( true ) {
+				int c1 = -1, c2 = -1;
+				long least = Long.MAX_VALUE;
+				for ( int i = 0; i<=256; i++ ) {
+					if ( freq[i]>0 && freq[i]<=least ) {
+						least = freq[i];
+						c1 = i;
+					}
+				}
+				least = Long.MAX_VALUE;
+				for ( int i = 0; i<=256; i++ ) {
+					if ( freq[i]>0 && freq[i]<=least && i!=c1 ) {
+						least = freq[i];
+						c2 = i;
+					}
+				}
+				if ( c2<0 ) break;
+				freq[c1] += freq[c2];
+				freq[c2] = 0;
+				codesize[c1]++;
+				while ( others[c1]>=0 ) codesize[c1 = others[c1]]++;
+				others[c1] = c2;
+				codesize[c2]++;
+				while ( others[c2]>=0 ) codesize[c2 = others[c2]]++;
+			}
+
+			final int[] lengths = new int[258];
+			for ( int i = 0; i<=256; i++ ) lengths[codesize[i]]++;
+			lengths[0] = 0;
+			for ( int i = 257; i>16; i-- ) {
+				while ( lengths[i]>0 ) {
+					int j = i - 2;
+					while ( lengths[j]==0 ) j--;
+					lengths[i] -= 2;
+					lengths[i - 1]++;
+					lengths[j + 1] += 2;
+					lengths[j]--;
+				}
+			}
+			int last = 16;
+			while ( lengths[last]==0 ) last--;
+			lengths[last]--;
+
+			int total = 0;
+			for ( int l = 1; l<=16; l++ ) total += bits[l] = (byte)lengths[l];
+			values = new byte[total];
+			int p = 0;
+			for ( int l = 1; l<=257; l++ ) {
+				for ( int s = 0; s<256; s++ ) {
+					if ( codesize[s]==l ) values[p++] = (byte)s;
+				}
+			}
+			for ( int l = 1, k = 0, c = 0; l<=16; l++, c <<= 1 ) {
+				for ( int i = 0; i<lengths[l]; i++, k++, c++ ) {
+					code[values[k] & 0xff] = c;
+					size[values[k] & 0xff] = l;
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Entropy encoder for one scan as libjpeg's {@code jchuff.c} and {@code jcphuff.c},
+	 * or symbol counter if there's no output.
+	 */
+	private final static class Encoder
+	{
+		/** Maximum correction bits buffered for an EOB run. */
+		private final static int MAX_CORRECTION_BITS = 1000;
+
+		/** Output, {@code null} to gather statistics. */
+		private final OutputStream _out;
+		private int _bits, _count;
+
+		/** Pending EOB run of progressive ac scans, with its table and correction bits. */
+		private int _eobRun;
+		private Table _eobTable;
+		private final byte[] _corrections = new byte[MAX_CORRECTION_BITS];
+		private int _correctionCount;
+		private final int[] _absolute = new int[64];
+
+
+		Encoder(OutputStream out)
+		{
+			_out = out;
+		}
+
+
+		/**
+		 * Encodes a block of a sequential scan.
+		 */
+		void sequential(Table dc, Table ac, int diff, short[] coefficients, int offset) throws IOException
+		{
+			dc(dc, diff);
+			int run = 0;
+			for ( int k = 1; k<64; k++ ) {
+				final int value = coefficients[offset + k];
+				if ( value==0 ) {
+					run++;
+					continue;
+				}
+				while ( run>15 ) {
+					symbol(ac, 0xf0);
+					run -= 16;
+				}
+				value(ac, run, value);
+				run = 0;
+			}
+			if ( run>0 ) symbol(ac, 0x00);
+		}
+
+
+		/**
+		 * Encodes a dc difference.
+		 */
+		void dc(Table table, int diff) throws IOException
+		{
+			final int n = bitLength(Math.abs(diff));
+			symbol(table, n);
+			if ( n>0 ) bits(diff<0 ? diff - 1 : diff, n);
+		}
+
+
+		/**
+		 * Encodes the first bits of a band of ac coefficients, runs of empty bands are coded together.
+		 */
+		void acFirst(Table table, short[] coefficients, int offset, int ss, int se, int al) throws IOException
+		{
+			_eobTable = table;
+			int run = 0;
+			for ( int k = ss; k<=se; k++ ) {
+				int value = coefficients[offset + k];
+				// point transform of the magnitude, rounding towards zero
+				value = value<0 ? -(-value >> al) : value >> al;
+				if ( value==0 ) {
+					run++;
+					continue;
+				}
+				endRun();
+				while ( run>15 ) {
+					symbol(table, 0xf0);
+					run -= 16;
+				}
+				value(table, run, value);
+				run = 0;
+			}
+			if ( run>0 && ++_eobRun==0x7fff ) endRun();
+		}
+
+
+		/**
+		 * Encodes the next bit of a band of ac coefficients: coefficients becoming nonzero are coded like {@link #acFirst},
+		 * correction bits of coefficients already nonzero are buffered until the next coded symbol.
+		 */
+		void acRefine(Table table, short[] coefficients, int offset, int ss, int se, int al) throws IOException
+		{
+			_eobTable = table;
+			final int[] absolute = _absolute;
+			int eob = 0;
+			for ( int k = ss; k<=se; k++ ) {
+				absolute[k] = Math.abs(coefficients[offset + k]) >> al;
+				if ( absolute[k]==1 ) eob = k;
+			}
+			int run = 0, start = _correctionCount, pending = 0;
+			for ( int k = ss; k<=se; k++ ) {
+				final int value = absolute[k];
+				if ( value==0 ) {
+					run++;
+					continue;
+				}
+				while ( run>15 && k<=eob ) {
+					endRun();
+					symbol(table, 0xf0);
+					run -= 16;
+					buffered(start, pending);
+					start = pending = 0;
+				}
+				if ( value>1 ) {
+					_corrections[start + pending++] = (byte)(value & 1);
+					continue;
+				}
+				endRun();
+				symbol(table, run << 4 | 1);
+				bits(coefficients[offset + k]<0 ? 0 : 1, 1);
+				buffered(start, pending);
+				start = pending = 0;
+				run = 0;
+			}
+			if ( run>0 || pending>0 ) {
+				_eobRun++;
+				_correctionCount += pending;
+				if ( _eobRun==0x7fff || _correctionCount>MAX_CORRECTION_BITS - 64 + 1 ) endRun();
+			}
+		}
+
+
+		/**
+		 * Flushes the pending EOB run and the bit buffer, and writes a restart marker.
+		 */
+		void restart(int n) throws IOException
+		{
+			finish();
+			if ( _out!=null ) {
+				_out.write(0xff);
+				_out.write(0xd0 + (n & 7));
+			}
+		}
+
+
+		/**
+		 * Flushes the pending EOB run and the bit buffer, padded with one bits.
+		 */
+		void finish() throws IOException
+		{
+			endRun();
+			if ( _count>0 ) bits(0x7f, 8 - _count);
+			_bits = _count = 0;
+		}
+
+
+		private void endRun() throws IOException
+		{
+			if ( _eobRun==0 ) return;
+			final int n = bitLength(_eobRun) - 1;
+			symbol(_eobTable, n << 4);
+			if ( n>0 ) bits(_eobRun, n);
+			_eobRun = 0;
+			buffered(0, _correctionCount);
+			_correctionCount = 0;
+		}
+
+
+		private void value(Table table, int run, int value) throws IOException
+		{
+			final int n = bitLength(Math.abs(value));
+			symbol(table, run << 4 | n);
+			bits(value<0 ? value - 1 : value, n);
+		}
+
+
+		private void symbol(Table table, int symbol) throws IOException
+		{
+			if ( _out==null ) table.counts[symbol]++;
+			else bits(table.code[symbol], table.size[symbol]);
+		}
+
+
+		private void buffered(int start, int n) throws IOException
+		{
+			if ( _out==null ) return;
+			for ( int i = start; i<start + n; i++ ) bits(_corrections[i], 1);
+		}
+
+
+		/**
+		 * Writes the lowest {@code n} bits of the value, at most 16, with byte stuffing.
+		 */
+		void bits(int value, int n) throws IOException
+		{
+			if ( _out==null ) return;
+			_bits = _bits << n | value & (1 << n) - 1;
+			_count += n;
+			while ( _count>=8 ) {
+				final int b = _bits >> (_count -= 8) & 0xff;
+				_out.write(b);
+				if ( b==0xff ) _out.write(0);
+			}
+		}
+	}
+}
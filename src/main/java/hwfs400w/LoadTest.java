@@ -0,0 +1,429 @@
+/* This file is licensed under Creative Commons License CC-CC0 1.0 (http://creativecommons.org/publicdomain/zero/1.0/).
+ *
+ * Created 2026-10-18 by bastel.
+ */
+
+package hwfs400w;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A load generator for the HTTP services, running concurrent clients against {@code status}, {@code battery} and {@code scan}.
+ * <p>
+ * Without {@code --url}, a {@link S400WSimulator} and a {@link S400WServer} using it are started in this JVM,
+ * so heap and thread figures include the server side.
+ * <p>
+ * Options ({@code --name=value}):
+ * <ul>
+ * <li>{@code url}: service root, e.g. {@code http://localhost:8400/s400w/}, default is the in-process server
+ * <li>{@code scanners}: number of in-process simulators, each with its own server, clients are spread evenly, default 1
+ * <li>{@code clients}: number of concurrent clients, default 8
+ * <li>{@code duration}: measured seconds, default 30
+ * <li>{@code warmup}: seconds before measuring, default 5
+ * <li>{@code mix}: relative weights of operations, default {@code status:10,battery:10,scan:1}
+ * <li>{@code dpi}, {@code format}: scan parameters, default 300 and jpeg
+ * <li>{@code rate}: simulator data rate in bytes per second, default unlimited
+ * <li>{@code maxErrorRate}, {@code maxP99}: limits (fraction, milliseconds) failing the run with exit code 1
+ * </ul>
+ * The result is printed to standard out as JSON, a summary to standard error.
+ * <p>
+ * To compare platform and virtual threads (see {@link Threads}), run e.g. {@code --scanners=50 --clients=50 --rate=200000}
+ * on Java 21+ with and without {@code -Dhwfs400w.Threads.virtual=false}.
+ *
+ * @author bastel
+ * @since 2026-10-18
+ */
+public class LoadTest
+{
+	private final static String[] OPERATIONS = { "status", "battery", "scan" };
+
+	private final Map<String, String> _options;
+	private final String[] _urls;
+	private final String[] _mix;
+	private final long _warmupEnd, _end;
+	private final Jvm _jvm = new Jvm();
+
+
+	private LoadTest(Map<String, String> options, String[] urls, String[] mix, long warmup, long duration)
+	{
+		_options = options;
+		_urls = urls;
+		_mix = mix;
+		_warmupEnd = System.nanoTime() + warmup;
+		_end = _warmupEnd + duration;
+	}
+
+
+	public static void main(String[] args) throws Exception
+	{
+		final Map<String, String> options = new LinkedHashMap<>();
+		options.put("clients", "8");
+		options.put("scanners", "1");
+		options.put("duration", "30");
+		options.put("warmup", "5");
+		options.put("mix", "status:10,battery:10,scan:1");
+		options.put("dpi", "300");
+		options.put("format", "jpeg");
+		for ( String arg : args ) {
+			final int eq = arg.indexOf('=');
+			if ( !arg.startsWith("--") || eq<0 ) {
+				System.err.println("Usage: LoadTest [--url=<service root>] [--scanners=1] [--clients=8] [--duration=30] [--warmup=5] [--mix=status:10,battery:10,scan:1]"
+					+ " [--dpi=300] [--format=jpeg|progressive|g4] [--rate=<bytes/s>] [--maxErrorRate=<fraction>] [--maxP99=<ms>]");
+				System.exit(2);
+			}
+			options.put(arg.substring(2, eq), arg.substring(eq + 1));
+		}
+		Logger.getLogger(LoadTest.class.getPackage().getName()).setLevel(Level.WARNING);
+		System.exit(run(options, System.out, System.err));
+	}
+
+
+	/**
+	 * Runs a load test.
+	 *
+	 * @return {@code 0}, or {@code 1} if a limit has been exceeded
+	 */
+	static int run(Map<String, String> options, PrintStream out, PrintStream summary) throws Exception
+	{
+		final List<S400WSimulator> simulators = new ArrayList<>();
+		final List<S400WServer> servers = new ArrayList<>();
+		try {
+			final String[] urls;
+			if ( options.containsKey("url") ) {
+				urls = new String[] { options.get("url") };
+			}
+			else {
+				urls = new String[Integer.parseInt(options.get("scanners"))];
+				for ( int i = 0; i<urls.length; i++ ) {
+					final S400WSimulator simulator = new S400WSimulator(0).start();
+					simulators.add(simulator);
+					if ( options.containsKey("rate") ) simulator.bytesPerSecond = Long.parseLong(options.get("rate"));
+					final String address = simulator.getAddress();
+					final S400WServer server = new S400WServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), name -> "address".equals(name) ? address : null);
+					servers.add(server);
+					server.start();
+					urls[i] = "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + S400WServer.CONTEXT + "/";
+				}
+			}
+
+			final List<String> mix = new ArrayList<>();
+			for ( String entry : options.get("mix").split(",") ) {
+				final String[] parts = entry.trim().split(":");
+				for ( int i = Integer.parseInt(parts.length>1 ? parts[1] : "1"); i>0; i-- ) mix.add(parts[0]);
+			}
+			final LoadTest test = new LoadTest(options, urls, mix.toArray(new String[mix.size()]),
+				TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("warmup"))), TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("duration"))));
+			return test.execute(Integer.parseInt(options.get("clients")), out, summary);
+		}
+		finally {
+			for ( S400WServer server : servers ) server.stop(1);
+			for ( S400WSimulator simulator : simulators ) simulator.close();
+		}
+	}
+
+
+	private int execute(int clients, PrintStream out, PrintStream summary) throws InterruptedException
+	{
+		final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "s400w-loadtest-sampler");
+			t.setDaemon(true);
+			return t;
+		});
+		sampler.scheduleAtFixedRate(_jvm::sample, 0, 250, TimeUnit.MILLISECONDS);
+
+		final Client[] threads = new Client[clients];
+		for ( int i = 0; i<clients; i++ ) {
+			threads[i] = new Client(i);
+			threads[i].start();
+		}
+		final Map<String, Stats> total = new LinkedHashMap<>();
+		for ( Client client : threads ) {
+			client.join();
+			for ( Map.Entry<String, Stats> e : client.stats.entrySet() ) total.computeIfAbsent(e.getKey(), k -> new Stats()).add(e.getValue());
+		}
+		sampler.shutdownNow();
+		_jvm.sample();
+
+		final double seconds = Long.parseLong(_options.get("duration"));
+		final StringBuilder json = new StringBuilder(2048).append("{\"config\":{");
+		boolean first = true;
+		for ( Map.Entry<String, String> e : _options.entrySet() ) {
+			json.append(first ? "" : ",").append(S400WService.quote(e.getKey())).append(':').append(S400WService.quote(e.getValue()));
+			first = false;
+		}
+		json.append("},\"operations\":{");
+		long requests = 0, errors = 0;
+		long worstP99 = 0;
+		first = true;
+		for ( Map.Entry<String, Stats> e : total.entrySet() ) {
+			final Stats s = e.getValue();
+			requests += s.latency.count;
+			errors += s.errors;
+			worstP99 = Math.max(worstP99, s.latency.percentile(0.99));
+			json.append(first ? "" : ",").append(S400WService.quote(e.getKey())).append(':');
+			s.json(json, seconds);
+			first = false;
+			summary.println(String.format(Locale.ROOT, "%-8s %7d req %8.1f/s  errors %5.1f%%  p50 %8.1f  p99 %8.1f  p999 %8.1f  max %8.1f ms  %s",
+				e.getKey(), s.latency.count, s.latency.count / seconds, 100.0 * s.errors / Math.max(1, s.latency.count),
+				s.latency.percentile(0.5) / 1000.0, s.latency.percentile(0.99) / 1000.0, s.latency.percentile(0.999) / 1000.0, s.latency.max / 1000.0, s.outcomes));
+		}
+		json.append("},\"jvm\":");
+		_jvm.json(json);
+		json.append('}');
+		summary.println(String.format(Locale.ROOT, "%s threads, heap max %.1f MiB, threads max %d, gc %d (%d ms)",
+			Threads.isVirtual() ? "virtual" : "platform", _jvm.heapMax / 1048576.0, _jvm.threadsMax, _jvm.gcCount(), _jvm.gcTime()));
+		out.println(json);
+
+		final double errorRate = (double)errors / Math.max(1, requests);
+		int result = 0;
+		if ( _options.containsKey("maxErrorRate") && errorRate>Double.parseDouble(_options.get("maxErrorRate")) ) {
+			summary.println("FAILED: error rate " + errorRate);
+			result = 1;
+		}
+		if ( _options.containsKey("maxP99") && worstP99 / 1000.0>Double.parseDouble(_options.get("maxP99")) ) {
+			summary.println("FAILED: p99 " + worstP99 / 1000.0 + " ms");
+			result = 1;
+		}
+		return result;
+	}
+
+
+	/**
+	 * A client thread issuing requests until the end of the test.
+	 */
+	private final class Client extends Thread
+	{
+		final Map<String, Stats> stats = new TreeMap<>();
+		private final Random _random;
+		private final String _url;
+		private final byte[] _buffer = new byte[65536];
+
+
+		Client(int index)
+		{
+			super("s400w-loadtest-" + index);
+			setDaemon(true);
+			_random = new Random(index);
+			_url = _urls[index % _urls.length];
+		}
+
+
+		@Override
+		public void run()
+		{
+			for ( long now = System.nanoTime(); now<_end; now = System.nanoTime() ) {
+				final String op = _mix[_random.nextInt(_mix.length)];
+				final long start = System.nanoTime();
+				String outcome;
+				int status = -1;
+				try {
+					final HttpURLConnection c = (HttpURLConnection)new URL(_url + op).openConnection();
+					c.setConnectTimeout(10000);
+					c.setReadTimeout(300000);
+					if ( "scan".equals(op) ) {
+						c.setDoOutput(true);
+						c.setRequestMethod("POST");
+						c.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+						try ( OutputStream os = c.getOutputStream() ) {
+							os.write(("dpi=" + _options.get("dpi") + "&format=" + _options.get("format")).getBytes(StandardCharsets.US_ASCII));
+						}
+					}
+					status = c.getResponseCode();
+					final String type = c.getContentType();
+					final ByteArrayOutputStream text = new ByteArrayOutputStream();
+					try ( InputStream in = status>=400 ? c.getErrorStream() : c.getInputStream() ) {
+						if ( in!=null ) {
+							final boolean keep = type!=null && type.startsWith("text/plain");
+							for ( int r = in.read(_buffer); r>=0; r = in.read(_buffer) ) if ( keep && text.size()<256 ) text.write(_buffer, 0, r);
+						}
+					}
+					outcome = status==HttpURLConnection.HTTP_GATEWAY_TIMEOUT ? "timeout"
+						: status==HttpURLConnection.HTTP_NO_CONTENT ? "eof"
+						: text.size()>0 ? text.toString("US-ASCII").trim()
+						: type!=null ? type.replaceAll(";.*", "")
+						: "http" + status;
+				}
+				catch (IOException e) {
+					outcome = e.getClass().getSimpleName();
+				}
+				if ( start<_warmupEnd ) continue;
+				final Stats s = stats.computeIfAbsent(op, k -> new Stats());
+				s.latency.record((System.nanoTime() - start) / 1000);
+				s.statuses.merge(status, 1L, Long::sum);
+				s.outcomes.merge(outcome, 1L, Long::sum);
+				if ( status!=HttpURLConnection.HTTP_OK || S400WResponse.DEVICE_BUSY.toString().equals(outcome) ) s.errors++;
+			}
+		}
+	}
+
+
+	/**
+	 * Results of one operation.
+	 */
+	private final static class Stats
+	{
+		final Histogram latency = new Histogram();
+		final Map<Integer, Long> statuses = new TreeMap<>();
+		final Map<String, Long> outcomes = new TreeMap<>();
+		long errors;
+
+
+		void add(Stats other)
+		{
+			latency.add(other.latency);
+			other.statuses.forEach((k, v) -> statuses.merge(k, v, Long::sum));
+			other.outcomes.forEach((k, v) -> outcomes.merge(k, v, Long::sum));
+			errors += other.errors;
+		}
+
+
+		void json(StringBuilder json, double seconds)
+		{
+			json.append(String.format(Locale.ROOT, "{\"count\":%d,\"throughput\":%.3f,\"errors\":%d,\"errorRate\":%.5f,\"latencyMs\":{\"mean\":%.3f,\"p50\":%.3f,\"p90\":%.3f,\"p99\":%.3f,\"p999\":%.3f,\"max\":%.3f}",
+				latency.count, latency.count / seconds, errors, (double)errors / Math.max(1, latency.count), latency.sum / 1000.0 / Math.max(1, latency.count),
+				latency.percentile(0.5) / 1000.0, latency.percentile(0.9) / 1000.0, latency.percentile(0.99) / 1000.0, latency.percentile(0.999) / 1000.0, latency.max / 1000.0));
+			json.append(",\"statuses\":{");
+			boolean first = true;
+			for ( Map.Entry<Integer, Long> e : statuses.entrySet() ) {
+				json.append(first ? "" : ",").append('"').append(e.getKey()).append("\":").append(e.getValue());
+				first = false;
+			}
+			json.append("},\"outcomes\":{");
+			first = true;
+			for ( Map.Entry<String, Long> e : outcomes.entrySet() ) {
+				json.append(first ? "" : ",").append(S400WService.quote(e.getKey())).append(':').append(e.getValue());
+				first = false;
+			}
+			json.append("}}");
+		}
+	}
+
+
+	/**
+	 * A log-linear histogram of microseconds with 32 buckets per power of two, about 3% relative error.
+	 */
+	final static class Histogram
+	{
+		private final static int SUB_BITS = 5, SUB = 1 << SUB_BITS;
+
+		private final long[] _counts = new long[64 * SUB];
+		long count, sum, max;
+
+
+		void record(long value)
+		{
+			_counts[index(Math.max(0, value))]++;
+			count++;
+			sum += value;
+			max = Math.max(max, value);
+		}
+
+
+		void add(Histogram other)
+		{
+			for ( int i = 0; i<_counts.length; i++ ) _counts[i] += other._counts[i];
+			count += other.count;
+			sum += other.sum;
+			max = Math.max(max, other.max);
+		}
+
+
+		/**
+		 * Returns the value at the given quantile, the upper bound of its bucket.
+		 */
+		long percentile(double quantile)
+		{
+			final long rank = Math.max(1, (long)Math.ceil(quantile * count));
+			long seen = 0;
+			for ( int i = 0; i<_counts.length; i++ ) {
+				seen += _counts[i];
+				if ( seen>=rank ) return Math.min(max, upper(i));
+			}
+			return max;
+		}
+
+
+		private static int index(long value)
+		{
+			if ( value<SUB ) return (int)value;
+			final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+			return (shift + 1) * SUB + (int)(value >>> shift) - SUB;
+		}
+
+
+		private static long upper(int index)
+		{
+			if ( index<SUB ) return index;
+			final int shift = index / SUB - 1;
+			return ((long)(SUB + index % SUB + 1) << shift) - 1;
+		}
+	}
+
+
+	/**
+	 * Heap and thread usage of this JVM.
+	 */
+	private final static class Jvm
+	{
+		private final MemoryMXBean _memory = ManagementFactory.getMemoryMXBean();
+		private final ThreadMXBean _threads = ManagementFactory.getThreadMXBean();
+		private final long _gcCount = gcCount(), _gcTime = gcTime();
+		volatile long heapMax;
+		volatile int threadsMax;
+
+
+		synchronized void sample()
+		{
+			heapMax = Math.max(heapMax, _memory.getHeapMemoryUsage().getUsed());
+			threadsMax = Math.max(threadsMax, _threads.getThreadCount());
+		}
+
+
+		long gcCount()
+		{
+			long n = 0;
+			for ( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() ) n += Math.max(0, gc.getCollectionCount());
+			return n - _gcCount;
+		}
+
+
+		long gcTime()
+		{
+			long n = 0;
+			for ( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() ) n += Math.max(0, gc.getCollectionTime());
+			return n - _gcTime;
+		}
+
+
+		void json(StringBuilder json)
+		{
+			json.append(String.format(Locale.ROOT, "{\"virtualThreads\":%b,\"heapUsedMax\":%d,\"heapCommitted\":%d,\"threadsMax\":%d,\"threadsPeak\":%d,\"gcCount\":%d,\"gcTimeMs\":%d}",
+				Threads.isVirtual(), heapMax, _memory.getHeapMemoryUsage().getCommitted(), threadsMax, _threads.getPeakThreadCount(), gcCount(), gcTime()));
+		}
+	}
+}
@@ -0,0 +1,100 @@
+/* This file is licensed under Creative Commons License CC-CC0 1.0 (http://creativecommons.org/publicdomain/zero/1.0/).
+ *
+ * Created 2026-10-18 by bastel.
+ */
+
+package hwfs400w;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * A 64 bit difference hash (dHash) of scanned images.
+ * <p>
+ * The image is reduced to 9x8 gray values, each bit tells whether a value is darker than its right neighbour.
+ * Rescans of the same page differ in a few bits only, so the Hamming distance of two hashes
+ * measures the similarity of the scans.
+ *
+ * @author bastel
+ * @since 2026-10-18
+ */
+public final class PerceptualHash
+{
+	/** Decoded images are subsampled to about this width before reduction. */
+	private final static int SAMPLE_WIDTH = 72;
+
+
+	private PerceptualHash()
+	{
+	}
+
+
+	/**
+	 * Computes the hash of a jpeg image, decoded with subsampling.
+	 *
+	 * @throws IOException if the image can't be decoded.
+	 */
+	public static long of(InputStream jpeg) throws IOException
+	{
+		try ( ImageInputStream in = ImageIO.createImageInputStream(jpeg) ) {
+			final Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if ( !readers.hasNext() ) throw new IOException("Unsupported image format");
+			final ImageReader reader = readers.next();
+			try {
+				reader.setInput(in, true, true);
+				final ImageReadParam param = reader.getDefaultReadParam();
+				final int step = Math.max(1, reader.getWidth(0) / SAMPLE_WIDTH);
+				param.setSourceSubsampling(step, step, 0, 0);
+				return of(reader.read(0, param));
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+
+	/**
+	 * Computes the hash of an image.
+	 */
+	public static long of(BufferedImage image)
+	{
+		final int w = image.getWidth(), h = image.getHeight();
+		final int[] rgb = image.getRGB(0, 0, w, h, null, 0, w);
+		final long[] sum = new long[9 * 8];
+		final int[] count = new int[9 * 8];
+		for ( int y = 0; y<h; y++ ) {
+			final int row = y * 8 / h * 9;
+			for ( int x = 0; x<w; x++ ) {
+				final int p = rgb[y * w + x];
+				final int cell = row + x * 9 / w;
+				sum[cell] += 299 * (p >> 16 & 0xff) + 587 * (p >> 8 & 0xff) + 114 * (p & 0xff);
+				count[cell]++;
+			}
+		}
+		final double[] gray = new double[9 * 8];
+		for ( int i = 0; i<gray.length; i++ ) gray[i] = count[i]==0 ? 0 : (double)sum[i] / count[i];
+		long hash = 0;
+		for ( int y = 0; y<8; y++ ) {
+			for ( int x = 0; x<8; x++ ) {
+				hash = hash << 1 | (gray[y * 9 + x]<gray[y * 9 + x + 1] ? 1 : 0);
+			}
+		}
+		return hash;
+	}
+
+
+	/**
+	 * Returns the number of differing bits.
+	 */
+	public static int distance(long a, long b)
+	{
+		return Long.bitCount(a ^ b);
+	}
+}
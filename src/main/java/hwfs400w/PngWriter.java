@@ -0,0 +1,427 @@
+/* This file is licensed under Creative Commons License CC-CC0 1.0 (http://creativecommons.org/publicdomain/zero/1.0/).
+ *
+ * Created 2026-10-18 by bastel.
+ */
+
+package hwfs400w;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A {@link ScanDataReceiver} writing rows of 8 bit gray or RGB pixels as PNG file, compressing blocks in parallel.
+ * <p>
+ * Like pigz, rows are filtered on the calling thread and collected into blocks of about {@value #BLOCK} bytes.
+ * Each block is deflated by a pool task with the last 32 KiB of the previous block as dictionary,
+ * so compression is almost as good as a single stream, and ends with a sync flush at a byte boundary.
+ * The compressed blocks are concatenated in order into a single zlib stream, one IDAT chunk per block,
+ * with the Adler-32 checksums of the blocks combined. At most two blocks per worker are in flight, so memory is bounded.
+ * <p>
+ * The height needn't be known in advance, it's patched into the header on {@link #close()}.
+ * An incomplete last row, e.g. the preview end tag, is dropped.
+ *
+ * @author bastel
+ * @since 2026-10-18
+ */
+public class PngWriter implements ScanDataReceiver
+{
+	/** Uncompressed block size. */
+	final static int BLOCK = 128 * 1024;
+
+	/** Deflate window and dictionary size. */
+	private final static int WINDOW = 32 * 1024;
+
+	private final static byte[] SIGNATURE = { (byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+	/** Offset of the height in the file. */
+	private final static int HEIGHT = 8 + 8 + 4;
+
+	private final Path _file;
+	private final int _width, _channels, _rowBytes;
+	private final ForkJoinPool _pool;
+	private final int _level;
+	private int _dpi;
+
+	private FileChannel _out;
+	private final ArrayDeque<ForkJoinTask<Block>> _pending = new ArrayDeque<>();
+
+	/** Current row, raw, and the previous row. */
+	private byte[] _row, _previous;
+	private int _rowFill;
+	private int _height;
+
+	/** Filtered data of the current block, the previous block is kept as dictionary. */
+	private byte[] _block, _dictionary;
+	private int _blockFill, _dictionaryLength;
+	private boolean _first = true;
+
+	private long _adler = 1;
+
+
+	/**
+	 * Creates a PNG writer with default compression.
+	 *
+	 * @param width pixels per row
+	 * @param channels {@code 1} for gray, {@code 3} for RGB
+	 * @param pool compresses blocks, {@code null} to compress on the calling thread
+	 */
+	public PngWriter(Path file, int width, int channels, ForkJoinPool pool)
+	{
+		this(file, width, channels, pool, Deflater.DEFAULT_COMPRESSION);
+	}
+
+
+	/**
+	 * Creates a PNG writer.
+	 *
+	 * @param width pixels per row
+	 * @param channels {@code 1} for gray, {@code 3} for RGB
+	 * @param pool compresses blocks, {@code null} to compress on the calling thread
+	 * @param level deflate level
+	 */
+	public PngWriter(Path file, int width, int channels, ForkJoinPool pool, int level)
+	{
+		if ( width<=0 ) throw new IllegalArgumentException("width=" + width);
+		if ( channels!=1 && channels!=3 ) throw new IllegalArgumentException("channels=" + channels);
+		_file = file;
+		_width = width;
+		_channels = channels;
+		_rowBytes = width * channels;
+		_pool = pool;
+		_level = level;
+	}
+
+
+	/**
+	 * Sets the resolution stored in the file, {@code 0} for none.
+	 */
+	public PngWriter dpi(int dpi)
+	{
+		_dpi = dpi;
+		return this;
+	}
+
+
+	@Override
+	public void open(long length) throws IOException
+	{
+		_out = FileChannel.open(_file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		_row = new byte[_rowBytes];
+		_previous = new byte[_rowBytes];
+		_block = new byte[Math.max(BLOCK, 1 + _rowBytes)];
+		_out.write(ByteBuffer.wrap(SIGNATURE));
+		final ByteBuffer ihdr = ByteBuffer.allocate(13);
+		ihdr.putInt(_width).putInt(0).put((byte)8).put((byte)(_channels==1 ? 0 : 2)).put((byte)0).put((byte)0).put((byte)0);
+		chunk("IHDR", ihdr.array(), 0, 13);
+		if ( _dpi>0 ) {
+			final int ppm = (int)Math.round(_dpi / 0.0254);
+			chunk("pHYs", ByteBuffer.allocate(9).putInt(ppm).putInt(ppm).put((byte)1).array(), 0, 9);
+		}
+	}
+
+
+	@Override
+	public void write(byte[] array, int offset, int length) throws IOException
+	{
+		while ( length>0 ) {
+			final int n = Math.min(length, _rowBytes - _rowFill);
+			System.arraycopy(array, offset, _row, _rowFill, n);
+			_rowFill += n;
+			offset += n;
+			length -= n;
+			if ( _rowFill==_rowBytes ) {
+				row();
+				_rowFill = 0;
+			}
+		}
+	}
+
+
+	@Override
+	public void close() throws IOException
+	{
+		if ( _out==null ) return;
+		try {
+			if ( _height==0 ) throw new IOException("No complete row");
+			submit(true);
+			while ( !_pending.isEmpty() ) write(take());
+			chunk("IEND", new byte[0], 0, 0);
+			final ByteBuffer ihdr = ByteBuffer.allocate(4 + 13);
+			ihdr.put("IHDR".getBytes(StandardCharsets.US_ASCII)).putInt(_width).putInt(_height)
+				.put((byte)8).put((byte)(_channels==1 ? 0 : 2)).put((byte)0).put((byte)0).put((byte)0);
+			final CRC32 crc = new CRC32();
+			crc.update(ihdr.array(), 0, ihdr.capacity());
+			_out.write(ByteBuffer.allocate(4).putInt(0, _height), HEIGHT);
+			_out.write(ByteBuffer.allocate(4).putInt(0, (int)crc.getValue()), HEIGHT + 9);
+		}
+		finally {
+			for ( ForkJoinTask<Block> t : _pending ) t.cancel(false);
+			_pending.clear();
+			_out.close();
+			_out = null;
+		}
+	}
+
+
+	/**
+	 * Returns the number of complete rows written.
+	 */
+	public int getHeight()
+	{
+		return _height;
+	}
+
+
+	/**
+	 * Filters the current row into the block, with the filter of the smallest sum of absolute values.
+	 */
+	private void row() throws IOException
+	{
+		final int bpp = _channels, n = _rowBytes;
+		final byte[] r = _row, p = _previous;
+		// the first pixel has no left neighbour, a = c = 0
+		long sNone = 0, sSub = 0, sUp = 0, sAvg = 0, sPaeth = 0;
+		for ( int i = 0; i<bpp; i++ ) {
+			final int x = r[i] & 0xff, b = p[i] & 0xff;
+			sNone += Math.abs((byte)x);
+			sSub += Math.abs((byte)x);
+			sUp += Math.abs((byte)(x - b));
+			sAvg += Math.abs((byte)(x - (b >> 1)));
+			sPaeth += Math.abs((byte)(x - b));
+		}
+		for ( int i = bpp; i<n; i++ ) {
+			final int x = r[i] & 0xff, a = r[i - bpp] & 0xff, b = p[i] & 0xff;
+			sNone += Math.abs((byte)x);
+			sSub += Math.abs((byte)(x - a));
+			sUp += Math.abs((byte)(x - b));
+			sAvg += Math.abs((byte)(x - (a + b >> 1)));
+			sPaeth += Math.abs((byte)(x - paeth(a, b, p[i - bpp] & 0xff)));
+		}
+		int best = 0;
+		long min = sNone;
+		if ( sSub<min ) { best = 1; min = sSub; }
+		if ( sUp<min ) { best = 2; min = sUp; }
+		if ( sAvg<min ) { best = 3; min = sAvg; }
+		if ( sPaeth<min ) best = 4;
+
+		if ( _blockFill + 1 + n>_block.length ) submit(false);
+		final byte[] out = _block;
+		int o = _blockFill;
+		out[o++] = (byte)best;
+		switch (best) {
+			case 0:
+				System.arraycopy(r, 0, out, o, n);
+				break;
+			case 1:
+				System.arraycopy(r, 0, out, o, bpp);
+				for ( int i = bpp; i<n; i++ ) out[o + i] = (byte)(r[i] - r[i - bpp]);
+				break;
+			case 2:
+				for ( int i = 0; i<n; i++ ) out[o + i] = (byte)(r[i] - p[i]);
+				break;
+			case 3:
+				for ( int i = 0; i<bpp; i++ ) out[o + i] = (byte)(r[i] - ((p[i] & 0xff) >> 1));
+				for ( int i = bpp; i<n; i++ ) out[o + i] = (byte)(r[i] - ((r[i - bpp] & 0xff) + (p[i] & 0xff) >> 1));
+				break;
+			default:
+				for ( int i = 0; i<bpp; i++ ) out[o + i] = (byte)(r[i] - p[i]);
+				for ( int i = bpp; i<n; i++ ) out[o + i] = (byte)(r[i] - paeth(r[i - bpp] & 0xff, p[i] & 0xff, p[i - bpp] & 0xff));
+		}
+		_blockFill = o + n;
+		_height++;
+		_row = p;
+		_previous = r;
+	}
+
+
+	/**
+	 * Returns the Paeth predictor of left, above and upper left.
+	 */
+	private static int paeth(int a, int b, int c)
+	{
+		final int pa = Math.abs(b - c), pb = Math.abs(a - c), pc = Math.abs(a + b - 2 * c);
+		return pa<=pb && pa<=pc ? a : pb<=pc ? b : c;
+	}
+
+
+	/**
+	 * Hands the current block to the pool, writing finished blocks to keep the number in flight bounded.
+	 */
+	private void submit(boolean last) throws IOException
+	{
+		final byte[] data = _block;
+		final int length = _blockFill;
+		final Deflate task = new Deflate(data, length, _dictionary, _dictionaryLength, _first, last, _level);
+		if ( _pool==null ) {
+			write(task.call());
+		}
+		else {
+			_pending.add(_pool.submit(task));
+			while ( _pending.size()>2 * _pool.getParallelism() ) write(take());
+		}
+		_first = false;
+		_dictionary = data;
+		_dictionaryLength = length;
+		// not reusing the previous dictionary, a pending task may still read it
+		_block = new byte[data.length];
+		_blockFill = 0;
+	}
+
+
+	private Block take() throws IOException
+	{
+		try {
+			return _pending.remove().get();
+		}
+		catch (InterruptedException e) {
+			throw (InterruptedIOException)new InterruptedIOException("Interrupted compressing").initCause(e);
+		}
+		catch (ExecutionException e) {
+			throw new IOException("Compression failed", e.getCause());
+		}
+	}
+
+
+	private void write(Block block) throws IOException
+	{
+		_adler = block.length==0 ? _adler : combine(_adler, block.adler, block.length);
+		byte[] data = block.data;
+		int length = block.data.length;
+		if ( block.last ) {
+			data = Arrays.copyOf(data, length + 4);
+			ByteBuffer.wrap(data, length, 4).putInt((int)_adler);
+			length += 4;
+		}
+		if ( length>0 ) chunk("IDAT", data, 0, length);
+	}
+
+
+	private void chunk(String type, byte[] data, int offset, int length) throws IOException
+	{
+		final byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+		final CRC32 crc = new CRC32();
+		crc.update(name);
+		crc.update(data, offset, length);
+		final ByteBuffer head = ByteBuffer.allocate(8).putInt(length).put(name);
+		head.flip();
+		final ByteBuffer tail = ByteBuffer.allocate(4).putInt(0, (int)crc.getValue());
+		final ByteBuffer[] buffers = { head, ByteBuffer.wrap(data, offset, length), tail };
+		while ( tail.hasRemaining() ) _out.write(buffers);
+	}
+
+
+	/**
+	 * Combines the Adler-32 checksums of two consecutive parts, as zlib's {@code adler32_combine}.
+	 */
+	static long combine(long adler1, long adler2, long length2)
+	{
+		final long base = 65521;
+		final long rem = length2 % base;
+		long sum1 = adler1 & 0xffff;
+		long sum2 = rem * sum1 % base;
+		sum1 += (adler2 & 0xffff) + base - 1;
+		sum2 += (adler1 >> 16 & 0xffff) + (adler2 >> 16 & 0xffff) + base - rem;
+		if ( sum1>=base ) sum1 -= base;
+		if ( sum1>=base ) sum1 -= base;
+		if ( sum2>=base << 1 ) sum2 -= base << 1;
+		if ( sum2>=base ) sum2 -= base;
+		return sum1 | sum2 << 16;
+	}
+
+
+	/**
+	 * A compressed block.
+	 */
+	private final static class Block
+	{
+		final byte[] data;
+		final long adler;
+		final int length;
+		final boolean last;
+
+
+		Block(byte[] data, long adler, int length, boolean last)
+		{
+			this.data = data;
+			this.adler = adler;
+			this.length = length;
+			this.last = last;
+		}
+	}
+
+
+	/**
+	 * Compresses a block, the first with zlib header, the last finishing the stream.
+	 */
+	private final static class Deflate implements Callable<Block>
+	{
+		private final byte[] _data, _dictionary;
+		private final int _length, _dictionaryLength, _level;
+		private final boolean _first, _last;
+
+
+		Deflate(byte[] data, int length, byte[] dictionary, int dictionaryLength, boolean first, boolean last, int level)
+		{
+			_data = data;
+			_length = length;
+			_dictionary = dictionary;
+			_dictionaryLength = dictionaryLength;
+			_first = first;
+			_last = last;
+			_level = level;
+		}
+
+
+		@Override
+		public Block call()
+		{
+			final Deflater deflater = new Deflater(_level, true);
+			try {
+				final ByteArrayOutputStream out = new ByteArrayOutputStream(_length / 2 + 64);
+				if ( _first ) {
+					// zlib header: deflate with 32 KiB window, no preset dictionary, check bits
+					out.write(0x78);
+					out.write(0x9c);
+				}
+				if ( _dictionaryLength>0 ) {
+					final int n = Math.min(WINDOW, _dictionaryLength);
+					deflater.setDictionary(_dictionary, _dictionaryLength - n, n);
+				}
+				deflater.setInput(_data, 0, _length);
+				final byte[] buffer = new byte[65536];
+				if ( _last ) {
+					deflater.finish();
+					while ( !deflater.finished() ) out.write(buffer, 0, deflater.deflate(buffer));
+				}
+				else {
+					int n;
+					do {
+						n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+						out.write(buffer, 0, n);
+					} while ( n==buffer.length || !deflater.needsInput() );
+				}
+				final Adler32 adler = new Adler32();
+				adler.update(_data, 0, _length);
+				return new Block(out.toByteArray(), adler.getValue(), _length, _last);
+			}
+			finally {
+				deflater.end();
+			}
+		}
+	}
+}
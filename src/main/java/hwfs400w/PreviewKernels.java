@@ -0,0 +1,164 @@
+/* This file is licensed under Creative Commons License CC-CC0 1.0 (http://creativecommons.org/publicdomain/zero/1.0/).
+ *
+ * Created 2026-10-18 by bastel.
+ */
+
+package hwfs400w;
+
+/**
+ * Pixel kernels working directly on preview data, without {@link java.awt.image.BufferedImage}.
+ * <p>
+ * Preview lines are {@value #WIDTH} RGB pixels, {@value #LINE_BYTES} bytes. Gray images are one byte per pixel, rows stored consecutively.
+ * All methods work on caller supplied arrays and don't allocate, so they can run per received line.
+ * The loops are kept simple (counted, no branches in the inner loop where possible, int arithmetic)
+ * so that HotSpot unrolls and vectorises them. {@code Benchmarks kernels} measures the chain on preview lines.
+ *
+ * @author bastel
+ * @since 2026-10-18
+ */
+public final class PreviewKernels
+{
+	/** Pixels per preview line. */
+	public final static int WIDTH = 640;
+
+	/** Bytes per preview line. */
+	public final static int LINE_BYTES = WIDTH * 3;
+
+
+	private PreviewKernels()
+	{
+	}
+
+
+	/**
+	 * Converts RGB to luma (ITU-R BT.601, 8 bit fixed point).
+	 *
+	 * @param rgb source, 3 bytes per pixel
+	 * @param gray destination, 1 byte per pixel
+	 * @param pixels number of pixels
+	 */
+	public static void luma(byte[] rgb, int rgbOffset, byte[] gray, int grayOffset, int pixels)
+	{
+		for ( int i = 0; i<pixels; i++ ) {
+			final int s = rgbOffset + i * 3;
+			gray[grayOffset + i] = (byte)((77 * (rgb[s] & 0xff) + 150 * (rgb[s + 1] & 0xff) + 29 * (rgb[s + 2] & 0xff)) >> 8);
+		}
+	}
+
+
+	/**
+	 * Adds the values of gray pixels to a histogram.
+	 *
+	 * @param histogram 256 counters, not cleared
+	 */
+	public static void histogram(byte[] gray, int offset, int length, int[] histogram)
+	{
+		for ( int i = offset, end = offset + length; i<end; i++ ) histogram[gray[i] & 0xff]++;
+	}
+
+
+	/**
+	 * Returns the threshold separating a histogram best into two classes (Otsu's method).
+	 */
+	public static int otsu(int[] histogram)
+	{
+		long total = 0, sum = 0;
+		for ( int i = 0; i<256; i++ ) {
+			total += histogram[i];
+			sum += (long)i * histogram[i];
+		}
+		long count = 0, sumBelow = 0;
+		double best = -1;
+		int threshold = 128;
+		for ( int t = 0; t<256; t++ ) {
+			count += histogram[t];
+			sumBelow += (long)t * histogram[t];
+			if ( count==0 || count==total ) continue;
+			double meanBelow = (double)sumBelow / count, meanAbove = (double)(sum - sumBelow) / (total - count);
+			double between = (double)count * (total - count) * (meanBelow - meanAbove) * (meanBelow - meanAbove);
+			if ( between>best ) {
+				best = between;
+				threshold = t + 1;
+			}
+		}
+		return threshold;
+	}
+
+
+	/**
+	 * Binarizes with a fixed threshold, pixels below become {@code 1} (black), others {@code 0}.
+	 */
+	public static void threshold(byte[] gray, int offset, int length, int threshold, byte[] out, int outOffset)
+	{
+		for ( int i = 0; i<length; i++ ) {
+			out[outOffset + i] = (byte)(((gray[offset + i] & 0xff) - threshold) >>> 31);
+		}
+	}
+
+
+	/**
+	 * Binarizes adaptively (Bradley): a pixel becomes {@code 1} (black) if it is more than {@code percent}
+	 * darker than the mean of the {@code window}x{@code window} area around it, otherwise {@code 0}.
+	 * Copes with uneven illumination, which a fixed threshold doesn't.
+	 * Images must not exceed 8 million pixels, sums are kept in ints.
+	 *
+	 * @param gray image, {@code width * height} bytes at {@code offset}
+	 * @param integral work area of at least {@code (width + 1) * (height + 1)} ints
+	 * @param out destination, {@code width * height} bytes
+	 */
+	public static void adaptiveThreshold(byte[] gray, int offset, int width, int height, int window, int percent, int[] integral, byte[] out, int outOffset)
+	{
+		final int stride = width + 1;
+		for ( int x = 0; x<stride; x++ ) integral[x] = 0;
+		for ( int y = 0; y<height; y++ ) {
+			final int src = offset + y * width, above = y * stride, row = above + stride;
+			integral[row] = 0;
+			int sum = 0;
+			for ( int x = 0; x<width; x++ ) {
+				sum += gray[src + x] & 0xff;
+				integral[row + x + 1] = integral[above + x + 1] + sum;
+			}
+		}
+		final int half = window / 2, scale = 100 - percent;
+		for ( int y = 0; y<height; y++ ) {
+			final int y0 = Math.max(0, y - half) * stride, y1 = Math.min(height, y + half + 1) * stride;
+			final int rows = (y1 - y0) / stride, src = offset + y * width, dst = outOffset + y * width;
+			for ( int x = 0; x<width; x++ ) {
+				final int x0 = Math.max(0, x - half), x1 = Math.min(width, x + half + 1);
+				final long area = integral[y1 + x1] - integral[y1 + x0] - integral[y0 + x1] + integral[y0 + x0];
+				final long count = (long)rows * (x1 - x0);
+				out[dst + x] = (byte)((gray[src + x] & 0xff) * count * 100<area * scale ? 1 : 0);
+			}
+		}
+	}
+
+
+	/**
+	 * Adds the sum of each row to {@code rows}.
+	 *
+	 * @param rows at least {@code height} counters, not cleared
+	 */
+	public static void rowProjection(byte[] pixels, int offset, int width, int height, long[] rows)
+	{
+		for ( int y = 0; y<height; y++ ) {
+			final int src = offset + y * width;
+			int sum = 0;
+			for ( int x = 0; x<width; x++ ) sum += pixels[src + x] & 0xff;
+			rows[y] += sum;
+		}
+	}
+
+
+	/**
+	 * Adds the sum of each column to {@code columns}.
+	 *
+	 * @param columns at least {@code width} counters, not cleared
+	 */
+	public static void columnProjection(byte[] pixels, int offset, int width, int height, long[] columns)
+	{
+		for ( int y = 0; y<height; y++ ) {
+			final int src = offset + y * width;
+			for ( int x = 0; x<width; x++ ) columns[x] += pixels[src + x] & 0xff;
+		}
+	}
+}
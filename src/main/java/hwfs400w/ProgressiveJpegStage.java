@@ -0,0 +1,24 @@
+/* This file is licensed under Creative Commons License CC-CC0 1.0 (http://creativecommons.org/publicdomain/zero/1.0/).
+ *
+ * Created 2026-10-18 by bastel.
+ */
+
+package hwfs400w;
+
+/**
+ * A {@link ScanStage} transcoding the spooled jpeg losslessly to progressive jpeg for web delivery, see {@link JpegTranscoder}.
+ * <p>
+ * The result is cached next to the spooled jpeg as {@code <id>.progressive.jpg}, a job run again keeps an existing result.
+ * Configured as {@code pipelineStages=hwfs400w.ProgressiveJpegStage}.
+ *
+ * @author bastel
+ * @since 2026-10-18
+ */
+public class ProgressiveJpegStage implements ScanStage
+{
+	@Override
+	public void process(ScanJob job) throws Exception
+	{
+		JpegTranscoder.transcode(job.getFile(), job.resolve(JpegTranscoder.Mode.PROGRESSIVE.suffix()), JpegTranscoder.Mode.PROGRESSIVE);
+	}
+}
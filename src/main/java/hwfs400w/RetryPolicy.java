@@ -0,0 +1,172 @@
+/* This file is licensed under Creative Commons License CC-CC0 1.0 (http://creativecommons.org/publicdomain/zero/1.0/).
+ *
+ * Created 2026-10-18 by bastel.
+ */
+
+package hwfs400w;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+/**
+ * Retries scanner operations on transient failures with capped exponential backoff and jitter.
+ * <p>
+ * The delay before retry {@code n} (starting at 1) is {@code min(maxDelay, initialDelay * 2^(n-1))},
+ * of which the upper half is randomized, so clients started at the same time don't keep colliding on the device.
+ * <p>
+ * Operations differ in what is safe to repeat: {@link #STATUS} repeats idempotent requests on
+ * timeouts, closed connections, {@code devbusy} and I/O errors, {@link #SCAN} only repeats scans
+ * rejected with {@code devbusy}, since a scan that went further may have fed a sheet already.
+ * Interrupts are never retried. Policies are immutable.
+ *
+ * @author bastel
+ * @since 2026-10-18
+ */
+public final class RetryPolicy
+{
+	private final static Logger log = Logger.getLogger(RetryPolicy.class.getName());
+
+	/** A scanner operation. */
+	@FunctionalInterface
+	public interface Operation
+	{
+		S400WResponse call() throws IOException;
+	}
+
+	/** No retries. */
+	public final static RetryPolicy NONE = new RetryPolicy(1, Duration.ZERO, Duration.ZERO, false, r -> false);
+
+	/** For idempotent requests (version, status, battery, info): 5 attempts, 0.5 to 8 seconds apart. */
+	public final static RetryPolicy STATUS = new RetryPolicy(5, Duration.ofMillis(500), Duration.ofSeconds(8), true,
+		r -> r.isEmpty() || r.isEOF() || r==S400WResponse.DEVICE_BUSY);
+
+	/** For scans, cleaning and calibration: 4 attempts if the device is busy, 2 to 30 seconds apart. */
+	public final static RetryPolicy SCAN = new RetryPolicy(4, Duration.ofSeconds(2), Duration.ofSeconds(30), false,
+		r -> r==S400WResponse.DEVICE_BUSY);
+
+	/** For resuming interrupted jpeg transfers, see {@link S400WSettings#retryResume}: 3 attempts, 1 to 10 seconds apart. */
+	public final static RetryPolicy RESUME = new RetryPolicy(3, Duration.ofSeconds(1), Duration.ofSeconds(10), true,
+		r -> r.isEmpty() || r.isEOF());
+
+	private final int _attempts;
+	private final Duration _initialDelay;
+	private final Duration _maxDelay;
+	private final boolean _retryExceptions;
+	private final Predicate<S400WResponse> _retryable;
+
+
+	private RetryPolicy(int attempts, Duration initialDelay, Duration maxDelay, boolean retryExceptions, Predicate<S400WResponse> retryable)
+	{
+		if ( attempts<1 ) throw new IllegalArgumentException("attempts=" + attempts);
+		if ( initialDelay.isNegative() || maxDelay.compareTo(initialDelay)<0 ) throw new IllegalArgumentException("delay=" + initialDelay + ".." + maxDelay);
+		_attempts = attempts;
+		_initialDelay = initialDelay;
+		_maxDelay = maxDelay;
+		_retryExceptions = retryExceptions;
+		_retryable = retryable;
+	}
+
+
+	/**
+	 * Returns a copy with the given maximum number of attempts, including the first.
+	 */
+	public RetryPolicy withAttempts(int attempts) throws IllegalArgumentException
+	{
+		return new RetryPolicy(attempts, _initialDelay, _maxDelay, _retryExceptions, _retryable);
+	}
+
+
+	/**
+	 * Returns a copy with the given delay bounds.
+	 */
+	public RetryPolicy withDelay(Duration initialDelay, Duration maxDelay) throws IllegalArgumentException
+	{
+		return new RetryPolicy(_attempts, initialDelay, maxDelay, _retryExceptions, _retryable);
+	}
+
+
+	/**
+	 * Returns the maximum number of attempts, including the first.
+	 */
+	public int getAttempts()
+	{
+		return _attempts;
+	}
+
+
+	/**
+	 * Returns whether the response is a transient failure worth retrying.
+	 */
+	public boolean isRetryable(S400WResponse response)
+	{
+		return _retryable.test(response);
+	}
+
+
+	/**
+	 * Returns the randomized delay before the given retry.
+	 *
+	 * @param retry number of the retry, starting at {@code 1}
+	 */
+	public Duration delay(int retry)
+	{
+		long max = _initialDelay.toMillis();
+		for ( int i = 1; i<retry && max<_maxDelay.toMillis(); i++ ) max *= 2;
+		max = Math.min(max, _maxDelay.toMillis());
+		return Duration.ofMillis(max - max / 2 + (max<2 ? 0 : ThreadLocalRandom.current().nextLong(max / 2 + 1)));
+	}
+
+
+	/**
+	 * Sleeps for {@link #delay(int)}.
+	 *
+	 * @throws InterruptedIOException if interrupted while sleeping.
+	 */
+	public void pause(int retry) throws InterruptedIOException
+	{
+		S400W.sleep(delay(retry).toMillis());
+	}
+
+
+	/**
+	 * Calls the operation until it returns a response that isn't {@link #isRetryable(S400WResponse) retryable}
+	 * or the attempts are used up.
+	 *
+	 * @param name operation name for logging
+	 * @return the last response
+	 * @throws IOException the last exception, if the operation failed with one and it shouldn't or can't be retried.
+	 * @throws InterruptedIOException if interrupted.
+	 */
+	public S400WResponse call(String name, Operation operation) throws IOException, InterruptedIOException
+	{
+		for ( int attempt = 1; ; attempt++ ) {
+			S400WResponse response;
+			try {
+				response = operation.call();
+				if ( attempt>=_attempts || !isRetryable(response) ) return response;
+			}
+			catch (InterruptedIOException e) {
+				throw e;
+			}
+			catch (IOException e) {
+				if ( !_retryExceptions || attempt>=_attempts ) throw e;
+				response = null;
+			}
+			final Duration delay = delay(attempt);
+			log.warning(name + ": attempt " + attempt + "/" + _attempts + " failed" + (response==null ? "" : " with " + response.toString().trim())
+				+ ", retrying in " + delay.toMillis() + " ms");
+			S400W.sleep(delay.toMillis());
+		}
+	}
+
+
+	@Override
+	public String toString()
+	{
+		return "RetryPolicy [attempts=" + _attempts + ", delay=" + _initialDelay + ".." + _maxDelay + ", exceptions=" + _retryExceptions + "]";
+	}
+}
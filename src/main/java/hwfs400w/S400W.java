@@ -7,31 +7,44 @@ package hwfs400w;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
 import java.time.Duration;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Locale;
 import java.util.Objects;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import hwfs400w.AdaptiveTimeouts.Phase;
+
 /**
  * Implements a low level interface to the Mustek<sup>&#174;</sup> S400W iScanAir&#8482; scanner.
  * <br>
  * This is a clean room implementation based on written down specs (see commands.txt)
  * and does not contain any code by mustek. Using simple java, constants and non blocking I/O,
  * it's easy to understand, clean and easily portable to other programming languages.
+ * On a virtual thread (see {@link Threads}) the socket is read blocking with socket timeouts instead,
+ * so waiting for the device parks the thread rather than its carrier.
  * <p>
  * Scanner related methods usually return a {@link S400WResponse} containing the scanner's response.
  * Returned known responses are mapped to their static equivalent and can be compared with <code>==</code>.
  * <p>
  * This class is not thread safe.
+ * Different instances coordinate access to the same scanner by a {@link DeviceLease}, see {@link S400WSettings#leaseDir}.
+ * If the lease can't be acquired in time, {@link S400WResponse#DEVICE_BUSY} is returned.
  * <p>
  * Note: The class supports {@link Logger} logging.
  * <p>
@@ -75,6 +88,28 @@ public class S400W
 	
 	/** IO Channel */
 	private SocketChannel _socket = null;
+	
+	/** Blocking input of {@link #_socket} read with socket timeouts on a virtual thread, {@code null} if using {@link #_selector}. */
+	private InputStream _in;
+	
+	/** Resolution of the current operation for {@link AdaptiveTimeouts}, {@code 0} if not applicable. */
+	private int _dpi;
+	
+	/** Preview flag of the current operation for {@link AdaptiveTimeouts}. */
+	private boolean _preview;
+	
+	/** Device lease of the current operation, or {@code null}. */
+	private DeviceLease _lease;
+	
+	/** Structure of the last jpeg received, or {@code null}. */
+	private JpegMarkerParser _jpegInfo;
+	
+	/** Closes {@link ScanSession}s not fetched within {@link S400WSettings#timeoutHold}. */
+	private final static ScheduledThreadPoolExecutor HOLD = new ScheduledThreadPoolExecutor(1, Threads.factory("s400w-hold-"));
+	
+	static {
+		HOLD.setRemoveOnCancelPolicy(true);
+	}
 
 	
 	/**
@@ -114,7 +149,8 @@ public class S400W
 	 */
 	public S400WResponse poweroff() throws IOException, InterruptedIOException
 	{
-		try ( UncheckedCloseable connection = open() ) {
+		try ( UncheckedCloseable connection = open(DeviceLease.Kind.SHORT) ) {
+			if ( connection==null ) return busy("poweroff()");
 			sendCommand(POWER_OFF);
 			S400WResponse response = S400WResponse.EOF;
 			logResponse("poweroff()", response);
@@ -136,7 +172,8 @@ public class S400W
 	 */
 	public S400WResponse getVersion() throws IOException, InterruptedIOException
 	{
-		try ( UncheckedCloseable connection = open() ) {
+		try ( UncheckedCloseable connection = open(DeviceLease.Kind.SHORT) ) {
+			if ( connection==null ) return busy("getVersion()");
 			sendCommand(GET_VERSION);
 			S400WResponse response = readResponse();
 			logResponse("getVersion", response);
@@ -158,7 +195,8 @@ public class S400W
 	 */
 	public S400WResponse getStatus() throws IOException, InterruptedIOException
 	{
-		try ( UncheckedCloseable connection = open() ) {
+		try ( UncheckedCloseable connection = open(DeviceLease.Kind.SHORT) ) {
+			if ( connection==null ) return busy("getStatus()");
 			sendCommand(GET_STATUS);
 			S400WResponse response = readResponse();
 			logResponse("getStatus()", response);
@@ -181,7 +219,8 @@ public class S400W
 	 */
 	public S400WResponse getBatteryState() throws IOException, InterruptedIOException
 	{
-		try ( UncheckedCloseable connection = open() ) {
+		try ( UncheckedCloseable connection = open(DeviceLease.Kind.SHORT) ) {
+			if ( connection==null ) return busy("getBatteryState()");
 			sendCommand(GET_BATTERY_STATE);
 			S400WResponse response = readResponse();
 			logResponse("getBatteryState()", response);
@@ -194,6 +233,33 @@ public class S400W
 	}
 	
 	
+	/**
+	 * Reads the scanner's version, current status and battery state on a single connection.
+	 * Saves connecting twice compared to calling {@link #getVersion()}, {@link #getStatus()} and {@link #getBatteryState()}.
+	 * 
+	 * @return the info, unavailable fields contain {@link S400WResponse#EOF} or {@link S400WResponse#EMPTY}.
+	 * @throws IOException if IO errors occurred.
+	 * @throws InterruptedIOException if interrupted while sleeping.
+	 */
+	public S400WInfo getInfo() throws IOException, InterruptedIOException
+	{
+		try ( UncheckedCloseable connection = open(DeviceLease.Kind.SHORT) ) {
+			if ( connection==null ) {
+				S400WInfo.Field busy = new S400WInfo.Field(busy("getInfo()"), System.currentTimeMillis(), 0);
+				return new S400WInfo(busy, busy, busy);
+			}
+			S400WInfo.Field version = readField(GET_VERSION, "getInfo().version", null);
+			S400WInfo.Field status  = readField(GET_STATUS, "getInfo().status", version);
+			S400WInfo.Field battery = readField(GET_BATTERY_STATE, "getInfo().battery", status);
+			return new S400WInfo(version, status, battery);
+		}
+		catch (IOException e) {
+			log.log(Level.SEVERE, "getInfo()", e);
+			throw e;
+		}
+	}
+	
+	
 	/**
 	 * Sets the scanner's resolution if supported (see {@link #MIN_SET_RESOLUTION_FW}).
 	 * 
@@ -204,9 +270,13 @@ public class S400W
 	 */
 	public boolean setResolution(int dpi) throws IOException, InterruptedIOException
 	{
-		try ( UncheckedCloseable connection = open() ) {
+		try ( UncheckedCloseable connection = open(DeviceLease.Kind.SHORT) ) {
+			if ( connection==null ) {
+				busy("setResolution()");
+				return false;
+			}
 			sendCommand(dpi==600 ? SET_DPI_HIGH : SET_DPI_STANDARD);
-			S400WResponse response = readResponse();
+			S400WResponse response = readResponse(Phase.RESOLUTION, _settings.timeoutStandard);
 			logResponse("setResolution(" + dpi + ")", response);
 			return dpi==600 && response==S400WResponse.DPI_HIGH || dpi!=600 && response==S400WResponse.DPI_STANDARD;
 		}
@@ -228,7 +298,8 @@ public class S400W
 	 */
 	public S400WResponse clean() throws IOException, InterruptedIOException
 	{
-		try ( UncheckedCloseable connection = open() ) {
+		try ( UncheckedCloseable connection = open(DeviceLease.Kind.LONG) ) {
+			if ( connection==null ) return busy("clean()");
 			sendCommand(GET_STATUS);
 			S400WResponse response = readResponse();
 			logResponse("clean().check", response);
@@ -236,11 +307,11 @@ public class S400W
 
 			sendCommand(START_CLEANING);
 			sleep(500);
-			response = readResponse();
+			response = readResponse(Phase.CLEAN_GO, _settings.timeoutStandard);
 			logResponse("clean().go", response);
 			if ( response!=S400WResponse.CLEAN_GO ) return response;
 			
-			response = readResponse(_settings.timeoutClean);
+			response = readResponse(Phase.CLEAN, _settings.timeoutClean);
 			logResponse("clean().end", response);
 			return response;
 		}
@@ -262,7 +333,8 @@ public class S400W
 	 */
 	public S400WResponse calibrate() throws IOException, InterruptedIOException
 	{
-		try ( UncheckedCloseable connection = open() ) {
+		try ( UncheckedCloseable connection = open(DeviceLease.Kind.LONG) ) {
+			if ( connection==null ) return busy("calibrate()");
 			sendCommand(GET_STATUS);
 			S400WResponse response = readResponse();
 			logResponse("calibrate().check", response);
@@ -270,11 +342,11 @@ public class S400W
 			
 			sendCommand(START_CALIBRATION);
 			sleep(500);
-			response = readResponse();
+			response = readResponse(Phase.CALIBRATE_GO, _settings.timeoutStandard);
 			logResponse("calibrate().go", response);
 			if ( response!=S400WResponse.CALIBRATE_GO ) return response;
 			
-			response = readResponse(_settings.timeoutCalibrate);
+			response = readResponse(Phase.CALIBRATE, _settings.timeoutCalibrate);
 			logResponse("calibrate().end", response);
 			return response;
 		}
@@ -298,109 +370,314 @@ public class S400W
 	 */
 	public S400WResponse scan(int resolution, ScanDataReceiver preview, ScanDataReceiver jpeg) throws IOException, InterruptedIOException
 	{
-		try ( UncheckedCloseable connection = open() ) {
-			sendCommand(GET_STATUS);
-			S400WResponse response = readResponse();
-			logResponse("scan().check", response);
-			if ( response!=S400WResponse.SCAN_READY ) return response;
+		return scan(resolution, preview, jpeg, null);
+	}
 
-			if ( resolution>0 ) {
-				sendCommand(resolution==600 ? SET_DPI_HIGH : SET_DPI_STANDARD);
-				response = readResponse();
-				logResponse("scan().dpi" + resolution, response);
-				if ( resolution==600 && response!=S400WResponse.DPI_HIGH || resolution!=600 && response!=S400WResponse.DPI_STANDARD ) return response;
-			}
-			
-			sendCommand(START_SCAN);
-			response = readResponse();
-			logResponse("scan().go", response);
-			if ( response!=S400WResponse.SCAN_GO ) return response;
 
+	/**
+	 * Executes the scanner's scanning procedure and reports the progress of data transfers.
+	 * <p>
+	 * Transfers are aborted with {@link S400WResponse#EMPTY} if the throughput over {@link S400WSettings#throughputWindow}
+	 * drops below {@link S400WSettings#minThroughput}.
+	 * 
+	 * @param resolution resolution setting, or <code>0</code> if no setting is supported / desired
+	 * @param preview callback handler for preview data, or {@link S400WResponse#EMPTY} if no preview should be read
+	 * @param jpeg callback handler for jpeg data
+	 * @param progress callback handler for progress notifications, or {@code null}
+	 * @return {@link S400WResponse#SCAN_READY} if sucessfully finished, any other response otherwise.
+	 * 	including {@link S400WResponse#EOF} and  {@link S400WResponse#EMPTY} for timeouts
+	 * @throws IOException if IO errors occurred.
+	 * @throws InterruptedIOException if interrupted while sleeping.
+	 */
+	public S400WResponse scan(int resolution, ScanDataReceiver preview, ScanDataReceiver jpeg, ScanProgressListener progress) throws IOException, InterruptedIOException
+	{
+		try ( UncheckedCloseable connection = open(DeviceLease.Kind.LONG) ) {
+			if ( connection==null ) return busy("scan()");
+			S400WResponse response = start(resolution, preview, progress);
+			if ( response!=S400WResponse.SCAN_READY || jpeg==null ) return response;
+			if ( preview!=null ) sleep(1000);
+			return fetch(resolution, preview!=null, jpeg, progress);
+		}
+		catch (IOException e) {
+			log.log(Level.SEVERE, "scan()", e);
+			throw e;
+		}
+	}
+	
+	
+	/**
+	 * Starts the scanning procedure and reads the preview, keeping the device and the scanned jpeg for a later
+	 * {@link ScanSession#fetchJpeg(ScanDataReceiver, ScanProgressListener)}, e.g. after the user approved the preview.
+	 * A rejected page doesn't cost the jpeg transfer.
+	 * <p>
+	 * The session holds the connection and the device lease until the jpeg is fetched, the session is closed,
+	 * or {@link S400WSettings#timeoutHold} has passed. This instance mustn't be used otherwise meanwhile.
+	 * 
+	 * @param resolution resolution setting, or <code>0</code> if no setting is supported / desired
+	 * @param preview callback handler for preview data
+	 * @param progress callback handler for progress notifications, or {@code null}
+	 * @return the session, open if its response is {@link S400WResponse#SCAN_READY}, closed with any other response otherwise
+	 * 	including {@link S400WResponse#EOF} and  {@link S400WResponse#EMPTY} for timeouts
+	 * @throws IOException if IO errors occurred.
+	 * @throws InterruptedIOException if interrupted while sleeping.
+	 */
+	public ScanSession preview(int resolution, ScanDataReceiver preview, ScanProgressListener progress) throws IOException, InterruptedIOException
+	{
+		Objects.requireNonNull(preview, "preview");
+		final UncheckedCloseable connection = open(DeviceLease.Kind.LONG);
+		if ( connection==null ) return new ScanSession(busy("preview()"), resolution);
+		ScanSession session = null;
+		try {
+			session = new ScanSession(start(resolution, preview, progress), resolution);
+			return session;
+		}
+		catch (IOException e) {
+			log.log(Level.SEVERE, "preview()", e);
+			throw e;
+		}
+		finally {
+			if ( session==null || session.getResponse()!=S400WResponse.SCAN_READY ) connection.close();
+		}
+	}
+	
+	
+	/**
+	 * Checks the status, sets the resolution, starts scanning and reads the preview, if requested.
+	 * 
+	 * @return {@link S400WResponse#SCAN_READY} if the jpeg can be fetched, any other response otherwise.
+	 */
+	private S400WResponse start(int resolution, ScanDataReceiver preview, ScanProgressListener progress) throws IOException, InterruptedIOException
+	{
+		_dpi = resolution;
+		_preview = preview!=null;
+		sendCommand(GET_STATUS);
+		S400WResponse response = readResponse();
+		logResponse("scan().check", response);
+		if ( response!=S400WResponse.SCAN_READY ) return response;
+
+		if ( resolution>0 ) {
+			sendCommand(resolution==600 ? SET_DPI_HIGH : SET_DPI_STANDARD);
+			response = readResponse(Phase.RESOLUTION, _settings.timeoutStandard);
+			logResponse("scan().dpi" + resolution, response);
+			if ( resolution==600 && response!=S400WResponse.DPI_HIGH || resolution!=600 && response!=S400WResponse.DPI_STANDARD ) return response;
+		}
+		
+		sendCommand(START_SCAN);
+		response = readResponse(Phase.SCAN_GO, _settings.timeoutStandard);
+		logResponse("scan().go", response);
+		if ( response!=S400WResponse.SCAN_GO ) return response;
+
+		if ( preview!=null ) {
 			final boolean isFiner = log.isLoggable(Level.FINER);
 			final int tagLength   = S400WResponse.PREVIEW_END.length() + 1;
 			final byte[] buffer   = new byte[61440 + tagLength];  // buffer size arbitrarily chosen to be 32 lines
-			
-			if ( preview!=null ) {
-				sendCommand(SEND_PREVIEW_DATA);
-				sleep(1000);
-				ByteBuffer partBuf = ByteBuffer.wrap(buffer, tagLength, buffer.length - tagLength).slice();
-				int read = receive(partBuf, _settings.timeoutData);
-
-				// if known response = error
-				if ( read>0 ) {
-					response = S400WResponse.find(buffer, partBuf.arrayOffset(), read);
-					if ( response!=null ) {
-						logResponse("scan().preview", response);
-						return response;
-					}
-					preview.open(-1);
+			sendCommand(SEND_PREVIEW_DATA);
+			sleep(1000);
+			ByteBuffer partBuf = ByteBuffer.wrap(buffer, tagLength, buffer.length - tagLength).slice();
+			TransferMonitor monitor = new TransferMonitor(ScanProgress.Phase.PREVIEW, -1, _settings, progress);
+			final Duration dataTimeout = timeout(Phase.DATA, _settings.timeoutData);
+			int read = receive(partBuf, dataTimeout, monitor);
+
+			// if known response = error
+			if ( read>0 ) {
+				response = S400WResponse.find(buffer, partBuf.arrayOffset(), read);
+				if ( response!=null ) {
+					logResponse("scan().preview", response);
+					return response;
 				}
+				preview.open(-1);
+			}
 
-				// this is a bit tricky. we need to carry over bytes in between fetching 
-				// so we can detect the end marker even if it is torn apart.
-				int total = 0;
-				while ( read>0 ) {
-					total += read;
-					if ( isFiner ) log.finer("scan().preview: " + total + " ( " + (total / (1920)) + " lines)");
-					preview.write(buffer, partBuf.arrayOffset(), read);
-					System.arraycopy(buffer, read, buffer, 0, tagLength);
-					if ( S400WResponse.PREVIEW_END.matches(buffer, 0, tagLength) ) break;
-					partBuf.clear();
-					read = receive(partBuf, _settings.timeoutData);
+			// this is a bit tricky. we need to carry over bytes in between fetching 
+			// so we can detect the end marker even if it is torn apart.
+			int total = 0;
+			while ( read>0 ) {
+				total += read;
+				if ( isFiner ) log.finer("scan().preview: " + total + " ( " + (total / (1920)) + " lines)");
+				preview.write(buffer, partBuf.arrayOffset(), read);
+				System.arraycopy(buffer, read, buffer, 0, tagLength);
+				if ( S400WResponse.PREVIEW_END.matches(buffer, 0, tagLength) ) break;
+				if ( monitor.isStalled() ) {
+					log.warning("scan().preview: stalled at " + monitor.throughput() + " bytes/s");
+					read = 0;
+					break;
 				}
-				// TODO: not in finally, hmm
-				preview.close();
-				if ( read==0 ) return S400WResponse.EMPTY;
-				if ( read <0 ) return S400WResponse.EOF;
+				partBuf.clear();
+				read = receive(partBuf, dataTimeout, monitor);
 			}
-			
-			if ( jpeg!=null ) {
-				if ( preview!=null ) sleep(1000);
-				final Duration sizeTimeout = preview==null ? _settings.timeoutSize.plus(_settings.timeoutSkipped) : _settings.timeoutSize;
+			// TODO: not in finally, hmm
+			preview.close();
+			if ( read>0 ) record(Phase.DATA, monitor.maxWait());
+			if ( read==0 && !monitor.isStalled() ) record(Phase.DATA, _settings.timeoutData);
+			if ( read==0 ) return S400WResponse.EMPTY;
+			if ( read <0 ) return S400WResponse.EOF;
+		}
+		return S400WResponse.SCAN_READY;
+	}
+	
+	
+	/**
+	 * Requests the size of the scanned jpeg and receives it, resuming interrupted transfers.
+	 * 
+	 * @param previewed whether the preview has been read, the device needs longer for the jpeg otherwise
+	 * @return {@link S400WResponse#SCAN_READY} if a complete jpeg has been received, even if not well formed
+	 *  (see {@link #getJpegInfo()}), any other response otherwise.
+	 */
+	private S400WResponse fetch(int resolution, boolean previewed, ScanDataReceiver jpeg, ScanProgressListener progress) throws IOException, InterruptedIOException
+	{
+		final boolean isFiner = log.isLoggable(Level.FINER);
+		final Duration sizeTimeout = previewed ? _settings.timeoutSize : _settings.timeoutSize.plus(_settings.timeoutSkipped);
 
+		sendCommand(GET_JPEG_SIZE);
+		S400WResponse response = readResponse(Phase.SIZE, sizeTimeout);
+		logResponse("scan().jpegsize", response);
+		if ( response!=S400WResponse.JPEG_SIZE ) return response;
+		
+		// TODO: a bit lazy here, not checking if size read == JPEG_SIZE.length + 4...
+		// TODO: also a little endian byte buffer has a getInteger method...
+		final int size
+			= 0x000000FF & (_buffer[S400WResponse.JPEG_SIZE.length()]) 
+			| 0x0000FF00 & (_buffer[S400WResponse.JPEG_SIZE.length() + 1] << 8)
+			| 0x00FF0000 & (_buffer[S400WResponse.JPEG_SIZE.length() + 2] << 16)
+			| 0xFF000000 & (_buffer[S400WResponse.JPEG_SIZE.length() + 3] << 24);
+		if ( log.isLoggable(Level.FINE) ) log.fine(String.format(Locale.ROOT, "scan().jpeg: %,d bytes", size));
+
+		final byte[] buffer = new byte[61440];
+		final JpegMarkerParser parser = new JpegMarkerParser(jpeg, resolution);
+		_jpegInfo = parser;
+		parser.open(size);
+		try {
+			ByteBuffer buf = ByteBuffer.wrap(buffer);
+			TransferMonitor monitor = new TransferMonitor(ScanProgress.Phase.JPEG, size, _settings, progress);
+			final Duration dataTimeout = timeout(Phase.DATA, _settings.timeoutData);
+			sendCommand(SEND_JPEG_DATA);
+			sleep(500);
+			int total = 0;
+			int read = 0; 
+			// bytes of a resumed transfer that have already been received
+			int skip = 0;
+			for ( int attempt = 1; ; attempt++ ) {
+				do {
+					buf.clear();
+					monitor.begin();
+					read = receive(buf, dataTimeout);
+					final int skipped = read>0 ? Math.min(skip, read) : 0;
+					skip -= skipped;
+					monitor.end(read - skipped);
+					if ( read>skipped ) {
+						total += read - skipped;
+						if ( isFiner ) log.finer("scan().jpeg: " + total + "/" + size + " bytes");
+						parser.write(buffer, skipped, read - skipped);
+					}
+					if ( total<size && monitor.isStalled() ) {
+						log.warning("scan().jpeg: stalled at " + monitor.throughput() + " bytes/s, " + total + "/" + size + " bytes");
+						read = 0;
+					}
+				} while ( total<size && read>0 );
+				if ( read>0 ) record(Phase.DATA, monitor.maxWait());
+				if ( read==0 && !monitor.isStalled() ) record(Phase.DATA, _settings.timeoutData);
+				if ( read>0 || !resume(size, total, attempt) ) break;
+				skip = total;
+				monitor = new TransferMonitor(ScanProgress.Phase.JPEG, size, _settings, progress);
+			}
+			if ( read==0 ) return S400WResponse.EMPTY;
+			if ( read <0 ) return S400WResponse.EOF;
+		} finally {
+			parser.close();
+		}
+		if ( parser.isTruncated() ) {
+			log.warning("scan().jpeg: truncated jpeg, " + parser.getError());
+			return S400WResponse.EOF;
+		}
+		// complete transfer, a structural problem (unknown marker, ...) doesn't make the data useless
+		if ( !parser.isValid() ) log.warning("scan().jpeg: malformed jpeg, " + parser.getError());
+		else if ( log.isLoggable(Level.FINE) ) log.fine("scan().jpeg: " + parser);
+		return S400WResponse.SCAN_READY;
+	}
+	
+	
+	/**
+	 * Returns the structure of the jpeg received by the last {@link #scan(int, ScanDataReceiver, ScanDataReceiver, ScanProgressListener) scan},
+	 * also if it was malformed or truncated, or {@code null} if no jpeg transfer has been started.
+	 * A scan returning {@link S400WResponse#SCAN_READY} may still have a {@link JpegMarkerParser#getError() structural error}.
+	 */
+	public JpegMarkerParser getJpegInfo()
+	{
+		return _jpegInfo;
+	}
+	
+	
+	/**
+	 * Reconnects after an interrupted jpeg transfer and requests the jpeg again, keeping the device lease,
+	 * as long as {@link S400WSettings#retryResume} allows another attempt.
+	 * 
+	 * @param size size of the jpeg being transferred
+	 * @param total number of bytes received so far
+	 * @param attempt number of the failed attempt
+	 * @return {@code true} if the device is sending the same jpeg again from the start.
+	 * @throws InterruptedIOException if interrupted while sleeping.
+	 */
+	private boolean resume(int size, int total, int attempt) throws InterruptedIOException
+	{
+		final RetryPolicy policy = _settings.retryResume;
+		for ( ; policy!=null && attempt<policy.getAttempts(); attempt++ ) {
+			log.warning("scan().jpeg: transfer interrupted at " + total + "/" + size + " bytes, resuming (attempt " + (attempt + 1) + "/" + policy.getAttempts() + ")");
+			if ( _socket  !=null ) try { _socket  .close(); } catch (Exception e) {}
+			if ( _selector!=null ) try { _selector.close(); } catch (Exception e) {}
+			policy.pause(attempt);
+			try {
+				connect();
 				sendCommand(GET_JPEG_SIZE);
-				response = readResponse(sizeTimeout);
-				logResponse("scan().jpegsize", response);
-				if ( response!=S400WResponse.JPEG_SIZE ) return response;
-				
-				// TODO: a bit lazy here, not checking if size read == JPEG_SIZE.length + 4...
-				// TODO: also a little endian byte buffer has a getInteger method...
-				final int size
-					= 0x000000FF & (_buffer[S400WResponse.JPEG_SIZE.length()]) 
-					| 0x0000FF00 & (_buffer[S400WResponse.JPEG_SIZE.length() + 1] << 8)
-					| 0x00FF0000 & (_buffer[S400WResponse.JPEG_SIZE.length() + 2] << 16)
-					| 0xFF000000 & (_buffer[S400WResponse.JPEG_SIZE.length() + 3] << 24);
-				if ( log.isLoggable(Level.FINE) ) log.fine(String.format(Locale.ROOT, "scan().jpeg: %,d bytes", size));
-
-				jpeg.open(size);
-				try {
-					ByteBuffer buf = ByteBuffer.wrap(buffer);
-					sendCommand(SEND_JPEG_DATA);
-					sleep(500);
-					int total = 0;
-					int read = 0; 
-					do {
-						buf.clear();
-						read = receive(buf, _settings.timeoutData);
-						if ( read>0 ) {
-							total += read;
-							if ( isFiner ) log.finer("scan().jpeg: " + total + "/" + size + " bytes");
-							jpeg.write(buffer, 0, read);
-						}
-					} while ( total<size && read>0 );
-					if ( read==0 ) return S400WResponse.EMPTY;
-					if ( read <0 ) return S400WResponse.EOF;
-				} finally {
-					jpeg.close();
+				S400WResponse response = readResponse(Phase.SIZE, _settings.timeoutSize);
+				logResponse("scan().resume.jpegsize", response);
+				if ( response!=S400WResponse.JPEG_SIZE ) {
+					if ( policy.isRetryable(response) ) continue;
+					return false;
+				}
+				final int again = ByteBuffer.wrap(_buffer, S400WResponse.JPEG_SIZE.length(), 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+				if ( again!=size ) {
+					log.warning("scan().resume: device holds a different jpeg, " + again + " instead of " + size + " bytes");
+					return false;
 				}
+				sendCommand(SEND_JPEG_DATA);
+				sleep(500);
+				return true;
+			}
+			catch (InterruptedIOException e) {
+				throw e;
+			}
+			catch (IOException e) {
+				log.warning("scan().resume: " + e);
 			}
-				
-			return S400WResponse.SCAN_READY;
 		}
-		catch (IOException e) {
-			log.log(Level.SEVERE, "scan()", e);
+		return false;
+	}
+	
+	
+	/**
+	 * Acquires the device lease and opens a socket to the target.
+	 * 
+	 * @param kind kind of lease to acquire
+	 * @return the connection, or {@code null} if the lease couldn't be acquired in time.
+	 * @throws IOException If the socket cannot be opened and set up correctly.
+	 */
+	private UncheckedCloseable open(DeviceLease.Kind kind) throws IOException, InterruptedIOException
+	{
+		_dpi = 0;
+		_preview = false;
+		if ( !_settings.leaseDir.isEmpty() ) {
+			final boolean isLong = kind==DeviceLease.Kind.LONG;
+			_lease = DeviceLease.acquire(Paths.get(_settings.leaseDir), _settings.leaseGroup, _settings.host, _settings.port, kind,
+				isLong ? _settings.leaseLong : _settings.leaseShort, isLong ? _settings.leaseWaitLong : _settings.leaseWait);
+			if ( _lease==null ) return null;
+		}
+		try {
+			connect();
+		} catch (IOException | RuntimeException e) {
+			close();
 			throw e;
 		}
+		return this::close;
 	}
 	
 	
@@ -409,21 +686,42 @@ public class S400W
 	 * 
 	 * @throws IOException If the socket cannot be opened and set up correctly.
 	 */
-	private UncheckedCloseable open() throws IOException, InterruptedIOException
+	private void connect() throws IOException, InterruptedIOException
 	{
 		if ( log.isLoggable(Level.FINE) ) log.fine("opening socket to " + _settings.host + ":" + _settings.port);
-		_selector = Selector.open();
+		_selector = null;
+		_in = null;
 		_socket = SocketChannel.open();
+		if ( Threads.isVirtualThread() ) {
+			// a virtual thread waiting in Selector.select() pins its carrier, blocking socket reads park it instead
+			final Duration timeout = timeout(Phase.CONNECT, _settings.timeoutConnect);
+			final long start = System.nanoTime();
+			try {
+				_socket.socket().connect(new InetSocketAddress(_settings.host, _settings.port), (int)Math.max(1, timeout.toMillis()));
+			} catch (SocketTimeoutException e) {
+				record(Phase.CONNECT, _settings.timeoutConnect);
+				throw new IOException("Couldn't connect to scanner", e);
+			}
+			record(Phase.CONNECT, Duration.ofNanos(System.nanoTime() - start));
+			_in = _socket.socket().getInputStream();
+			return;
+		}
+		_selector = Selector.open();
 		_socket.configureBlocking(false);
 		if ( !_socket.connect(new InetSocketAddress(_settings.host, _settings.port)) ) {
 			SelectionKey key = _socket.register(_selector, SelectionKey.OP_CONNECT);
-			select(_settings.timeoutConnect);
-			if ( !_socket.finishConnect() ) throw new IOException("Couldn't connect to scanner");
+			final Duration timeout = timeout(Phase.CONNECT, _settings.timeoutConnect);
+			final long start = System.nanoTime();
+			final boolean connected = select(timeout)>0;
+			if ( !_socket.finishConnect() ) {
+				if ( !connected ) record(Phase.CONNECT, _settings.timeoutConnect);
+				throw new IOException("Couldn't connect to scanner");
+			}
+			record(Phase.CONNECT, Duration.ofNanos(System.nanoTime() - start));
 			key.interestOps(SelectionKey.OP_READ);
 		} else {
 			_socket.register(_selector, SelectionKey.OP_READ);
 		}
-		return this::close;
 	}
 	
 	
@@ -434,8 +732,11 @@ public class S400W
 	{
 		if ( _socket  !=null ) try { _socket  .close(); } catch (Exception e) {}
 		if ( _selector!=null ) try { _selector.close(); } catch (Exception e) {} 
+		if ( _lease   !=null ) _lease.close();
 		_socket = null;
 		_selector = null;
+		_in = null;
+		_lease = null;
 		
 	}
 	
@@ -450,35 +751,109 @@ public class S400W
 	private void sendCommand(int command) throws IOException, InterruptedIOException
 	{
 		if ( log.isLoggable(Level.FINE) ) log.fine(String.format(Locale.ROOT, "sendCommand(%08X)", command));
+		if ( _lease!=null ) _lease.check();
 		sleep(200);
 		if ( _socket.write(ByteBuffer.allocate(4).putInt(0, Integer.reverseBytes(command)))>0 ) sleep(200);
 	}
 	
 
 	/**
-	 * Equivalent to {@link #readResponse(int)} with {@link S400WSettings#timeoutStandard} as timeout.
+	 * Sends a command and reads the response as {@link S400WInfo.Field}, 
+	 * unless the connection has already been closed by the previous field.
+	 */
+	private S400WInfo.Field readField(int command, String method, S400WInfo.Field previous) throws IOException
+	{
+		if ( previous!=null && previous.getResponse().isEOF() ) return new S400WInfo.Field(S400WResponse.EOF, System.currentTimeMillis(), 0);
+		final long start = System.nanoTime();
+		sendCommand(command);
+		S400WResponse response = readResponse();
+		logResponse(method, response);
+		return new S400WInfo.Field(response, System.currentTimeMillis(), (System.nanoTime() - start) / 1000000L);
+	}
+	
+	
+	/**
+	 * Reads a status, version or battery response, equivalent to {@link #readResponse(Phase, Duration)} with {@link S400WSettings#timeoutStandard} as timeout.
 	 */
 	private S400WResponse readResponse() throws IOException
 	{
-		return readResponse(_settings.timeoutStandard);
+		return readResponse(Phase.STANDARD, _settings.timeoutStandard);
 	}	
 	
 	
 	/**
 	 * Reads in a short response using a {@link #_buffer},
 	 * {@link #receive(byte[], Duration)} and {@link S400WResponse#get(byte[], int, int)}.
+	 * The time until the phase's success response arrived is recorded in {@link S400WSettings#adaptive}, a timeout as {@code fallback}.
+	 * Error responses like {@link S400WResponse#NOPAPER} are not recorded, they come back fast and would shrink the timeout.
 	 *  
-	 * @param timeout seconds to wait for a response
+	 * @param phase phase for adaptive timeouts
+	 * @param fallback static timeout to wait for a response
 	 * @return the detected response 
 	 * @throws IOException If errors occurred while reading the response
 	 */
-	private S400WResponse readResponse(Duration timeout) throws IOException
+	private S400WResponse readResponse(Phase phase, Duration fallback) throws IOException
 	{
+		final Duration timeout = timeout(phase, fallback);
 		Arrays.fill(_buffer, (byte)0);
-		return S400WResponse.get(_buffer, 0, receive(_buffer, timeout));
+		final long start = System.nanoTime();
+		final int read = receive(_buffer, timeout);
+		final S400WResponse response = S400WResponse.get(_buffer, 0, read);
+		if ( read==0 ) record(phase, fallback);
+		else if ( read>0 && isSuccess(phase, response) ) record(phase, Duration.ofNanos(System.nanoTime() - start));
+		return response;
 	}	
+	
+	
+	/**
+	 * Returns whether the response is the one expected in the phase if the device works, as opposed to an error.
+	 */
+	private static boolean isSuccess(Phase phase, S400WResponse response)
+	{
+		switch (phase) {
+			case STANDARD:     return response!=S400WResponse.DEVICE_BUSY && response!=S400WResponse.BATTERY_LOW && response!=S400WResponse.NOPAPER;
+			case RESOLUTION:   return response==S400WResponse.DPI_STANDARD || response==S400WResponse.DPI_HIGH;
+			case SCAN_GO:      return response==S400WResponse.SCAN_GO;
+			case CLEAN_GO:     return response==S400WResponse.CLEAN_GO;
+			case CALIBRATE_GO: return response==S400WResponse.CALIBRATE_GO;
+			case CLEAN:        return response==S400WResponse.CLEAN_END;
+			case CALIBRATE:    return response==S400WResponse.CALIBRATE_END;
+			case SIZE:         return response==S400WResponse.JPEG_SIZE;
+			default:           return false;
+		}
+	}
+	
+	
+	/**
+	 * Returns the timeout for the given phase of the current operation, see {@link S400WSettings#adaptive}.
+	 */
+	private Duration timeout(Phase phase, Duration fallback)
+	{
+		final AdaptiveTimeouts adaptive = _settings.adaptive;
+		return adaptive==null ? fallback : adaptive.timeout(_settings.host + ":" + _settings.port, _dpi, _preview, phase, fallback);
+	}
+	
+	
+	/**
+	 * Records the duration of the given phase of the current operation, see {@link S400WSettings#adaptive}.
+	 */
+	private void record(Phase phase, Duration duration)
+	{
+		final AdaptiveTimeouts adaptive = _settings.adaptive;
+		if ( adaptive!=null ) adaptive.record(_settings.host + ":" + _settings.port, _dpi, _preview, phase, duration);
+	}
 
 	
+	/**
+	 * Logs and returns {@link S400WResponse#DEVICE_BUSY} if the device lease couldn't be acquired.
+	 */
+	private S400WResponse busy(String method)
+	{
+		log.warning(method + ": device lease not acquired, " + _settings.host + ":" + _settings.port + " in use");
+		return S400WResponse.DEVICE_BUSY;
+	}
+	
+	
 	/**
 	 * Convenience method for response logging.
 	 */
@@ -497,6 +872,18 @@ public class S400W
 	}
 	
 	
+	/**
+	 * Equivalent to {@link #receive(ByteBuffer, Duration)} with the time spent waiting tracked by the monitor.
+	 */
+	private int receive(ByteBuffer buffer, Duration timeout, TransferMonitor monitor) throws IOException
+	{
+		monitor.begin();
+		int read = receive(buffer, timeout);
+		monitor.end(read);
+		return read;
+	}
+	
+	
 	/**
 	 * Reads a number of bytes, not necessarily as many as the buffer has space for.
 	 * 
@@ -507,6 +894,7 @@ public class S400W
 	 */
 	private int receive(ByteBuffer buffer, Duration timeout) throws IOException
 	{
+		if ( _in!=null ) return read(buffer, timeout);
 		if ( select(timeout)>0 ) {
 			int r = _socket.read(buffer);
 			if ( log.isLoggable(Level.FINER) ) log.finer("receive(): read " + r + " bytes");
@@ -517,6 +905,25 @@ public class S400W
 	}
 
 	
+	/**
+	 * Blocking variant of {@link #receive(ByteBuffer, Duration)} for virtual threads, waiting by socket timeout.
+	 */
+	private int read(ByteBuffer buffer, Duration timeout) throws IOException
+	{
+		if ( timeout.toMillis()<=0 ) return 0;
+		_socket.socket().setSoTimeout((int)Math.min(Integer.MAX_VALUE, timeout.toMillis()));
+		try {
+			int r = _in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			if ( r>0 ) buffer.position(buffer.position() + r);
+			if ( log.isLoggable(Level.FINER) ) log.finer("read(): read " + r + " bytes");
+			return r;
+		} catch (SocketTimeoutException e) {
+			if ( log.isLoggable(Level.FINER) ) log.finer("read(): no data");
+			return 0;
+		}
+	}
+	
+	
 	private int select(final Duration duration) throws IOException
 	{
 		for ( Iterator<SelectionKey> it = _selector.selectedKeys().iterator(); it.hasNext(); it.remove() ) it.next();
@@ -547,7 +954,7 @@ public class S400W
 	/**
 	 * <code>Thread.sleep</code> wrapper.
 	 */
-	private static void sleep(long ms) throws InterruptedIOException
+	static void sleep(long ms) throws InterruptedIOException
 	{
 		// i had some trouble using normal sleep, probably due to to deep sleep states on the cpu
 		//long then = ms*1000000L + System.nanoTime();
@@ -562,6 +969,137 @@ public class S400W
 	}
 
 	
+	/**
+	 * A scan whose preview has been read, holding the device until its jpeg is fetched or discarded,
+	 * see {@link S400W#preview(int, ScanDataReceiver, ScanProgressListener)}.
+	 * <p>
+	 * This class is thread safe, the session may be fetched or discarded by another thread than the one that started it.
+	 */
+	public final class ScanSession implements Closeable
+	{
+		private final S400WResponse _response;
+		private final int _resolution;
+		private final long _previewed = System.nanoTime();
+		private final ScheduledFuture<?> _expiry;
+		private boolean _open;
+		
+		
+		private ScanSession(S400WResponse response, int resolution)
+		{
+			_response = response;
+			_resolution = resolution;
+			_open = response==S400WResponse.SCAN_READY;
+			_expiry = _open ? HOLD.schedule(this::expire, _settings.timeoutHold.toMillis(), TimeUnit.MILLISECONDS) : null;
+		}
+		
+		
+		/**
+		 * Returns the response of the preview phase, {@link S400WResponse#SCAN_READY} if the jpeg can be fetched.
+		 */
+		public S400WResponse getResponse()
+		{
+			return _response;
+		}
+		
+		
+		/**
+		 * Returns {@code true} if the jpeg can still be fetched.
+		 */
+		public synchronized boolean isOpen()
+		{
+			return _open;
+		}
+		
+		
+		/**
+		 * Fetches the scanned jpeg and closes the session.
+		 * If the device dropped the connection while the preview was looked at, it reconnects once.
+		 * 
+		 * @param jpeg callback handler for jpeg data
+		 * @param progress callback handler for progress notifications, or {@code null}
+		 * @return {@link S400WResponse#SCAN_READY} if sucessfully finished, {@link S400WResponse#EMPTY} if the session
+		 *  has been closed or has expired, any other response otherwise.
+		 * @throws IOException if IO errors occurred.
+		 * @throws InterruptedIOException if interrupted while sleeping.
+		 */
+		public S400WResponse fetchJpeg(ScanDataReceiver jpeg, ScanProgressListener progress) throws IOException, InterruptedIOException
+		{
+			if ( !claim() ) {
+				log.warning("fetchJpeg(): session " + (_response==S400WResponse.SCAN_READY ? "closed or expired" : "failed, " + _response));
+				return S400WResponse.EMPTY;
+			}
+			try {
+				// the device needs a moment after the preview
+				final long waited = (System.nanoTime() - _previewed) / 1000000L;
+				if ( waited<1000 ) sleep(1000 - waited);
+				_jpegInfo = null;
+				S400WResponse response = fetch(_resolution, true, jpeg, progress);
+				if ( response.isEOF() && _jpegInfo==null ) {
+					log.warning("fetchJpeg(): connection lost while holding, reconnecting");
+					if ( _socket  !=null ) try { _socket  .close(); } catch (Exception e) {}
+					if ( _selector!=null ) try { _selector.close(); } catch (Exception e) {}
+					connect();
+					response = fetch(_resolution, true, jpeg, progress);
+				}
+				return response;
+			}
+			catch (IOException e) {
+				log.log(Level.SEVERE, "fetchJpeg()", e);
+				throw e;
+			}
+			finally {
+				S400W.this.close();
+			}
+		}
+		
+		
+		/**
+		 * Releases the device without fetching the jpeg, the scanner drops it with the next scan.
+		 * 
+		 * @return {@code true} if the session was still open.
+		 */
+		public boolean discard()
+		{
+			if ( !claim() ) return false;
+			if ( log.isLoggable(Level.FINE) ) log.fine("discard(): jpeg not fetched");
+			S400W.this.close();
+			return true;
+		}
+		
+		
+		/**
+		 * Equivalent to {@link #discard()}.
+		 */
+		@Override
+		public void close()
+		{
+			discard();
+		}
+		
+		
+		private void expire()
+		{
+			if ( !claim() ) return;
+			log.warning("expire(): jpeg not fetched within " + _settings.timeoutHold + ", releasing " + _settings.host + ":" + _settings.port);
+			S400W.this.close();
+		}
+		
+		
+		/**
+		 * Closes the session for any other caller.
+		 * 
+		 * @return {@code true} if the session was open.
+		 */
+		private synchronized boolean claim()
+		{
+			if ( !_open ) return false;
+			_open = false;
+			if ( _expiry!=null ) _expiry.cancel(false);
+			return true;
+		}
+	}
+	
+	
 	private interface UncheckedCloseable extends Closeable
 	{
 		@Override
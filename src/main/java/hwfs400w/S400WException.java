@@ -0,0 +1,39 @@
+/* This file is licensed under Creative Commons License CC-CC0 1.0 (http://creativecommons.org/publicdomain/zero/1.0/).
+ *
+ * Created 2026-10-18 by bastel.
+ */
+
+package hwfs400w;
+
+import java.io.IOException;
+
+/**
+ * Signals an unexpected scanner response where there is no return value to report it,
+ * e.g. to subscribers of a {@link ScanPublisher}.
+ *
+ * @author bastel
+ * @since 2026-10-18
+ */
+public class S400WException extends IOException
+{
+	private final static long serialVersionUID = 6140393471524035527L;
+
+	private final transient S400WResponse _response;
+
+
+	public S400WException(String operation, S400WResponse response)
+	{
+		super(operation + ": " + (response.isEmpty() ? "timeout" : response.isEOF() ? "connection closed" : response.toString().trim()));
+		_response = response;
+	}
+
+
+	/**
+	 * Returns the scanner's response, {@link S400WResponse#isEmpty() empty} on timeouts
+	 * and {@link S400WResponse#isEOF() EOF} if the connection has been closed.
+	 */
+	public S400WResponse getResponse()
+	{
+		return _response;
+	}
+}
@@ -0,0 +1,221 @@
+/* This file is licensed under Creative Commons License CC-CC0 1.0 (http://creativecommons.org/publicdomain/zero/1.0/).
+ *
+ * Created 2026-10-18 by bastel.
+ */
+
+package hwfs400w;
+
+/**
+ * Version, status and battery state of a S400W, read on a single connection by {@link S400W#getInfo()}.
+ *
+ * @author bastel
+ * @since 2026-10-18
+ */
+public final class S400WInfo
+{
+	/**
+	 * A single response with the time it was read and how long it took.
+	 */
+	public final static class Field
+	{
+		private final S400WResponse _response;
+		private final long _time;
+		private final long _millis;
+
+
+		Field(S400WResponse response, long time, long millis)
+		{
+			_response = response;
+			_time = time;
+			_millis = millis;
+		}
+
+
+		/**
+		 * Returns the response, {@link S400WResponse#isEOF()} or {@link S400WResponse#isEmpty()} if not available.
+		 */
+		public S400WResponse getResponse()
+		{
+			return _response;
+		}
+
+
+		/**
+		 * Returns the time the response has been read, in milliseconds since the epoch.
+		 */
+		public long getTime()
+		{
+			return _time;
+		}
+
+
+		/**
+		 * Returns the time from sending the command until the response arrived, in milliseconds.
+		 */
+		public long getMillis()
+		{
+			return _millis;
+		}
+
+
+		/**
+		 * Returns {@code true} if there is a response.
+		 */
+		public boolean isAvailable()
+		{
+			return !_response.isEOF() && !_response.isEmpty();
+		}
+
+
+		@Override
+		public String toString()
+		{
+			return _response + " (" + _millis + " ms)";
+		}
+	}
+
+	private final Field _version;
+	private final Field _status;
+	private final Field _battery;
+
+
+	S400WInfo(Field version, Field status, Field battery)
+	{
+		_version = version;
+		_status = status;
+		_battery = battery;
+	}
+
+
+	public Field getVersion()
+	{
+		return _version;
+	}
+
+
+	public Field getStatus()
+	{
+		return _status;
+	}
+
+
+	public Field getBattery()
+	{
+		return _battery;
+	}
+
+
+	/**
+	 * Returns the time of the oldest field, in milliseconds since the epoch.
+	 */
+	public long getTime()
+	{
+		return Math.min(_version.getTime(), Math.min(_status.getTime(), _battery.getTime()));
+	}
+
+
+	/**
+	 * Returns the manufacturer code, the first two characters of the version, e.g. {@code NB} (Mustek) or {@code IO} (ion),
+	 * or {@code null} if unknown.
+	 */
+	public String getManufacturer()
+	{
+		final String version = version();
+		return version!=null && version.length()>=2 ? version.substring(0, 2) : null;
+	}
+
+
+	/**
+	 * Returns the firmware version, the decimal number after the {@code '.'} of the version, e.g. {@code 32} for {@code IO0a.032},
+	 * or {@code -1} if unknown.
+	 */
+	public int getFirmware()
+	{
+		return parseFirmware(version());
+	}
+
+
+	/**
+	 * Returns {@code true} if the firmware supports setting the resolution, see {@link S400W#MIN_SET_RESOLUTION_FW}.
+	 */
+	public boolean isResolutionSupported()
+	{
+		return getFirmware()>=S400W.MIN_SET_RESOLUTION_FW;
+	}
+
+
+	/**
+	 * Returns the raw battery level, the battery state as hexadecimal number, or {@code -1} if unknown.
+	 */
+	public int getBatteryLevel()
+	{
+		return parseBatteryLevel(_battery.getResponse());
+	}
+
+
+	/**
+	 * Returns the battery voltage, assuming the battery level is in centivolts, or {@link Double#NaN} if unknown.
+	 */
+	public double getBatteryVoltage()
+	{
+		final int level = getBatteryLevel();
+		return level<0 ? Double.NaN : level / 100.0;
+	}
+
+
+	/**
+	 * Returns {@code true} if the battery level indicates USB power (greater than 280).
+	 */
+	public boolean isUsbPowered()
+	{
+		return getBatteryLevel()>280;
+	}
+
+
+	@Override
+	public String toString()
+	{
+		return "S400WInfo [version=" + _version + ", status=" + _status + ", battery=" + _battery + "]";
+	}
+
+
+	private String version()
+	{
+		final S400WResponse r = _version.getResponse();
+		return _version.isAvailable() && !r.isKnown() ? r.toString().trim() : null;
+	}
+
+
+	/**
+	 * Parses the firmware version of a version string like {@code IO0a.032}.
+	 *
+	 * @return firmware version or {@code -1}
+	 */
+	static int parseFirmware(String version)
+	{
+		if ( version==null ) return -1;
+		final int idx = version.lastIndexOf('.');
+		if ( idx<0 ) return -1;
+		try {
+			return Integer.parseInt(version.substring(idx + 1).trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+
+	/**
+	 * Parses a battery state response as hexadecimal number.
+	 *
+	 * @return level or {@code -1}
+	 */
+	static int parseBatteryLevel(S400WResponse response)
+	{
+		if ( response==null || response.isEOF() || response.isEmpty() || response.isKnown() ) return -1;
+		try {
+			return Integer.parseInt(response.toString().trim(), 16);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
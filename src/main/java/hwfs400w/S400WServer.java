@@ -0,0 +1,256 @@
+/* This file is licensed under Creative Commons License CC-CC0 1.0 (http://creativecommons.org/publicdomain/zero/1.0/).
+ *
+ * Created 2026-10-18 by bastel.
+ */
+
+package hwfs400w;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Standalone HTTP server providing the services of {@link S400WServlet} without a servlet container,
+ * using the JDK's built-in HTTP server.
+ * <p>
+ * Services are available at {@code /s400w/}, the parameters of {@link S400WService} are read from
+ * system properties prefixed with {@code hwfs400w.S400WServer.}, e.g. {@code -Dhwfs400w.S400WServer.address=192.168.18.33:23}.
+ * <p>
+ * Start with {@code java -jar hwfs400w.jar serve [port]}, see {@link Scanner}.
+ *
+ * @author bastel
+ * @since 2026-10-18
+ */
+public class S400WServer
+{
+	private final static Logger log = Logger.getLogger(S400WServer.class.getName());
+
+	/** Prefix for properties, usually &lt;package-name&gt;.&lt;class-name&gt;. */
+	private final static String PROPERTY_KEY = S400WServer.class.getName();
+
+	/** Default HTTP port. */
+	public final static int DEFAULT_PORT = 8400;
+
+	/** Path of the services. */
+	public final static String CONTEXT = "/s400w";
+
+	/** Maximum size of url encoded form bodies. */
+	private final static int MAX_FORM = 65536;
+
+	private final HttpServer _server;
+	private final ExecutorService _executor;
+	private final S400WService _service;
+
+
+	/**
+	 * Creates a new server bound to the given address, call {@link #start()} to start.
+	 *
+	 * @throws IOException if the address can't be bound.
+	 * @throws IllegalArgumentException if a service parameter is invalid.
+	 */
+	public S400WServer(InetSocketAddress address) throws IOException, IllegalArgumentException
+	{
+		this(address, name -> System.getProperty(PROPERTY_KEY + "." + name));
+	}
+
+
+	/**
+	 * Creates a new server with explicit service parameters, e.g. for tests.
+	 *
+	 * @param parameters parameter lookup, returns {@code null} for missing parameters.
+	 */
+	S400WServer(InetSocketAddress address, Function<String, String> parameters) throws IOException, IllegalArgumentException
+	{
+		_service = new S400WService(parameters);
+		_executor = Threads.executor("s400w-http-");
+		_server = HttpServer.create(address, 0);
+		_server.setExecutor(_executor);
+		_server.createContext(CONTEXT, this::handle);
+		_server.createContext("/", exchange -> {
+			exchange.getResponseHeaders().set("Location", CONTEXT + "/");
+			exchange.sendResponseHeaders(HttpURLConnection.HTTP_MOVED_TEMP, -1);
+			exchange.close();
+		});
+	}
+
+
+	/**
+	 * Starts the server.
+	 */
+	public void start()
+	{
+		_server.start();
+		log.info("listening on " + _server.getAddress() + CONTEXT + "/");
+	}
+
+
+	/**
+	 * Stops the server, waiting at most the given seconds for running requests.
+	 */
+	public void stop(int seconds)
+	{
+		_server.stop(seconds);
+		_service.close();
+		_executor.shutdown();
+		try {
+			_executor.awaitTermination(seconds, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+	/**
+	 * Returns the bound address.
+	 */
+	public InetSocketAddress getAddress()
+	{
+		return _server.getAddress();
+	}
+
+
+	private void handle(HttpExchange exchange) throws IOException
+	{
+		try {
+			final String path = exchange.getRequestURI().getPath();
+			if ( path.equals(CONTEXT) ) {
+				exchange.getResponseHeaders().set("Location", CONTEXT + "/");
+				exchange.sendResponseHeaders(HttpURLConnection.HTTP_MOVED_TEMP, -1);
+				return;
+			}
+			final Exchange adapter = new Exchange(exchange, path.substring(CONTEXT.length()));
+			switch (exchange.getRequestMethod()) {
+				case "GET":
+					_service.doGet(adapter);
+					break;
+
+				case "POST":
+					_service.doPost(adapter);
+					break;
+
+				default:
+					adapter.error(HttpURLConnection.HTTP_BAD_METHOD, exchange.getRequestMethod());
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			log.log(Level.WARNING, "handle(" + exchange.getRequestURI() + ")", e);
+			if ( exchange.getResponseCode()==-1 ) exchange.sendResponseHeaders(HttpURLConnection.HTTP_INTERNAL_ERROR, -1);
+		}
+		finally {
+			exchange.close();
+		}
+	}
+
+
+	/**
+	 * {@link HttpExchange} as {@link S400WService.Exchange}.
+	 */
+	private final static class Exchange implements S400WService.Exchange
+	{
+		private final HttpExchange _exchange;
+		private final String _path;
+		private Map<String, String> _parameters;
+
+
+		Exchange(HttpExchange exchange, String path)
+		{
+			_exchange = exchange;
+			_path = path;
+		}
+
+
+		@Override
+		public String path()
+		{
+			return _path;
+		}
+
+
+		@Override
+		public String parameter(String name)
+		{
+			if ( _parameters==null ) {
+				_parameters = new HashMap<>();
+				try {
+					parse(_exchange.getRequestURI().getRawQuery(), _parameters);
+					String type = _exchange.getRequestHeaders().getFirst("Content-Type");
+					if ( type!=null && type.toLowerCase(Locale.ROOT).startsWith("application/x-www-form-urlencoded") ) {
+						parse(readForm(_exchange.getRequestBody()), _parameters);
+					}
+				} catch (IOException | IllegalArgumentException e) {
+					log.log(Level.FINE, "parameter()", e);
+				}
+			}
+			return _parameters.get(name);
+		}
+
+
+		@Override
+		public void header(String name, String value)
+		{
+			_exchange.getResponseHeaders().set(name, value);
+		}
+
+
+		@Override
+		public OutputStream send(int status, String contentType, long length) throws IOException
+		{
+			if ( contentType!=null ) _exchange.getResponseHeaders().set("Content-Type", contentType);
+			// HttpExchange: 0 means chunked, -1 no body
+			_exchange.sendResponseHeaders(status, length==0 ? -1 : length<0 ? 0 : length);
+			return _exchange.getResponseBody();
+		}
+
+
+		@Override
+		public void error(int status, String message) throws IOException
+		{
+			final byte[] data = message.getBytes(StandardCharsets.UTF_8);
+			_exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+			_exchange.sendResponseHeaders(status, data.length==0 ? -1 : data.length);
+			if ( data.length>0 ) _exchange.getResponseBody().write(data);
+		}
+
+
+		private static String readForm(InputStream in) throws IOException
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			for ( int r = in.read(buf); r!=-1; r = in.read(buf) ) {
+				out.write(buf, 0, r);
+				if ( out.size()>MAX_FORM ) throw new IOException("Form too large");
+			}
+			return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+		}
+
+
+		private static void parse(String query, Map<String, String> parameters) throws UnsupportedEncodingException
+		{
+			if ( query==null ) return;
+			for ( String pair : query.split("&") ) {
+				if ( pair.isEmpty() ) continue;
+				int idx = pair.indexOf('=');
+				String name  = URLDecoder.decode(idx<0 ? pair : pair.substring(0, idx), "UTF-8");
+				String value = idx<0 ? "" : URLDecoder.decode(pair.substring(idx + 1), "UTF-8");
+				parameters.putIfAbsent(name, value);
+			}
+		}
+	}
+}
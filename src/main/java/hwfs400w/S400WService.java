@@ -0,0 +1,830 @@
+/* This file is licensed under Creative Commons License CC-CC0 1.0 (http://creativecommons.org/publicdomain/zero/1.0/).
+ *
+ * Created 2026-10-18 by bastel.
+ */
+
+package hwfs400w;
+
+import static java.net.HttpURLConnection.HTTP_BAD_GATEWAY;
+import static java.net.HttpURLConnection.HTTP_BAD_REQUEST;
+import static java.net.HttpURLConnection.HTTP_GATEWAY_TIMEOUT;
+import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
+import static java.net.HttpURLConnection.HTTP_NOT_IMPLEMENTED;
+import static java.net.HttpURLConnection.HTTP_NO_CONTENT;
+import static java.net.HttpURLConnection.HTTP_OK;
+import static java.net.HttpURLConnection.HTTP_UNAVAILABLE;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The HTTP services for a S400W scanner, independent of the hosting server.
+ * Used by {@link S400WServlet} inside a servlet container and by {@link S400WServer} standalone.
+ * <p>
+ * Parameters (servlet init parameters or system properties):
+ * <ul>
+ * <li>{@code address}: scanner address {@code host:port}, default {@value S400WSettings#DEFAULT_ADDR}
+ * <li>{@code bufferBudget}: bytes all concurrent scans may buffer in memory, default 64 MiB
+ * <li>{@code bufferChunk}: size of a single buffer chunk, default 64 KiB
+ * <li>{@code bufferSpill}: scans larger than this are buffered in temporary files, default 8 MiB
+ * <li>{@code bufferWait}: seconds a scan waits for buffer memory before it is rejected with {@code 503}, default 30
+ * <li>{@code spool}: directory of a {@link ScanPipeline} every successful scan is enqueued to, none by default
+ * <li>{@code pipelineThreads}: number of scans post-processed in parallel, default 2
+ * <li>{@code pipelineStages}: comma separated {@link ScanStage} class names
+ * <li>{@code archive}: {@link ScanIndex} file every successful scan is added to, none by default
+ * <li>{@code duplicateDistance}: maximum {@link PerceptualHash} distance of a scan flagged as duplicate, default 4
+ * <li>{@code telemetryInterval}: seconds between {@link Telemetry} samples of status and battery, {@code 0} to only record
+ *  what requests read anyway, default 0
+ * </ul>
+ * <p>
+ * Scans are returned as jpeg, or with {@code format=g4} as bitonal CCITT Group 4 TIFF.
+ * With {@code format=progressive} or {@code format=optimized} the jpeg is transcoded losslessly by {@link JpegTranscoder},
+ * into a buffer of the same memory budget as the scan, it's returned as scanned if that fails or the budget is used up.
+ * {@link ProgressiveJpegStage} caches progressive versions of spooled scans, a cached version is returned if it already exists.
+ * With {@code deskew=true} the skew is estimated from the preview by {@link SkewEstimator} and returned as {@code X-Skew-Angle},
+ * a {@code g4} scan is straightened by {@link Deskewer} while it's converted. Times are returned as {@code X-Skew-Millis}
+ * (estimation) and {@code X-Deskew-Millis} (rotation). {@link DeskewStage} straightens spooled scans.
+ * <p>
+ * Two-phase scans: {@code POST preview} returns the preview as PNG and the id of the held scan in the {@code X-Scan-Session} header,
+ * {@code POST accept?session=<id>} fetches the jpeg with the parameters of {@code scan}, {@code POST reject?session=<id>} discards it.
+ * Unknown sessions and sessions not decided within {@link S400WSettings#timeoutHold} are answered with {@code 404}.
+ * <p>
+ * {@code GET telemetry?range=1h} returns the recorded battery levels, status transitions and scan durations as JSON,
+ * see {@link Telemetry#appendJson(StringBuilder, long, Duration)}.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author bastel
+ * @since 2026-10-18
+ */
+class S400WService
+{
+	private final static Logger log = Logger.getLogger(S400WService.class.getName());
+
+	/** How long {@code progress} reports a finished request as {@code done}, in milliseconds. */
+	private final static long FINISHED_KEEP = 60000;
+
+	/** Default parameter values. */
+	final static String DEFAULT_BUFFER_BUDGET = "67108864";
+	final static String DEFAULT_BUFFER_CHUNK  = "65536";
+	final static String DEFAULT_BUFFER_SPILL  = "8388608";
+	final static String DEFAULT_BUFFER_WAIT   = "30";
+	final static String DEFAULT_PIPELINE_THREADS = "2";
+	final static String DEFAULT_DUPLICATE_DISTANCE = "4";
+	final static String DEFAULT_TELEMETRY_INTERVAL = "0";
+
+	private final S400WSettings _settings = new S400WSettings();
+
+	/** Memory budget for buffering scans of all requests. */
+	private final ScanBuffer.Budget _budget;
+
+	/** Maximum time a scan request waits for buffer memory. */
+	private final Duration _bufferWait;
+
+	/** Post-processing of scans, or {@code null}. */
+	private final ScanPipeline _pipeline;
+
+	/** Archive of scans by perceptual hash, or {@code null}. */
+	private final ScanIndex _archive;
+	private final int _duplicateDistance;
+
+	/** Progress of running scans by client supplied id. */
+	private final Map<String, ScanProgress> _progress = new ConcurrentHashMap<>();
+
+	/** Finish times of tracked requests by client supplied id, kept for {@link #FINISHED_KEEP}. */
+	private final Map<String, Long> _finished = new ConcurrentHashMap<>();
+
+	/** Scans held after their preview by session id. */
+	private final Map<String, Held> _sessions = new ConcurrentHashMap<>();
+
+	/** History of status, battery and scans. */
+	private final Telemetry _telemetry = new Telemetry();
+
+	/** Last result of {@code /info}. */
+	private volatile S400WInfo _info;
+
+
+	/**
+	 * A single HTTP request / response, implemented by the hosting server.
+	 */
+	interface Exchange
+	{
+		/** Returns the path relative to the service root, starting with {@code /}. */
+		String path();
+
+		/** Returns a query or form parameter, or {@code null}. */
+		String parameter(String name);
+
+		/** Sets a response header, must be called before {@link #send(int, String, long)}. */
+		void header(String name, String value);
+
+		/**
+		 * Sends status and headers and returns the stream for the body.
+		 *
+		 * @param contentType content type, or {@code null} if there is no body.
+		 * @param length body length, {@code -1} if unknown.
+		 */
+		OutputStream send(int status, String contentType, long length) throws IOException;
+
+		/** Sends an error response. */
+		void error(int status, String message) throws IOException;
+	}
+
+
+	/**
+	 * A scan held after its preview.
+	 */
+	private final static class Held
+	{
+		final S400W device;
+		final S400W.ScanSession session;
+		final int dpi;
+		final long previewMillis;
+		final SkewEstimator skew;
+
+
+		Held(S400W device, S400W.ScanSession session, int dpi, long previewMillis, SkewEstimator skew)
+		{
+			this.device = device;
+			this.session = session;
+			this.dpi = dpi;
+			this.previewMillis = previewMillis;
+			this.skew = skew;
+		}
+	}
+
+
+	/**
+	 * Creates a new service.
+	 *
+	 * @param parameters parameter lookup, returns {@code null} for missing parameters.
+	 * @throws IllegalArgumentException if a parameter is invalid.
+	 */
+	S400WService(Function<String, String> parameters) throws IllegalArgumentException
+	{
+		final String addr = trim(parameters.apply("address"), S400WSettings.DEFAULT_ADDR);
+		try {
+			_settings.with(addr);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Invalid S400W address: " + addr);
+		}
+		try {
+			_budget = new ScanBuffer.Budget(
+				Long.parseLong(trim(parameters.apply("bufferBudget"), DEFAULT_BUFFER_BUDGET)),
+				Integer.parseInt(trim(parameters.apply("bufferChunk"), DEFAULT_BUFFER_CHUNK)),
+				Long.parseLong(trim(parameters.apply("bufferSpill"), DEFAULT_BUFFER_SPILL)));
+			_bufferWait = Duration.parse("PT" + trim(parameters.apply("bufferWait"), DEFAULT_BUFFER_WAIT) + "S");
+		} catch (IllegalArgumentException | DateTimeParseException e) {
+			throw new IllegalArgumentException("Invalid S400W buffer settings: " + e.getMessage());
+		}
+		final String spool = trim(parameters.apply("spool"), null);
+		try {
+			_pipeline = spool==null ? null : new ScanPipeline(Paths.get(spool),
+				Integer.parseInt(trim(parameters.apply("pipelineThreads"), DEFAULT_PIPELINE_THREADS)),
+				ScanPipeline.stages(parameters.apply("pipelineStages")));
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Invalid S400W spool " + spool + ": " + e);
+		}
+		final String archive = trim(parameters.apply("archive"), null);
+		try {
+			_archive = archive==null ? null : new ScanIndex(Paths.get(archive));
+			_duplicateDistance = Integer.parseInt(trim(parameters.apply("duplicateDistance"), DEFAULT_DUPLICATE_DISTANCE));
+			if ( _duplicateDistance<0 || _duplicateDistance>ScanIndex.MAX_DISTANCE ) throw new IllegalArgumentException("duplicateDistance=" + _duplicateDistance);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Invalid S400W archive " + archive + ": " + e);
+		}
+		final String interval = trim(parameters.apply("telemetryInterval"), DEFAULT_TELEMETRY_INTERVAL);
+		try {
+			final Duration d = Duration.parse("PT" + interval + "S");
+			if ( d.isNegative() ) throw new IllegalArgumentException();
+			if ( !d.isZero() ) _telemetry.startSampler(_settings, d);
+		} catch (IllegalArgumentException | DateTimeParseException e) {
+			throw new IllegalArgumentException("Invalid S400W telemetryInterval: " + interval);
+		}
+	}
+
+
+	/**
+	 * Releases resources, unfinished post-processing resumes on the next start.
+	 */
+	void close()
+	{
+		_telemetry.stopSampler();
+		for ( Held held : _sessions.values() ) held.session.discard();
+		_sessions.clear();
+		for ( Closeable c : new Closeable[] { _pipeline, _archive } ) {
+			if ( c!=null ) {
+				try {
+					c.close();
+				} catch (IOException e) {
+					log.log(Level.WARNING, "close()", e);
+				}
+			}
+		}
+	}
+
+
+	void doGet(Exchange exchange) throws IOException
+	{
+		noCache(exchange);
+		final String path = exchange.path();
+		switch (path.substring(1)) {
+			case "version":
+				writeResponse(exchange, getDevice().getVersion());
+				break;
+
+			case "status":
+				final S400WResponse status = getDevice().getStatus();
+				_telemetry.recordStatus(System.currentTimeMillis(), status);
+				writeResponse(exchange, status);
+				break;
+
+			case "battery":
+				final S400WResponse battery = getDevice().getBatteryState();
+				_telemetry.recordBattery(System.currentTimeMillis(), battery);
+				writeResponse(exchange, battery);
+				break;
+
+			case "telemetry":
+				doTelemetry(exchange);
+				break;
+
+			case "progress":
+				doProgress(exchange);
+				break;
+
+			case "info":
+				doInfo(exchange);
+				break;
+
+			case "scans":
+				doScans(exchange);
+				break;
+
+			default:
+				exchange.error(HTTP_NOT_IMPLEMENTED, path.substring(1));
+				break;
+
+			case "":
+			case "index.htm":
+			case "index.html":
+				try (InputStream in = S400W.class.getResourceAsStream("index.html")) {
+					if ( in!=null ) {
+						OutputStream out = exchange.send(HTTP_OK, "text/html; charset=utf-8", -1);
+						byte[] buf = new byte[4096];
+						for ( int r = in.read(buf); r!=-1; r = in.read(buf) ) out.write(buf, 0, r);
+					}
+				}
+		}
+	}
+
+
+	void doPost(Exchange exchange) throws IOException
+	{
+		noCache(exchange);
+		final String path = exchange.path();
+		// scans are tracked by a client supplied id, see doProgress()
+		final String id = trim(exchange.parameter("id"), null);
+		try {
+			doPost(exchange, path);
+		} finally {
+			if ( id!=null ) finish(id);
+		}
+	}
+
+
+	private void doPost(Exchange exchange, String path) throws IOException
+	{
+		switch (path.substring(1)) {
+			case "poweroff":
+				writeResponse(exchange, getDevice().poweroff());
+				break;
+
+			case "clean":
+				writeResponse(exchange, getDevice().clean(), S400WResponse.CLEAN_END);
+				break;
+
+			case "calibrate":
+				writeResponse(exchange, getDevice().calibrate(), S400WResponse.CALIBRATE_END);
+				break;
+
+			case "scan":
+				doScan(exchange);
+				break;
+
+			case "preview":
+				doPreview(exchange);
+				break;
+
+			case "accept":
+				doAccept(exchange);
+				break;
+
+			case "reject":
+				doReject(exchange);
+				break;
+
+			default:
+				exchange.error(HTTP_NOT_IMPLEMENTED, path.substring(1));
+				break;
+		}
+	}
+
+
+	private void doScan(Exchange exchange) throws IOException
+	{
+		final int dpi = Integer.parseInt(trim(exchange.parameter("dpi"), "0"));
+		final S400W device = getDevice();
+
+		final ScanBuffer buffer = _budget.allocate(_bufferWait);
+		if ( buffer==null ) {
+			exchange.header("Retry-After", Long.toString(Math.max(1, _bufferWait.getSeconds())));
+			exchange.error(HTTP_UNAVAILABLE, "Too many concurrent scans");
+			return;
+		}
+		final String id = trim(exchange.parameter("id"), null);
+		// the preview is only read to estimate the skew
+		final SkewEstimator skew = isDeskew(exchange) ? new SkewEstimator() : null;
+		try {
+			final long start = System.nanoTime();
+			S400WResponse result = device.scan(dpi, skew, buffer, id==null ? null : p -> _progress.put(id, p));
+			if ( result!=S400WResponse.SCAN_READY ) {
+				writeResponse(exchange, result, S400WResponse.SCAN_READY);
+				return;
+			}
+			_telemetry.recordScan(System.currentTimeMillis(), (System.nanoTime() - start) / 1000000L);
+			sendScan(exchange, device, dpi, buffer, skew);
+		} finally {
+			buffer.release();
+		}
+	}
+
+
+	/**
+	 * Scans and sends the preview as PNG, holding the scan for {@code accept} or {@code reject}.
+	 */
+	private void doPreview(Exchange exchange) throws IOException
+	{
+		final int dpi = Integer.parseInt(trim(exchange.parameter("dpi"), "0"));
+		final S400W device = getDevice();
+		final String id = trim(exchange.parameter("id"), null);
+		final Path png = Files.createTempFile("s400w-preview", ".png");
+		final SkewEstimator skew = new SkewEstimator();
+		S400W.ScanSession session = null;
+		try {
+			final long start = System.nanoTime();
+			session = device.preview(dpi, tee(new PngWriter(png, PreviewKernels.WIDTH, 3, ForkJoinPool.commonPool()), skew),
+				id==null ? null : p -> _progress.put(id, p));
+			if ( session.getResponse()!=S400WResponse.SCAN_READY ) {
+				writeResponse(exchange, session.getResponse(), S400WResponse.SCAN_READY);
+				return;
+			}
+			_sessions.values().removeIf(h -> !h.session.isOpen());
+			final String sessionId = ScanJob.newId(System.currentTimeMillis());
+			_sessions.put(sessionId, new Held(device, session, dpi, (System.nanoTime() - start) / 1000000L, skew));
+			exchange.header("X-Scan-Session", sessionId);
+			Files.copy(png, exchange.send(HTTP_OK, "image/png", Files.size(png)));
+			session = null;
+		} finally {
+			// not held if the preview couldn't be sent
+			if ( session!=null ) session.discard();
+			Files.deleteIfExists(png);
+		}
+	}
+
+
+	/**
+	 * Fetches and sends the jpeg of a held scan, see {@link #doScan(Exchange)}.
+	 */
+	private void doAccept(Exchange exchange) throws IOException
+	{
+		final String sessionId = trim(exchange.parameter("session"), "");
+		Held held = _sessions.get(sessionId);
+		if ( held==null || !held.session.isOpen() ) {
+			exchange.error(HTTP_NOT_FOUND, "");
+			return;
+		}
+		final ScanBuffer buffer = _budget.allocate(_bufferWait);
+		if ( buffer==null ) {
+			// still held, may be accepted again
+			exchange.header("Retry-After", Long.toString(Math.max(1, _bufferWait.getSeconds())));
+			exchange.error(HTTP_UNAVAILABLE, "Too many concurrent scans");
+			return;
+		}
+		final String id = trim(exchange.parameter("id"), null);
+		try {
+			if ( !_sessions.remove(sessionId, held) ) {
+				exchange.error(HTTP_NOT_FOUND, "");
+				return;
+			}
+			final long start = System.nanoTime();
+			S400WResponse result = held.session.fetchJpeg(buffer, id==null ? null : p -> _progress.put(id, p));
+			if ( result!=S400WResponse.SCAN_READY ) {
+				writeResponse(exchange, result, S400WResponse.SCAN_READY);
+				return;
+			}
+			// device time, without the time the preview was looked at
+			_telemetry.recordScan(System.currentTimeMillis(), held.previewMillis + (System.nanoTime() - start) / 1000000L);
+			sendScan(exchange, held.device, held.dpi, buffer, isDeskew(exchange) ? held.skew : null);
+		} finally {
+			buffer.release();
+		}
+	}
+
+
+	/**
+	 * Discards a held scan, {@code 204} if it was still held.
+	 */
+	private void doReject(Exchange exchange) throws IOException
+	{
+		final Held held = _sessions.remove(trim(exchange.parameter("session"), ""));
+		if ( held==null || !held.session.discard() ) {
+			exchange.error(HTTP_NOT_FOUND, "");
+			return;
+		}
+		exchange.send(HTTP_NO_CONTENT, null, 0);
+	}
+
+
+	/**
+	 * Sends a successful scan, after enqueueing it to the pipeline and adding it to the archive.
+	 *
+	 * @param skew skew estimated from the preview if deskewing was requested, or {@code null}
+	 */
+	private void sendScan(Exchange exchange, S400W device, int dpi, ScanBuffer buffer, SkewEstimator skew) throws IOException
+	{
+		final JpegMarkerParser info = device.getJpegInfo();
+		if ( info!=null ) {
+			exchange.header("X-Jpeg-Size", info.getWidth() + "x" + info.getHeight());
+			exchange.header("X-Jpeg-Sampling", info.getSampling());
+			exchange.header("X-Jpeg-Restart-Interval", Integer.toString(info.getRestartInterval()));
+			if ( info.getError()!=null ) exchange.header("X-Jpeg-Error", info.getError());
+		}
+		final ScanJob job = _pipeline!=null ? _pipeline.enqueue(dpi, buffer::writeTo) : null;
+		final String scanId = job!=null ? job.getId() : ScanJob.newId(System.currentTimeMillis());
+		if ( job!=null ) exchange.header("X-Scan-Job", scanId);
+		if ( _archive!=null ) archive(exchange, scanId, dpi, buffer);
+		if ( skew!=null ) {
+			exchange.header("X-Skew-Angle", String.format(Locale.ROOT, "%.2f", skew.getAngle()));
+			exchange.header("X-Skew-Millis", Long.toString(skew.getMillis()));
+		}
+		if ( "g4".equals(exchange.parameter("format")) ) {
+			final TiffG4Writer tiff = new TiffG4Writer();
+			final Deskewer deskewer = new Deskewer(new Binarizer(tiff), skew!=null ? skew.getAngle() : Double.NaN);
+			try ( InputStream in = buffer.openStream() ) {
+				new JpegStripeDecoder(in, dpi).decode(deskewer, ForkJoinPool.commonPool());
+			} catch (IOException e) {
+				exchange.error(HTTP_BAD_GATEWAY, "Can't convert scan: " + e.getMessage());
+				return;
+			}
+			if ( skew!=null ) exchange.header("X-Deskew-Millis", Long.toString(deskewer.getMillis()));
+			tiff.writeTo(exchange.send(HTTP_OK, "image/tiff", tiff.length()));
+			return;
+		}
+		final String format = exchange.parameter("format");
+		if ( job!=null && "progressive".equals(format) && sendFile(exchange, job.resolve(JpegTranscoder.Mode.PROGRESSIVE.suffix())) ) return;
+		final ScanBuffer transcoded = transcode(format, buffer);
+		if ( transcoded!=null ) {
+			try {
+				transcoded.writeTo(exchange.send(HTTP_OK, "image/jpeg", transcoded.length()));
+			} finally {
+				transcoded.release();
+			}
+			return;
+		}
+		buffer.writeTo(exchange.send(HTTP_OK, "image/jpeg", buffer.length()));
+	}
+
+
+	/**
+	 * Sends a jpeg file, if it exists.
+	 *
+	 * @return {@code false} if the file doesn't exist.
+	 */
+	private static boolean sendFile(Exchange exchange, Path file) throws IOException
+	{
+		final FileChannel channel;
+		try {
+			channel = FileChannel.open(file);
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+		try ( InputStream in = Channels.newInputStream(channel) ) {
+			final OutputStream out = exchange.send(HTTP_OK, "image/jpeg", channel.size());
+			final byte[] buffer = new byte[65536];
+			for ( int r; (r = in.read(buffer))>0; ) out.write(buffer, 0, r);
+		}
+		if ( log.isLoggable(Level.FINE) ) log.fine("sendFile(): " + file);
+		return true;
+	}
+
+
+	/**
+	 * Transcodes a scan for {@code format=progressive} or {@code format=optimized} into a buffer of the scan budget,
+	 * which spills to a temporary file like the scan.
+	 *
+	 * @return the transcoded jpeg, to be released after use, or {@code null} for other formats, if the budget
+	 *  is used up or transcoding failed.
+	 */
+	private ScanBuffer transcode(String format, ScanBuffer buffer) throws IOException
+	{
+		final JpegTranscoder.Mode mode = "progressive".equals(format) ? JpegTranscoder.Mode.PROGRESSIVE
+			: "optimized".equals(format) ? JpegTranscoder.Mode.OPTIMIZED : null;
+		if ( mode==null ) return null;
+		final ScanBuffer out = _budget.allocate(_bufferWait);
+		if ( out==null ) {
+			log.warning("transcode(): no buffer for " + mode + ", sending the scan as is");
+			return null;
+		}
+		try ( InputStream in = buffer.openStream() ) {
+			out.open(buffer.length());
+			JpegTranscoder.transcode(in, new OutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					write(new byte[] { (byte)b }, 0, 1);
+				}
+
+				@Override
+				public void write(byte[] array, int offset, int length) throws IOException {
+					out.write(array, offset, length);
+				}
+			}, mode);
+		} catch (IOException | RuntimeException e) {
+			log.log(Level.WARNING, "transcode(): " + mode + " failed, sending the scan as is", e);
+			out.release();
+			return null;
+		}
+		if ( log.isLoggable(Level.FINE) ) log.fine(String.format("transcode(): %s %,d -> %,d bytes%s", mode, buffer.length(), out.length(), out.isSpilled() ? ", spilled" : ""));
+		return out;
+	}
+
+
+	/**
+	 * Adds a scan to the archive and flags it as duplicate of the most similar archived scan, if any.
+	 * Undecodable scans are not archived.
+	 */
+	private void archive(Exchange exchange, String id, int dpi, ScanBuffer buffer) throws IOException
+	{
+		final long hash;
+		try ( InputStream in = buffer.openStream() ) {
+			hash = PerceptualHash.of(in);
+		} catch (IOException | RuntimeException e) {
+			log.log(Level.WARNING, "archive(" + id + "): can't hash scan", e);
+			return;
+		}
+		final List<ScanIndex.Entry> similar = _archive.similar(hash, _duplicateDistance, 1);
+		_archive.add(new ScanIndex.Entry(id, System.currentTimeMillis(), dpi, buffer.length(), hash));
+		exchange.header("X-Scan-Id", id);
+		if ( !similar.isEmpty() ) exchange.header("X-Duplicate-Of", similar.get(0).getId());
+	}
+
+
+	/**
+	 * Writes the archived scans similar to the scan {@code similarTo} as JSON, nearest first,
+	 * with optional {@code distance} (default 10) and {@code limit} (default 100).
+	 */
+	private void doScans(Exchange exchange) throws IOException
+	{
+		if ( _archive==null ) {
+			exchange.error(HTTP_NOT_IMPLEMENTED, "No archive");
+			return;
+		}
+		final ScanIndex.Entry entry = _archive.get(trim(exchange.parameter("similarTo"), ""));
+		if ( entry==null ) {
+			exchange.error(HTTP_NOT_FOUND, "");
+			return;
+		}
+		final List<ScanIndex.Entry> similar;
+		try {
+			similar = _archive.similar(entry.getHash(),
+				Integer.parseInt(trim(exchange.parameter("distance"), "10")),
+				Integer.parseInt(trim(exchange.parameter("limit"), "100")) + 1);
+		} catch (IllegalArgumentException e) {
+			exchange.error(HTTP_BAD_REQUEST, e.getMessage());
+			return;
+		}
+		final StringBuilder json = new StringBuilder(64 + similar.size() * 128).append('[');
+		for ( ScanIndex.Entry e : similar ) {
+			if ( e.getId().equals(entry.getId()) ) continue;
+			if ( json.length()>1 ) json.append(',');
+			json.append(String.format(Locale.ROOT, "{\"id\":%s,\"time\":%s,\"dpi\":%d,\"size\":%d,\"hash\":\"%016x\",\"distance\":%d}",
+				quote(e.getId()), quote(Instant.ofEpochMilli(e.getTime()).toString()), e.getDpi(), e.getSize(), e.getHash(),
+				PerceptualHash.distance(entry.getHash(), e.getHash())));
+		}
+		writeText(exchange, HTTP_OK, "application/json", json.append(']').toString());
+	}
+
+
+	/**
+	 * Marks the request with the given {@code id} as finished, whether it succeeded or failed.
+	 */
+	private void finish(String id)
+	{
+		final long now = System.currentTimeMillis();
+		_progress.remove(id);
+		_finished.values().removeIf(t -> t<now - FINISHED_KEEP);
+		_finished.put(id, now);
+	}
+
+
+	/**
+	 * Writes the progress of the scan with the given {@code id} as JSON, phase {@code done} if the request
+	 * has finished (also if it failed before any data), {@code 404} if there is no such scan (yet).
+	 */
+	private void doProgress(Exchange exchange) throws IOException
+	{
+		final String id = trim(exchange.parameter("id"), "");
+		final ScanProgress progress = _progress.get(id);
+		if ( progress==null ) {
+			if ( _finished.containsKey(id) ) writeText(exchange, HTTP_OK, "application/json", "{\"phase\":\"done\"}");
+			else exchange.error(HTTP_NOT_FOUND, "");
+			return;
+		}
+		writeText(exchange, HTTP_OK, "application/json", String.format(Locale.ROOT, "{\"phase\":\"%s\",\"bytes\":%d,\"expected\":%d,\"throughput\":%d}",
+			progress.getPhase().name().toLowerCase(Locale.ROOT), progress.getBytes(), progress.getExpected(), progress.getThroughput()));
+	}
+
+
+	/**
+	 * Writes the telemetry of the last {@code range} (default 1h) as JSON.
+	 */
+	private void doTelemetry(Exchange exchange) throws IOException
+	{
+		final Duration range;
+		try {
+			range = Telemetry.parseRange(trim(exchange.parameter("range"), "1h"));
+		} catch (IllegalArgumentException e) {
+			exchange.error(HTTP_BAD_REQUEST, e.getMessage());
+			return;
+		}
+		writeText(exchange, HTTP_OK, "application/json", _telemetry.appendJson(new StringBuilder(16384), System.currentTimeMillis(), range).toString());
+	}
+
+
+	/**
+	 * Writes version, status and battery state as JSON, read on a single connection.
+	 * With a {@code maxAge} parameter (seconds), a previous result is reused if it is not older.
+	 */
+	private void doInfo(Exchange exchange) throws IOException
+	{
+		final long maxAge = (long)(Double.parseDouble(trim(exchange.parameter("maxAge"), "0")) * 1000);
+		S400WInfo info = _info;
+		if ( info==null || System.currentTimeMillis() - info.getTime()>maxAge ) {
+			_info = info = getDevice().getInfo();
+			_telemetry.record(info);
+		}
+
+		final long now = System.currentTimeMillis();
+		final StringBuilder json = new StringBuilder(256).append('{');
+		json.append("\"time\":").append(quote(Instant.ofEpochMilli(info.getTime()).toString()));
+		json.append(",\"age\":").append(now - info.getTime());
+		json.append(",\"version\":");
+		field(json, info.getVersion(), now);
+		json.append(",\"manufacturer\":").append(quote(info.getManufacturer()));
+		json.append(",\"firmware\":").append(info.getFirmware()<0 ? "null" : Integer.toString(info.getFirmware()));
+		json.append(",\"resolutionSupported\":").append(info.isResolutionSupported());
+		json.append("},\"status\":");
+		field(json, info.getStatus(), now);
+		json.append("},\"battery\":");
+		field(json, info.getBattery(), now);
+		json.append(",\"level\":").append(info.getBatteryLevel()<0 ? "null" : Integer.toString(info.getBatteryLevel()));
+		json.append(",\"voltage\":").append(info.getBatteryLevel()<0 ? "null" : String.format(Locale.ROOT, "%.2f", info.getBatteryVoltage()));
+		json.append(",\"usbPowered\":").append(info.isUsbPowered());
+		json.append("}}");
+		writeText(exchange, info.getStatus().isAvailable() ? HTTP_OK : HTTP_GATEWAY_TIMEOUT, "application/json", json.toString());
+	}
+
+
+	/**
+	 * Appends an unclosed JSON object with the common properties of a {@link S400WInfo.Field}.
+	 */
+	private static void field(StringBuilder json, S400WInfo.Field field, long now)
+	{
+		final S400WResponse r = field.getResponse();
+		json.append("{\"value\":").append(field.isAvailable() ? quote(r.toString().trim()) : "null");
+		if ( !field.isAvailable() ) json.append(",\"error\":").append(quote(r.isEOF() ? "eof" : "timeout"));
+		json.append(",\"known\":").append(r.isKnown());
+		json.append(",\"time\":").append(quote(Instant.ofEpochMilli(field.getTime()).toString()));
+		json.append(",\"age\":").append(now - field.getTime());
+		json.append(",\"ms\":").append(field.getMillis());
+	}
+
+
+	/**
+	 * Returns a JSON string literal, or {@code null}.
+	 */
+	static String quote(String value)
+	{
+		if ( value==null ) return "null";
+		final StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+		for ( char c : value.toCharArray() ) {
+			if ( c=='"' || c=='\\' ) sb.append('\\').append(c);
+			else if ( c<0x20 || c>0x7e ) sb.append(String.format(Locale.ROOT, "\\u%04x", (int)c));
+			else sb.append(c);
+		}
+		return sb.append('"').toString();
+	}
+
+
+	/**
+	 * Returns {@code true} if deskewing was requested.
+	 */
+	private static boolean isDeskew(Exchange exchange)
+	{
+		return trim(exchange.parameter("deskew"), "false").matches("true|on|1");
+	}
+
+
+	/**
+	 * Returns a receiver passing the data on to both receivers.
+	 */
+	private static ScanDataReceiver tee(final ScanDataReceiver first, final ScanDataReceiver second)
+	{
+		return new ScanDataReceiver() {
+			@Override
+			public void open(long length) throws IOException {
+				first.open(length);
+				second.open(length);
+			}
+
+			@Override
+			public void write(byte[] array, int offset, int length) throws IOException {
+				first.write(array, offset, length);
+				second.write(array, offset, length);
+			}
+
+			@Override
+			public void close() throws IOException {
+				try {
+					first.close();
+				} finally {
+					second.close();
+				}
+			}
+		};
+	}
+
+
+	private S400W getDevice()
+	{
+		return new S400W(_settings);
+	}
+
+
+	private static void writeResponse(Exchange exchange, S400WResponse scanResponse, S400WResponse... good) throws IOException
+	{
+		if ( scanResponse.isEmpty() ) {
+			exchange.send(HTTP_GATEWAY_TIMEOUT, null, 0);
+		}
+		else if ( scanResponse.isEOF() ) {
+			exchange.send(HTTP_NO_CONTENT, null, 0);
+		}
+		else {
+			final int status = good.length!=0 && !Arrays.asList(good).contains(scanResponse) ? HTTP_BAD_GATEWAY : HTTP_OK;
+			if ( scanResponse==S400WResponse.DEVICE_BUSY ) exchange.header("Retry-After", "5");
+			writeText(exchange, status, "text/plain; charset=us-ascii", scanResponse.toString());
+		}
+	}
+
+
+	private static void writeText(Exchange exchange, int status, String contentType, String text) throws IOException
+	{
+		final byte[] data = text.getBytes(StandardCharsets.UTF_8);
+		exchange.send(status, contentType, data.length).write(data);
+	}
+
+
+	private static void noCache(Exchange exchange)
+	{
+		exchange.header("Pragma",        "no-cache");
+		exchange.header("Cache-control", "no-store,no-cache");
+		exchange.header("Expires",       "-1");
+	}
+
+
+	static String trim(String value, String defaultValue)
+	{
+		return value==null || (value = value.trim()).isEmpty() ? defaultValue : value;
+	}
+}
@@ -6,12 +6,13 @@
 package hwfs400w;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
-import javax.servlet.ServletOutputStream;
 import javax.servlet.annotation.WebInitParam;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
@@ -19,8 +20,25 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * Simple servlet to interface a S400W scanner.<br>
- * Does not support preview data (yet).
+ * Simple servlet to interface a S400W scanner.
+ * <p>
+ * Besides single requests ({@code scan}), scans can be done in two phases: {@code preview} returns the preview
+ * as PNG and holds the scan as a session, which is then fetched by {@code accept} or discarded by {@code reject},
+ * see {@link S400WService}. Sessions not decided within {@link S400WSettings#timeoutHold} expire.
+ * <p>
+ * Scans are buffered in fixed size chunks taken from a memory budget shared by all requests
+ * ({@code bufferBudget}, {@code bufferChunk} bytes), larger scans ({@code bufferSpill} bytes)
+ * are moved to temporary files. If the budget is used up, requests wait {@code bufferWait} seconds
+ * and are then rejected with {@code 503}.
+ * <p>
+ * Scans started with an {@code id} parameter report their progress at {@code progress?id=}, phase {@code done} once the
+ * request has finished or failed.
+ * <p>
+ * On Java 21+ requests are handled asynchronously on virtual threads (see {@link Threads}), so waiting
+ * for the scanner doesn't block container threads. Otherwise, or if the container doesn't support
+ * async requests, they are handled on the container thread.
+ * <p>
+ * The services are implemented by {@link S400WService}, also available without servlet container, see {@link S400WServer}.
  * <p>
  * Create a virtual {@code /s400/} directory in the servlet context
  * providing all services. Also provides a demo application at {@code /s400w/} 
@@ -32,159 +50,141 @@ import javax.servlet.http.HttpServletResponse;
 	name="s400w",
 	urlPatterns = "/s400w/*",
 	displayName = "S400W Scanner Services",
-	initParams = { @WebInitParam(name = "address", value = S400WSettings.DEFAULT_ADDR)}
+	asyncSupported = true,
+	initParams = {
+		@WebInitParam(name = "address",      value = S400WSettings.DEFAULT_ADDR),
+		@WebInitParam(name = "bufferBudget", value = S400WService.DEFAULT_BUFFER_BUDGET),
+		@WebInitParam(name = "bufferChunk",  value = S400WService.DEFAULT_BUFFER_CHUNK),
+		@WebInitParam(name = "bufferSpill",  value = S400WService.DEFAULT_BUFFER_SPILL),
+		@WebInitParam(name = "bufferWait",   value = S400WService.DEFAULT_BUFFER_WAIT),
+		@WebInitParam(name = "pipelineThreads", value = S400WService.DEFAULT_PIPELINE_THREADS)
+	}
 )
 public class S400WServlet extends HttpServlet
 {
 	private final static long serialVersionUID = -375822703462858974L;
 	
+	private final static Logger log = Logger.getLogger(S400WServlet.class.getName());
+	
 	
-	private final S400WSettings _settings = new S400WSettings();
+	private transient S400WService _service;
+	
+	/** Virtual thread executor, {@code null} if not available. */
+	private transient ExecutorService _executor;
 
 	
 	@Override
 	public void init() throws ServletException
 	{
-		final String addr = trim(getInitParameter("address"), S400WSettings.DEFAULT_ADDR);
 		try {
-			_settings.with(addr);
+			_service = new S400WService(this::getInitParameter);
+			if ( Threads.isVirtual() ) _executor = Threads.executor("s400w-servlet-");
 		} catch (IllegalArgumentException e) {
-			throw new ServletException("Invalid S400W address: " + addr);
+			throw new ServletException(e.getMessage());
 		}
 	}
 
 	
 	@Override
-	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+	public void destroy()
 	{
-		noCache(response);
-		final String path = requireNonNullOrElse(request.getPathInfo(), "/");
-		switch (path.substring(1)) {
-			case "version":
-				writeResponse(response, getDevice().getVersion());
-				break;
-
-			case "status":
-				writeResponse(response, getDevice().getStatus());
-				break;
-
-			case "battery":
-				writeResponse(response, getDevice().getBatteryState());
-				break;
-				
-			default:
-				response.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED, path.substring(1));
-				break;
-				
-			case "":
-			case "index.htm":
-			case "index.html":
-				try (InputStream in = S400W.class.getResourceAsStream("index.html")) {
-					if ( in!=null ) {
-						response.setContentType("text/html; charset=utf-8");
-						OutputStream out = response.getOutputStream();
-						byte[] buf = new byte[4096];
-						for ( int r = in.read(buf); r!=-1; r = in.read(buf) ) out.write(buf, 0, r);
-					}
-				}
-		}
+		if ( _executor!=null ) _executor.shutdownNow();
+		_service.close();
 	}
 
 	
 	@Override
-	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
 	{
-		noCache(response);
-		final String path = requireNonNullOrElse(request.getPathInfo(), "/");
-		switch (path.substring(1)) {
-			case "poweroff":
-				writeResponse(response, getDevice().poweroff());
-				break;
-
-			case "clean":
-				writeResponse(response, getDevice().clean(), S400WResponse.CLEAN_END);
-				break;
-
-			case "calibrate":
-				writeResponse(response, getDevice().calibrate(), S400WResponse.CALIBRATE_END);
-				break;
-				
-			case "scan":
-				doScan(request, response);
-				break;
-				
-			default:
-				response.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED, path.substring(1));
-				break;
-		}
+		handle(request, response, false);
 	}
 
-
-	private void doScan(HttpServletRequest request, HttpServletResponse response) throws IOException
-	{
-		final int dpi = Integer.parseInt(trim(request.getParameter("dpi"), "0"));
-		final S400W device = getDevice();
-		
-		final ScanDataReceiver receiver = new ScanDataReceiver() {
-			ServletOutputStream out;
-			@Override
-			public void open(long length) throws IOException {
-				response.setContentLengthLong(length);
-				response.setBufferSize((int)length);
-				out = response.getOutputStream();
-			}
-			
-			@Override
-			public void write(byte[] array, int offset, int length) throws IOException 	{
-				out.write(array, offset, length);
-			}
-		};
-		
-		S400WResponse result = device.scan(dpi, null, receiver);
-		if ( result!=S400WResponse.SCAN_READY ) writeResponse(response, result, S400WResponse.SCAN_READY);
-	}
-	
 	
-	private S400W getDevice()
+	@Override
+	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
 	{
-		return new S400W(_settings);
+		handle(request, response, true);
 	}
 	
 	
-	private static void writeResponse(HttpServletResponse response, S400WResponse scanResponse, S400WResponse... good) throws IOException
+	private void handle(HttpServletRequest request, HttpServletResponse response, boolean post) throws IOException
 	{
-		if ( scanResponse.isEmpty() ) {
-			response.setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
-		}
-		else if ( scanResponse.isEOF() ) {
-			response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+		if ( _executor==null || !request.isAsyncSupported() ) {
+			if ( post ) _service.doPost(new Exchange(request, response));
+			else _service.doGet(new Exchange(request, response));
+			return;
 		}
-		else {
-			if ( good.length!=0 && !Arrays.asList(good).contains(scanResponse) ) {
-				response.setStatus(HttpServletResponse.SC_BAD_GATEWAY);
+		final AsyncContext async = request.startAsync();
+		async.setTimeout(0);
+		_executor.execute(() -> {
+			try {
+				if ( post ) _service.doPost(new Exchange(request, response));
+				else _service.doGet(new Exchange(request, response));
 			}
-			response.getWriter().write(scanResponse.toString());
-		}
+			catch (IOException | RuntimeException e) {
+				log.log(Level.WARNING, "handle(" + request.getPathInfo() + ")", e);
+				if ( !response.isCommitted() ) response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			}
+			finally {
+				async.complete();
+			}
+		});
 	}
 	
 	
-	private static void noCache(HttpServletResponse response)
-	{
-		response.setHeader("Pragma",        "no-cache");
-		response.setHeader("Cache-control", "no-store,no-cache");
-		response.setHeader("Expires",       "-1");
-	}	
-	
-
-	private static <T> T requireNonNullOrElse(T value, T defaultValue)
-	{
-		return value==null ? defaultValue : value;
-	}
-
-	
-	private static String trim(String value, String defaultValue)
+	/**
+	 * Servlet request / response as {@link S400WService.Exchange}.
+	 */
+	private final static class Exchange implements S400WService.Exchange
 	{
-		return value==null || (value = value.trim()).isEmpty() ? defaultValue : value;
+		private final HttpServletRequest _request;
+		private final HttpServletResponse _response;
+		
+		
+		Exchange(HttpServletRequest request, HttpServletResponse response)
+		{
+			_request = request;
+			_response = response;
+		}
+		
+		
+		@Override
+		public String path()
+		{
+			final String path = _request.getPathInfo();
+			return path==null ? "/" : path;
+		}
+		
+		
+		@Override
+		public String parameter(String name)
+		{
+			return _request.getParameter(name);
+		}
+		
+		
+		@Override
+		public void header(String name, String value)
+		{
+			_response.setHeader(name, value);
+		}
+		
+		
+		@Override
+		public OutputStream send(int status, String contentType, long length) throws IOException
+		{
+			_response.setStatus(status);
+			if ( contentType!=null ) _response.setContentType(contentType);
+			if ( length>=0 ) _response.setContentLengthLong(length);
+			return _response.getOutputStream();
+		}
+		
+		
+		@Override
+		public void error(int status, String message) throws IOException
+		{
+			_response.sendError(status, message);
+		}
 	}
 	
 }
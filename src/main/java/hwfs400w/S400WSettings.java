@@ -5,6 +5,8 @@
 
 package hwfs400w;
 
+import java.io.File;
+import java.nio.file.Paths;
 import java.time.Duration;
 
 /**
@@ -20,6 +22,9 @@ public class S400WSettings implements Cloneable
 	
 	public final static String DEFAULT_ADDR = "192.168.18.33:23";
 	
+	/** Default directory for lock files, the same for all users and processes on a host, unlike {@code java.io.tmpdir}. */
+	public final static String DEFAULT_LEASE_DIR = File.separatorChar=='/' ? "/var/tmp/hwfs400w" : Paths.get(System.getProperty("java.io.tmpdir"), "hwfs400w").toString();
+	
 	
 	/** Prefix for properties, usually &lt;package-name&gt;.&lt;class-name&gt; of {@link S400W} class. */ 
 	private final static String PROPERTY_KEY = S400W.class.getName();
@@ -51,9 +56,47 @@ public class S400WSettings implements Cloneable
 	/** Timeout for {@link S400W#GET_JPEG_SIZE} to add to {@link #timeoutSize} if no preview was requested, default: 40 seconds. */
 	public Duration timeoutSkipped  = parse("scan.skipPreview", "40");
 	
+	/** Time a {@link S400W.ScanSession} holds the device after the preview until the jpeg is fetched or discarded,
+	 *  should leave room for the transfer within {@link #leaseLong}, default: 120 seconds. */
+	public Duration timeoutHold     = parse("scan.hold", "120");
+	
 	/** Timeout to detect bogus select() wait times, default: 0.01 seconds. */
 	public Duration timeoutSelect   = parse("select", "0.01");
 	
+	/** Sliding window to measure scan data throughput for the stall watchdog, default: 10 seconds. */
+	public Duration throughputWindow = parse("throughputWindow", "10");
+	
+	/** Scans are aborted if throughput over {@link #throughputWindow} drops below this many bytes per second, {@code 0} disables, default: 1024. */
+	public long minThroughput = Long.getLong(PROPERTY_KEY + ".throughput.min", 1024);
+	
+	/** Shared directory for {@link DeviceLease} lock files, empty to disable leases, default: {@link #DEFAULT_LEASE_DIR}. */
+	public String leaseDir = System.getProperty(PROPERTY_KEY + ".lease.dir", DEFAULT_LEASE_DIR);
+	
+	/** Group of the users sharing {@link #leaseDir}, empty if all users may, default: empty.
+	 *  Users other than the directory's owner only share lock files through a group, see {@link DeviceLease}. */
+	public String leaseGroup = System.getProperty(PROPERTY_KEY + ".lease.group", "");
+	
+	/** Duration of a {@link DeviceLease.Kind#SHORT} lease, default: 60 seconds.
+	 *  Lease durations are read from {@code hwfs400w.S400W.lease.short}, {@code .long}, {@code .wait} and {@code .waitLong}, in seconds. */
+	public Duration leaseShort      = seconds("lease.short", "60");
+	
+	/** Duration of a {@link DeviceLease.Kind#LONG} lease, default: 300 seconds. */
+	public Duration leaseLong       = seconds("lease.long", "300");
+	
+	/** Time to wait for a {@link DeviceLease.Kind#SHORT} lease, default: 15 seconds. */
+	public Duration leaseWait       = seconds("lease.wait", "15");
+	
+	/** Time to wait for a {@link DeviceLease.Kind#LONG} lease, default: 120 seconds. */
+	public Duration leaseWaitLong   = seconds("lease.waitLong", "120");
+	
+	/** Resumes interrupted jpeg transfers by requesting the jpeg again and skipping the bytes already received, {@code null} to disable,
+	 *  default: {@link RetryPolicy#RESUME}, 3 attempts including the first transfer. */
+	public RetryPolicy retryResume = RetryPolicy.RESUME.withAttempts(Integer.getInteger(PROPERTY_KEY + ".retry.resume", 3));
+	
+	/** Learned timeouts replacing the static ones once enough samples exist, {@code null} to disable, default: {@link AdaptiveTimeouts#getDefault()},
+	 *  {@code null} unless {@code hwfs400w.S400W.timeout.adaptive.file} is set. */
+	public AdaptiveTimeouts adaptive = AdaptiveTimeouts.getDefault();
+	
 	
 	@SuppressWarnings("hiding")
 	public S400WSettings with(String hostname, int port) throws IllegalArgumentException
@@ -88,14 +131,20 @@ public class S400WSettings implements Cloneable
 	public String toString()
 	{
 		return String.format(
-			"Settings [host=%s:%s, timeouts: standard=%s, connect=%s, clean=%s, calibrate=%s, data=%s, size=%s, skipped=%s, select=%s]",
-			host, port, timeoutStandard, timeoutConnect, timeoutClean, timeoutCalibrate, timeoutData, timeoutSize, timeoutSkipped, timeoutSelect);
+			"Settings [host=%s:%s, timeouts: standard=%s, connect=%s, clean=%s, calibrate=%s, data=%s, size=%s, skipped=%s, hold=%s, select=%s, throughput: window=%s, min=%s]",
+			host, port, timeoutStandard, timeoutConnect, timeoutClean, timeoutCalibrate, timeoutData, timeoutSize, timeoutSkipped, timeoutHold, timeoutSelect, throughputWindow, minThroughput);
 	}
 	
 	
 	private static Duration parse(String key, String defaultValue)
 	{
-		String raw = System.getProperty(PROPERTY_KEY + (key.isEmpty() ? ".timeout" : ".timeout.") + key, defaultValue);
+		return seconds(key.isEmpty() ? "timeout" : "timeout." + key, defaultValue);
+	}
+	
+	
+	private static Duration seconds(String key, String defaultValue)
+	{
+		String raw = System.getProperty(PROPERTY_KEY + "." + key, defaultValue);
 		return Duration.parse("PT" + raw + "S");
 	}
 
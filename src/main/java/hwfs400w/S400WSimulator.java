@@ -0,0 +1,337 @@
+/* This file is licensed under Creative Commons License CC-CC0 1.0 (http://creativecommons.org/publicdomain/zero/1.0/).
+ *
+ * Created 2026-10-18 by bastel.
+ */
+
+package hwfs400w;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+
+/**
+ * A stand-in for a S400W scanner on the local host, speaking the scanner's protocol, for tests and load tests.
+ * <p>
+ * Every connection is served by its own thread, a virtual thread if available ({@link Threads}).
+ * Like the real device, the simulator can only do one scan, cleaning or calibration at a time,
+ * status requests meanwhile are answered with {@code devbusy}.
+ * The public fields configure the simulated device and may be changed while running.
+ *
+ * @author bastel
+ * @since 2026-10-18
+ */
+public class S400WSimulator implements Closeable
+{
+	private final static Logger log = Logger.getLogger(S400WSimulator.class.getName());
+
+	/** Lowest port tried if no port is given, {@link S400WSettings} only accepts ports up to 4095. */
+	public final static int FIRST_PORT = 2300;
+
+	/** Version response, the firmware version follows the dot. */
+	public volatile String version = "IO0a.032";
+
+	/** Battery state response, {@code f0} is a full battery. */
+	public volatile String battery = "f0";
+
+	/** Preview lines sent per scan. */
+	public volatile int previewLines = 100;
+
+	/** Jpeg data sent per scan. */
+	public volatile byte[] jpeg;
+
+	/** Data rate of scan data in bytes per second, {@code 0} for unlimited. */
+	public volatile long bytesPerSecond = 0;
+
+	/** Delay before each response in milliseconds. */
+	public volatile long delay = 0;
+
+	/** Closes the connection once after sending this many jpeg bytes, to test resuming transfers, {@code 0} to disable. */
+	public volatile int dropAfter = 0;
+
+	/** Duration of cleaning and calibration in milliseconds. */
+	public volatile long operationTime = 2000;
+
+	private final ServerSocket _server;
+	private final ExecutorService _executor;
+	private final AtomicBoolean _busy = new AtomicBoolean();
+	private final AtomicInteger _connections = new AtomicInteger();
+	private volatile boolean _closed;
+
+
+	/**
+	 * Creates a simulator listening on the loopback interface, sending a generated page as jpeg.
+	 *
+	 * @param port port to listen on, {@code 0} for the first free port from {@value #FIRST_PORT}
+	 */
+	public S400WSimulator(int port) throws IOException
+	{
+		_server = bind(port);
+		_executor = Threads.executor("s400w-simulator-");
+		jpeg = page(1240, 1754);
+	}
+
+
+	/**
+	 * Runs a simulator until the process is stopped.
+	 * <p>
+	 * Arguments: {@code [port [jpeg file]]}
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException
+	{
+		final S400WSimulator simulator = new S400WSimulator(args.length>0 ? Integer.parseInt(args[0]) : 0);
+		if ( args.length>1 ) simulator.jpeg = Files.readAllBytes(Paths.get(args[1]));
+		simulator.start();
+		System.out.println("S400W simulator listening on " + simulator.getAddress());
+		Thread.currentThread().join();
+	}
+
+
+	/**
+	 * Starts accepting connections.
+	 */
+	public S400WSimulator start()
+	{
+		_executor.execute(this::accept);
+		return this;
+	}
+
+
+	/**
+	 * Returns the address as accepted by {@link S400WSettings#with(String)}.
+	 */
+	public String getAddress()
+	{
+		return _server.getInetAddress().getHostAddress() + ":" + _server.getLocalPort();
+	}
+
+
+	/**
+	 * Returns the number of open connections.
+	 */
+	public int getConnections()
+	{
+		return _connections.get();
+	}
+
+
+	@Override
+	public void close() throws IOException
+	{
+		_closed = true;
+		_server.close();
+		_executor.shutdownNow();
+	}
+
+
+	/**
+	 * Creates a jpeg of a text page.
+	 */
+	public static byte[] page(int width, int height) throws IOException
+	{
+		final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		final Graphics2D g = image.createGraphics();
+		g.setColor(new Color(245, 243, 238));
+		g.fillRect(0, 0, width, height);
+		g.setColor(Color.DARK_GRAY);
+		g.setFont(new Font(Font.SERIF, Font.PLAIN, Math.max(8, width / 60)));
+		final Random random = new Random(width * 31L + height);
+		final int line = Math.max(10, width / 40);
+		for ( int y = height / 10; y<height * 9 / 10; y += line ) {
+			StringBuilder sb = new StringBuilder();
+			while ( sb.length()<70 ) sb.append(random.nextInt(5)==0 ? ' ' : (char)('a' + random.nextInt(26)));
+			g.drawString(sb.toString(), width / 10, y);
+		}
+		g.dispose();
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, "jpg", out);
+		return out.toByteArray();
+	}
+
+
+	private static ServerSocket bind(int port) throws IOException
+	{
+		final InetAddress loopback = InetAddress.getLoopbackAddress();
+		for ( int p = port==0 ? FIRST_PORT : port; ; p++ ) {
+			ServerSocket server = new ServerSocket();
+			try {
+				server.setReuseAddress(true);
+				server.bind(new InetSocketAddress(loopback, p), 50);
+				return server;
+			} catch (BindException e) {
+				server.close();
+				if ( port!=0 || p>=0xfff ) throw e;
+			}
+		}
+	}
+
+
+	private void accept()
+	{
+		while ( !_closed ) {
+			try {
+				final Socket socket = _server.accept();
+				_executor.execute(() -> serve(socket));
+			} catch (IOException e) {
+				if ( !_closed ) log.log(Level.WARNING, "accept()", e);
+			}
+		}
+	}
+
+
+	private void serve(Socket socket)
+	{
+		_connections.incrementAndGet();
+		boolean busy = false;
+		try ( Socket s = socket ) {
+			final DataInputStream in = new DataInputStream(s.getInputStream());
+			final OutputStream out = s.getOutputStream();
+			while ( true ) {
+				final int command = Integer.reverseBytes(in.readInt());
+				if ( delay>0 ) Thread.sleep(delay);
+				switch (command) {
+					case 0x20203030: // GET_VERSION
+						respond(out, version);
+						break;
+
+					case 0x40405050: // GET_BATTERY_STATE
+						respond(out, battery);
+						break;
+
+					case 0x50006000: // GET_STATUS
+						if ( !busy && !_busy.compareAndSet(false, true) ) {
+							respond(out, "devbusy");
+							break;
+						}
+						busy = true;
+						respond(out, "scanready");
+						break;
+
+					case 0x10203040: // SET_DPI_STANDARD
+						respond(out, "dpistd");
+						break;
+
+					case 0x50607080: // SET_DPI_HIGH
+						respond(out, "dpifine");
+						break;
+
+					case 0x10002000: // START_SCAN
+						respond(out, busy ? "scango" : "devbusy");
+						break;
+
+					case 0x30304040: // SEND_PREVIEW_DATA
+						final byte[] line = new byte[PreviewKernels.LINE_BYTES];
+						for ( int y = 0, n = previewLines; y<n; y++ ) {
+							for ( int x = 0; x<line.length; x++ ) line[x] = (byte)(x + y);
+							send(out, line);
+						}
+						// null terminated like all responses, the client looks for the tag and one more byte
+						out.write("previewend\0".getBytes(StandardCharsets.US_ASCII));
+						out.flush();
+						break;
+
+					case 0xC000D000: // GET_JPEG_SIZE
+						final int size = jpeg.length;
+						out.write("jpegsize".getBytes(StandardCharsets.US_ASCII));
+						out.write(new byte[] { (byte)size, (byte)(size >> 8), (byte)(size >> 16), (byte)(size >> 24) });
+						out.flush();
+						break;
+
+					case 0xE000F000: // SEND_JPEG_DATA
+						final int drop = dropAfter;
+						if ( drop>0 && drop<jpeg.length ) {
+							dropAfter = 0;
+							send(out, Arrays.copyOf(jpeg, drop));
+							return;
+						}
+						send(out, jpeg);
+						break;
+
+					case 0x70708080: // START_CLEANING
+					case 0xA000B000: // START_CALIBRATION
+						final boolean clean = command==0x70708080;
+						respond(out, busy ? (clean ? "cleango" : "calgo") : "devbusy");
+						if ( busy ) {
+							Thread.sleep(operationTime);
+							respond(out, clean ? "cleanend" : "calibrate");
+						}
+						break;
+
+					case 0x70008000: // POWER_OFF
+						return;
+
+					default:
+						log.warning(String.format("serve(): unknown command %08x", command));
+				}
+			}
+		}
+		catch (EOFException e) {
+			// client closed the connection
+		}
+		catch (IOException e) {
+			if ( log.isLoggable(Level.FINE) ) log.fine("serve(): " + e);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			if ( busy ) _busy.set(false);
+			_connections.decrementAndGet();
+		}
+	}
+
+
+	private static void respond(OutputStream out, String response) throws IOException
+	{
+		final byte[] data = new byte[16];
+		final byte[] text = response.getBytes(StandardCharsets.US_ASCII);
+		System.arraycopy(text, 0, data, 0, text.length);
+		out.write(data);
+		out.flush();
+	}
+
+
+	/**
+	 * Sends data, limited to {@link #bytesPerSecond}.
+	 */
+	private void send(OutputStream out, byte[] data) throws IOException, InterruptedException
+	{
+		final long rate = bytesPerSecond;
+		if ( rate<=0 ) {
+			out.write(data);
+			out.flush();
+			return;
+		}
+		final long start = System.nanoTime();
+		final int chunk = (int)Math.max(512, Math.min(65536, rate / 20));
+		for ( int pos = 0; pos<data.length; pos += chunk ) {
+			out.write(data, pos, Math.min(chunk, data.length - pos));
+			out.flush();
+			final long due = start + (pos + chunk) * 1000000000L / rate - System.nanoTime();
+			if ( due>0 ) Thread.sleep(due / 1000000, (int)(due % 1000000));
+		}
+	}
+}
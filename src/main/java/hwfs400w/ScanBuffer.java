@@ -0,0 +1,321 @@
+/* This file is licensed under Creative Commons License CC-CC0 1.0 (http://creativecommons.org/publicdomain/zero/1.0/).
+ *
+ * Created 2026-10-18 by bastel.
+ */
+
+package hwfs400w;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link ScanDataReceiver} buffering scan data in fixed size chunks taken from a shared {@link Budget}.
+ * <p>
+ * Data is kept in memory as long as the budget has chunks left and the buffer stays below
+ * the budget's spill threshold, otherwise everything is moved to a temporary file.
+ * So the heap used by all buffers of a budget never exceeds the budget, regardless of the
+ * number of concurrent scans.
+ * <p>
+ * Buffers must be {@link #release() released} after use to return their chunks.
+ *
+ * @author bastel
+ * @since 2026-10-18
+ */
+public class ScanBuffer implements ScanDataReceiver
+{
+	private final static Logger log = Logger.getLogger(ScanBuffer.class.getName());
+
+	private final Budget _budget;
+	private final List<byte[]> _chunks = new ArrayList<>();
+
+	/** Number of bytes written. */
+	private long _length;
+
+	/** Spill file, {@code null} while in memory. */
+	private FileChannel _file;
+	private Path _path;
+
+	private boolean _released;
+
+
+	private ScanBuffer(Budget budget, byte[] first)
+	{
+		_budget = budget;
+		_chunks.add(first);
+	}
+
+
+	/**
+	 * Resets the buffer if it is reused for the next phase and spills
+	 * directly if the announced length is above the spill threshold.
+	 */
+	@Override
+	public void open(long length) throws IOException
+	{
+		truncate();
+		if ( length>_budget.spillThreshold ) spill();
+	}
+
+
+	@Override
+	public void write(byte[] array, int offset, int length) throws IOException
+	{
+		if ( _released ) throw new IllegalStateException("released");
+		if ( _file==null && _length + length>_budget.spillThreshold ) spill();
+		if ( _file!=null ) {
+			ByteBuffer buf = ByteBuffer.wrap(array, offset, length);
+			while ( buf.hasRemaining() ) _length += _file.write(buf, _length);
+			return;
+		}
+		final int chunkSize = _budget.chunkSize;
+		while ( length>0 ) {
+			int idx = (int)(_length / chunkSize), pos = (int)(_length % chunkSize);
+			if ( idx==_chunks.size() ) {
+				byte[] chunk = _budget.tryTake();
+				if ( chunk==null ) {
+					spill();
+					write(array, offset, length);
+					return;
+				}
+				_chunks.add(chunk);
+			}
+			int n = Math.min(length, chunkSize - pos);
+			System.arraycopy(array, offset, _chunks.get(idx), pos, n);
+			_length += n;
+			offset += n;
+			length -= n;
+		}
+	}
+
+
+	/**
+	 * Returns the number of bytes buffered.
+	 */
+	public long length()
+	{
+		return _length;
+	}
+
+
+	/**
+	 * Returns {@code true} if data has been moved to a temporary file.
+	 */
+	public boolean isSpilled()
+	{
+		return _file!=null;
+	}
+
+
+	/**
+	 * Writes the buffered data to the given stream in chunk sized blocks.
+	 */
+	public void writeTo(OutputStream out) throws IOException
+	{
+		if ( _released ) throw new IllegalStateException("released");
+		final int chunkSize = _budget.chunkSize;
+		if ( _file==null ) {
+			for ( long pos = 0; pos<_length; pos += chunkSize ) {
+				out.write(_chunks.get((int)(pos / chunkSize)), 0, (int)Math.min(chunkSize, _length - pos));
+			}
+			return;
+		}
+		byte[] array = _chunks.get(0);
+		ByteBuffer buf = ByteBuffer.wrap(array);
+		for ( long pos = 0; pos<_length; ) {
+			buf.clear().limit((int)Math.min(chunkSize, _length - pos));
+			int r = _file.read(buf, pos);
+			if ( r<0 ) throw new IOException("Spill file truncated");
+			out.write(array, 0, r);
+			pos += r;
+		}
+	}
+
+
+	/**
+	 * Returns a stream reading the buffered data, valid until the buffer is released or reused.
+	 */
+	public InputStream openStream()
+	{
+		if ( _released ) throw new IllegalStateException("released");
+		return new InputStream() {
+			long pos;
+
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1)==1 ? b[0] & 0xff : -1;
+			}
+
+			@Override
+			public int read(byte[] array, int offset, int length) throws IOException {
+				if ( _released ) throw new IOException("released");
+				if ( pos>=_length ) return -1;
+				length = (int)Math.min(length, _length - pos);
+				if ( _file!=null ) {
+					int r = _file.read(ByteBuffer.wrap(array, offset, length), pos);
+					if ( r<0 ) throw new IOException("Spill file truncated");
+					pos += r;
+					return r;
+				}
+				final int chunkSize = _budget.chunkSize;
+				length = Math.min(length, chunkSize - (int)(pos % chunkSize));
+				System.arraycopy(_chunks.get((int)(pos / chunkSize)), (int)(pos % chunkSize), array, offset, length);
+				pos += length;
+				return length;
+			}
+
+			@Override
+			public long skip(long n) {
+				n = Math.max(0, Math.min(n, _length - pos));
+				pos += n;
+				return n;
+			}
+
+			@Override
+			public int available() {
+				return (int)Math.min(Integer.MAX_VALUE, _length - pos);
+			}
+		};
+	}
+
+
+	/**
+	 * Returns all chunks to the budget and deletes the spill file.
+	 * The buffer can't be used afterwards.
+	 */
+	public void release()
+	{
+		if ( _released ) return;
+		_released = true;
+		closeFile();
+		for ( byte[] chunk : _chunks ) _budget.give(chunk);
+		_chunks.clear();
+	}
+
+
+	/**
+	 * Moves all data to a temporary file, keeps the first chunk for copying.
+	 */
+	private void spill() throws IOException
+	{
+		_path = Files.createTempFile("s400w-scan", ".tmp");
+		_file = FileChannel.open(_path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+		if ( log.isLoggable(Level.FINE) ) log.fine("spilling " + _length + " bytes to " + _path);
+		final int chunkSize = _budget.chunkSize;
+		for ( long pos = 0; pos<_length; pos += chunkSize ) {
+			ByteBuffer buf = ByteBuffer.wrap(_chunks.get((int)(pos / chunkSize)), 0, (int)Math.min(chunkSize, _length - pos));
+			while ( buf.hasRemaining() ) _file.write(buf, pos + buf.position());
+		}
+		while ( _chunks.size()>1 ) _budget.give(_chunks.remove(_chunks.size() - 1));
+	}
+
+
+	private void truncate()
+	{
+		closeFile();
+		while ( _chunks.size()>1 ) _budget.give(_chunks.remove(_chunks.size() - 1));
+		_length = 0;
+	}
+
+
+	private void closeFile()
+	{
+		if ( _file!=null ) try { _file.close(); } catch (IOException e) {}
+		if ( _path!=null ) try { Files.deleteIfExists(_path); } catch (IOException e) {}
+		_file = null;
+		_path = null;
+	}
+
+
+	/**
+	 * A global memory budget shared by several {@link ScanBuffer}s.
+	 */
+	public static class Budget
+	{
+		private final int chunkSize;
+		private final long spillThreshold;
+		private final Semaphore _permits;
+
+		/** Free chunks for reuse, bounded by the number of permits. */
+		private final List<byte[]> _free = new ArrayList<>();
+
+
+		/**
+		 * @param budget total number of bytes all buffers may keep in memory
+		 * @param chunkSize size of a single chunk
+		 * @param spillThreshold buffers growing larger than this are moved to temporary files
+		 */
+		public Budget(long budget, int chunkSize, long spillThreshold)
+		{
+			if ( chunkSize<=0 ) throw new IllegalArgumentException("chunkSize=" + chunkSize);
+			if ( budget<chunkSize ) throw new IllegalArgumentException("budget=" + budget);
+			this.chunkSize = chunkSize;
+			this.spillThreshold = spillThreshold;
+			_permits = new Semaphore((int)Math.min(Integer.MAX_VALUE, budget / chunkSize), true);
+		}
+
+
+		/**
+		 * Allocates a new buffer, waiting at most the given time for a free chunk.
+		 *
+		 * @return the buffer, or {@code null} if the budget is used up.
+		 * @throws InterruptedIOException if interrupted while waiting.
+		 */
+		public ScanBuffer allocate(Duration wait) throws InterruptedIOException
+		{
+			try {
+				if ( !_permits.tryAcquire(wait.toMillis(), TimeUnit.MILLISECONDS) ) return null;
+			} catch (InterruptedException e) {
+				throw (InterruptedIOException)new InterruptedIOException("Interrupted while waiting for buffer").initCause(e);
+			}
+			return new ScanBuffer(this, chunk());
+		}
+
+
+		/**
+		 * Returns the number of bytes currently available.
+		 */
+		public long available()
+		{
+			return (long)_permits.availablePermits() * chunkSize;
+		}
+
+
+		byte[] tryTake()
+		{
+			return _permits.tryAcquire() ? chunk() : null;
+		}
+
+
+		void give(byte[] chunk)
+		{
+			synchronized (_free) {
+				_free.add(chunk);
+			}
+			_permits.release();
+		}
+
+
+		private byte[] chunk()
+		{
+			synchronized (_free) {
+				if ( !_free.isEmpty() ) return _free.remove(_free.size() - 1);
+			}
+			return new byte[chunkSize];
+		}
+	}
+}
@@ -0,0 +1,285 @@
+/* This file is licensed under Creative Commons License CC-CC0 1.0 (http://creativecommons.org/publicdomain/zero/1.0/).
+ *
+ * Created 2026-10-18 by bastel.
+ */
+
+package hwfs400w;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An archive index of scans by {@link PerceptualHash}, for finding rescans of the same document.
+ * <p>
+ * Entries are appended to a file of fixed size records:
+ * <pre>
+ * id     32 bytes, US-ASCII, zero padded
+ * time    8 bytes, milliseconds since the epoch
+ * dpi     4 bytes
+ * unused  4 bytes
+ * size    8 bytes
+ * hash    8 bytes
+ * unused  8 bytes
+ * </pre>
+ * A torn last record is dropped on opening.
+ * <p>
+ * Similarity search uses multi-index hashing: each hash is split into four 16 bit parts, each part indexed
+ * by its own table. Two hashes within distance {@code d} agree in at least one part up to {@code d/4} bits,
+ * so only the table buckets within that distance of the query's parts need to be checked.
+ * The tables are rebuilt in memory on opening, about 100 bytes per entry including the id map.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author bastel
+ * @since 2026-10-18
+ */
+public class ScanIndex implements Closeable
+{
+	private final static Logger log = Logger.getLogger(ScanIndex.class.getName());
+
+	/** Record size in bytes. */
+	private final static int RECORD = 64;
+
+	/** Maximum id length in bytes. */
+	private final static int ID = 32;
+
+	/** Maximum supported search distance, {@code d/4} is at most 3 bits per part. */
+	public final static int MAX_DISTANCE = 15;
+
+	/** An index entry. */
+	public static final class Entry
+	{
+		private final String _id;
+		private final long _time;
+		private final int _dpi;
+		private final long _size;
+		private final long _hash;
+
+
+		public Entry(String id, long time, int dpi, long size, long hash)
+		{
+			_id = id;
+			_time = time;
+			_dpi = dpi;
+			_size = size;
+			_hash = hash;
+		}
+
+		/** Returns the scan id. */
+		public String getId() { return _id; }
+
+		/** Returns the scan time in milliseconds since the epoch. */
+		public long getTime() { return _time; }
+
+		/** Returns the scan resolution, {@code 0} if unknown. */
+		public int getDpi() { return _dpi; }
+
+		/** Returns the jpeg size in bytes. */
+		public long getSize() { return _size; }
+
+		/** Returns the {@link PerceptualHash}. */
+		public long getHash() { return _hash; }
+
+		@Override
+		public String toString()
+		{
+			return "Entry [" + _id + ", dpi=" + _dpi + ", size=" + _size + ", hash=" + Long.toHexString(_hash) + "]";
+		}
+	}
+
+	private final FileChannel _file;
+
+	/** Record number by id. */
+	private final Map<String, Integer> _ids = new HashMap<>();
+
+	private long[] _hash = new long[1024];
+	private int _count;
+
+	/** Per part: first record by part value, {@code -1} if none, and next record with the same value. */
+	private final int[][] _head = new int[4][1 << 16];
+	private final int[][] _next = new int[4][1024];
+
+
+	/**
+	 * Opens or creates an index file.
+	 *
+	 * @throws IOException if the file can't be read.
+	 */
+	public ScanIndex(Path file) throws IOException
+	{
+		for ( int[] head : _head ) Arrays.fill(head, -1);
+		if ( file.getParent()!=null ) Files.createDirectories(file.getParent());
+		_file = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		final long size = _file.size();
+		if ( size % RECORD!=0 ) {
+			log.warning("ScanIndex(" + file + "): dropping torn record");
+			_file.truncate(size - size % RECORD);
+		}
+		final ByteBuffer buf = ByteBuffer.allocate(RECORD * 1024);
+		for ( long pos = 0; pos<_file.size(); ) {
+			buf.clear();
+			while ( buf.hasRemaining() && _file.read(buf, pos + buf.position())>0 ) ;
+			buf.flip();
+			pos += buf.limit();
+			while ( buf.remaining()>=RECORD ) {
+				Entry e = decode(buf);
+				insert(e.getId(), e.getHash());
+			}
+		}
+		if ( log.isLoggable(Level.FINE) ) log.fine("ScanIndex(" + file + "): " + _count + " entries");
+	}
+
+
+	/**
+	 * Appends an entry and syncs the file.
+	 *
+	 * @throws IllegalArgumentException if the id is too long or already present.
+	 */
+	public synchronized void add(Entry entry) throws IOException
+	{
+		final byte[] id = entry.getId().getBytes(StandardCharsets.US_ASCII);
+		if ( id.length>ID || id.length==0 ) throw new IllegalArgumentException("Invalid id " + entry.getId());
+		if ( _ids.containsKey(entry.getId()) ) throw new IllegalArgumentException("Duplicate id " + entry.getId());
+		final ByteBuffer buf = ByteBuffer.allocate(RECORD);
+		buf.put(id).position(ID);
+		buf.putLong(entry.getTime()).putInt(entry.getDpi()).putInt(0).putLong(entry.getSize()).putLong(entry.getHash());
+		buf.clear();
+		final long pos = (long)_count * RECORD;
+		while ( buf.hasRemaining() ) _file.write(buf, pos + buf.position());
+		_file.force(false);
+		insert(entry.getId(), entry.getHash());
+	}
+
+
+	/**
+	 * Returns the entry with the given id, or {@code null}.
+	 */
+	public synchronized Entry get(String id) throws IOException
+	{
+		final Integer i = _ids.get(id);
+		return i==null ? null : read(i);
+	}
+
+
+	/**
+	 * Returns the number of entries.
+	 */
+	public synchronized int size()
+	{
+		return _count;
+	}
+
+
+	/**
+	 * Returns entries within the given distance of a hash, nearest first.
+	 *
+	 * @param distance maximum Hamming distance, at most {@value #MAX_DISTANCE}
+	 * @param limit maximum number of entries
+	 */
+	public synchronized List<Entry> similar(long hash, int distance, int limit) throws IOException
+	{
+		if ( distance<0 || distance>MAX_DISTANCE ) throw new IllegalArgumentException("distance=" + distance);
+		final int radius = distance / 4;
+		final BitSet seen = new BitSet(_count);
+		final List<long[]> found = new ArrayList<>();
+		for ( int part = 0; part<4; part++ ) {
+			final int value = (int)(hash >>> (part * 16)) & 0xffff;
+			probe(part, value, hash, distance, seen, found);
+			if ( radius>=1 ) for ( int a = 0; a<16; a++ ) {
+				probe(part, value ^ 1 << a, hash, distance, seen, found);
+				if ( radius>=2 ) for ( int b = a + 1; b<16; b++ ) {
+					probe(part, value ^ 1 << a ^ 1 << b, hash, distance, seen, found);
+					if ( radius>=3 ) for ( int c = b + 1; c<16; c++ ) {
+						probe(part, value ^ 1 << a ^ 1 << b ^ 1 << c, hash, distance, seen, found);
+					}
+				}
+			}
+		}
+		found.sort((x, y) -> x[0]!=y[0] ? Long.compare(x[0], y[0]) : Long.compare(x[1], y[1]));
+		final List<Entry> result = new ArrayList<>();
+		for ( int i = 0; i<found.size() && i<limit; i++ ) result.add(read((int)found.get(i)[1]));
+		return result;
+	}
+
+
+	@Override
+	public synchronized void close() throws IOException
+	{
+		_file.close();
+	}
+
+
+	/**
+	 * Checks all records of a bucket, adding {@code {distance, record}} of matches.
+	 */
+	private void probe(int part, int value, long hash, int distance, BitSet seen, List<long[]> found)
+	{
+		for ( int i = _head[part][value]; i>=0; i = _next[part][i] ) {
+			if ( seen.get(i) ) continue;
+			seen.set(i);
+			int d = PerceptualHash.distance(hash, _hash[i]);
+			if ( d<=distance ) found.add(new long[] { d, i });
+		}
+	}
+
+
+	private void insert(String id, long hash)
+	{
+		if ( _count==_hash.length ) {
+			int n = _count * 2;
+			_hash = Arrays.copyOf(_hash, n);
+			for ( int part = 0; part<4; part++ ) _next[part] = Arrays.copyOf(_next[part], n);
+		}
+		final int i = _count++;
+		_hash[i] = hash;
+		_ids.put(id, i);
+		for ( int part = 0; part<4; part++ ) {
+			int value = (int)(hash >>> (part * 16)) & 0xffff;
+			_next[part][i] = _head[part][value];
+			_head[part][value] = i;
+		}
+	}
+
+
+	private Entry read(int record) throws IOException
+	{
+		final ByteBuffer buf = ByteBuffer.allocate(RECORD);
+		final long pos = (long)record * RECORD;
+		while ( buf.hasRemaining() ) {
+			if ( _file.read(buf, pos + buf.position())<0 ) throw new IOException("Index truncated");
+		}
+		buf.flip();
+		return decode(buf);
+	}
+
+
+	private static Entry decode(ByteBuffer buf)
+	{
+		final int start = buf.position();
+		int len = 0;
+		while ( len<ID && buf.get(start + len)!=0 ) len++;
+		final String id = new String(buf.array(), buf.arrayOffset() + start, len, StandardCharsets.US_ASCII);
+		buf.position(start + ID);
+		final long time = buf.getLong();
+		final int dpi = buf.getInt();
+		buf.getInt();
+		final long size = buf.getLong();
+		final long hash = buf.getLong();
+		buf.position(start + RECORD);
+		return new Entry(id, time, dpi, size, hash);
+	}
+}
@@ -0,0 +1,97 @@
+/* This file is licensed under Creative Commons License CC-CC0 1.0 (http://creativecommons.org/publicdomain/zero/1.0/).
+ *
+ * Created 2026-10-18 by bastel.
+ */
+
+package hwfs400w;
+
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A spooled scan processed by a {@link ScanPipeline}.
+ *
+ * @author bastel
+ * @since 2026-10-18
+ */
+public final class ScanJob
+{
+	/** Disambiguates ids created in the same millisecond. */
+	private final static AtomicInteger SEQUENCE = new AtomicInteger();
+
+	private final String _id;
+	private final Path _file;
+	private final long _time;
+	private final int _dpi;
+
+
+	ScanJob(String id, Path file, long time, int dpi)
+	{
+		_id = id;
+		_file = file;
+		_time = time;
+		_dpi = dpi;
+	}
+
+
+	/**
+	 * Creates a new unique scan id, sorting by time, e.g. {@code 20261018-215000-826-1}.
+	 */
+	static String newId(long time)
+	{
+		return String.format(Locale.ROOT, "%tY%<tm%<td-%<tH%<tM%<tS-%<tL-%d", time, SEQUENCE.incrementAndGet());
+	}
+
+
+	/**
+	 * Returns the job's unique id.
+	 */
+	public String getId()
+	{
+		return _id;
+	}
+
+
+	/**
+	 * Returns the spooled jpeg file.
+	 */
+	public Path getFile()
+	{
+		return _file;
+	}
+
+
+	/**
+	 * Returns the time the scan has been spooled, in milliseconds since the epoch.
+	 */
+	public long getTime()
+	{
+		return _time;
+	}
+
+
+	/**
+	 * Returns the scan resolution, {@code 0} if unknown.
+	 */
+	public int getDpi()
+	{
+		return _dpi;
+	}
+
+
+	/**
+	 * Returns a file next to the spooled jpeg for results of stages, e.g. {@code resolve(".pdf")}.
+	 */
+	public Path resolve(String suffix)
+	{
+		return _file.resolveSibling(_id + suffix);
+	}
+
+
+	@Override
+	public String toString()
+	{
+		return "ScanJob [" + _id + ", " + _file + ", dpi=" + _dpi + "]";
+	}
+}
@@ -0,0 +1,370 @@
+/* This file is licensed under Creative Commons License CC-CC0 1.0 (http://creativecommons.org/publicdomain/zero/1.0/).
+ *
+ * Created 2026-10-18 by bastel.
+ */
+
+package hwfs400w;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A crash safe post-processing pipeline for scans.
+ * <p>
+ * Scans are spooled to files in the pipeline directory, so the scanner is free again as soon as all bytes arrived.
+ * Every spooled scan becomes a {@link ScanJob} running through the configured {@link ScanStage}s in order,
+ * several jobs are processed in parallel by a fixed number of threads.
+ * <p>
+ * Progress is recorded in an append-only journal ({@code journal.log}), synced after every record:
+ * <pre>
+ * ENQ  &lt;id&gt; &lt;time&gt; &lt;dpi&gt; &lt;file&gt;
+ * DONE &lt;id&gt; &lt;stage&gt;
+ * FAIL &lt;id&gt; &lt;stage&gt;
+ * FIN  &lt;id&gt;
+ * </pre>
+ * On startup the journal is replayed, unfinished jobs resume after their last completed stage,
+ * and the journal is compacted to the unfinished jobs.
+ * A spooled file is journaled before it's moved into place, so no scan file exists without its job.
+ * After a crash in between, the job's file is missing and the job is failed, the spooled part file is deleted
+ * like any other.
+ * Failed jobs are not retried, their files stay in the directory.
+ *
+ * @author bastel
+ * @since 2026-10-18
+ */
+public class ScanPipeline implements Closeable
+{
+	private final static Logger log = Logger.getLogger(ScanPipeline.class.getName());
+
+	/** Journal file name. */
+	final static String JOURNAL = "journal.log";
+
+	/** Content to spool, e.g. {@link ScanBuffer#writeTo(OutputStream)}. */
+	@FunctionalInterface
+	public interface Content
+	{
+		void writeTo(OutputStream out) throws IOException;
+	}
+
+	private final Path _directory;
+	private final ScanStage[] _stages;
+	private final ExecutorService _executor;
+	private final FileChannel _journal;
+
+
+	/**
+	 * Opens a pipeline and resumes unfinished jobs.
+	 *
+	 * @param directory spool directory, created if necessary
+	 * @param threads number of jobs processed in parallel
+	 * @param stages stages each job runs through in order
+	 * @throws IOException if the directory or journal can't be accessed.
+	 */
+	public ScanPipeline(Path directory, int threads, ScanStage... stages) throws IOException
+	{
+		if ( threads<=0 ) throw new IllegalArgumentException("threads=" + threads);
+		Set<String> names = new HashSet<>();
+		for ( ScanStage s : stages ) {
+			if ( s.name().isEmpty() || s.name().matches(".*\\s.*") || !names.add(s.name()) ) throw new IllegalArgumentException("Invalid or duplicate stage name: " + s.name());
+		}
+		_directory = directory;
+		_stages = stages.clone();
+		Files.createDirectories(directory);
+
+		final AtomicInteger count = new AtomicInteger();
+		_executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+			Thread t = new Thread(r, "s400w-pipeline-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+
+		final List<List<String>> pending = recover();
+		_journal = FileChannel.open(directory.resolve(JOURNAL), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		for ( List<String> job : pending ) resume(job);
+	}
+
+
+	/**
+	 * Creates stages from a comma separated list of class names, each with a public no-arg constructor.
+	 *
+	 * @throws IllegalArgumentException if a class can't be instantiated.
+	 */
+	public static ScanStage[] stages(String classNames) throws IllegalArgumentException
+	{
+		List<ScanStage> stages = new ArrayList<>();
+		if ( classNames!=null ) {
+			for ( String name : classNames.split(",") ) {
+				if ( (name = name.trim()).isEmpty() ) continue;
+				try {
+					stages.add((ScanStage)Class.forName(name).getConstructor().newInstance());
+				} catch (ReflectiveOperationException | ClassCastException e) {
+					throw new IllegalArgumentException("Invalid stage " + name + ": " + e, e);
+				}
+			}
+		}
+		return stages.toArray(new ScanStage[stages.size()]);
+	}
+
+
+	/**
+	 * Returns a receiver spooling jpeg data and enqueueing a job once complete.
+	 * Incomplete data (less than announced by {@link ScanDataReceiver#open(long)}) is discarded.
+	 *
+	 * @param dpi scan resolution, {@code 0} if unknown
+	 */
+	public ScanDataReceiver receiver(final int dpi)
+	{
+		return new ScanDataReceiver() {
+			FileChannel file;
+			Path part;
+			long expected, written;
+
+			@Override
+			public void open(long length) throws IOException {
+				expected = length;
+				written = 0;
+				part = Files.createTempFile(_directory, "scan", ".part");
+				file = FileChannel.open(part, StandardOpenOption.WRITE);
+			}
+
+			@Override
+			public void write(byte[] array, int offset, int length) throws IOException {
+				ByteBuffer buf = ByteBuffer.wrap(array, offset, length);
+				while ( buf.hasRemaining() ) written += file.write(buf);
+			}
+
+			@Override
+			public void close() throws IOException {
+				try {
+					file.force(true);
+					file.close();
+					if ( expected<0 || written==expected ) {
+						enqueue(part, dpi);
+						part = null;
+					}
+				} finally {
+					if ( part!=null ) Files.deleteIfExists(part);
+				}
+			}
+		};
+	}
+
+
+	/**
+	 * Spools content and enqueues a job.
+	 *
+	 * @param dpi scan resolution, {@code 0} if unknown
+	 * @return the enqueued job
+	 */
+	public ScanJob enqueue(int dpi, Content content) throws IOException
+	{
+		final Path part = Files.createTempFile(_directory, "scan", ".part");
+		try {
+			try ( FileChannel file = FileChannel.open(part, StandardOpenOption.WRITE) ) {
+				content.writeTo(Channels.newOutputStream(file));
+				file.force(true);
+			}
+			return enqueue(part, dpi);
+		}
+		catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(part);
+			throw e;
+		}
+	}
+
+
+	/**
+	 * Journals a spooled file's job, moves the file into place and submits the job.
+	 */
+	private ScanJob enqueue(Path part, int dpi) throws IOException
+	{
+		final long time = System.currentTimeMillis();
+		final String id = ScanJob.newId(time);
+		final Path file = _directory.resolve(id + ".jpg");
+		append("ENQ " + id + " " + time + " " + dpi + " " + file.getFileName());
+		try {
+			Files.move(part, file, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException | RuntimeException e) {
+			tryAppend("FAIL " + id + " -");
+			throw e;
+		}
+		final ScanJob job = new ScanJob(id, file, time, dpi);
+		if ( log.isLoggable(Level.FINE) ) log.fine("enqueue(): " + job);
+		submit(job, 0);
+		return job;
+	}
+
+
+	/**
+	 * Stops processing, waiting at most the given time for running stages.
+	 * Jobs not yet finished are resumed on the next start.
+	 */
+	public void close(long timeout, TimeUnit unit) throws IOException
+	{
+		_executor.shutdownNow();
+		try {
+			_executor.awaitTermination(timeout, unit);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (_journal) {
+			_journal.close();
+		}
+	}
+
+
+	@Override
+	public void close() throws IOException
+	{
+		close(10, TimeUnit.SECONDS);
+	}
+
+
+	private void submit(final ScanJob job, final int first)
+	{
+		_executor.execute(() -> run(job, first));
+	}
+
+
+	private void run(ScanJob job, int first)
+	{
+		for ( int i = first; i<_stages.length; i++ ) {
+			if ( Thread.currentThread().isInterrupted() ) return;
+			final ScanStage stage = _stages[i];
+			final long start = System.nanoTime();
+			try {
+				stage.process(job);
+			}
+			catch (Exception e) {
+				if ( Thread.currentThread().isInterrupted() ) return;
+				log.log(Level.WARNING, "run(" + job.getId() + "): " + stage.name() + " failed", e);
+				tryAppend("FAIL " + job.getId() + " " + stage.name());
+				return;
+			}
+			if ( log.isLoggable(Level.FINE) ) log.fine("run(" + job.getId() + "): " + stage.name() + " " + (System.nanoTime() - start) / 1000000L + " ms");
+			if ( !tryAppend("DONE " + job.getId() + " " + stage.name()) ) return;
+		}
+		tryAppend("FIN " + job.getId());
+	}
+
+
+	/**
+	 * Replays and compacts the journal, removes stray spool files.
+	 *
+	 * @return the journal lines of each unfinished job, ENQ first
+	 */
+	private List<List<String>> recover() throws IOException
+	{
+		final Path path = _directory.resolve(JOURNAL);
+		final Map<String, List<String>> open = new LinkedHashMap<>();
+		if ( Files.exists(path) ) {
+			try ( BufferedReader in = Files.newBufferedReader(path, StandardCharsets.UTF_8) ) {
+				for ( String line = in.readLine(); line!=null; line = in.readLine() ) {
+					String[] parts = line.split(" ");
+					// a torn last line is ignored, its stage will simply be run again
+					if ( parts.length<2 || !line.matches("(ENQ \\S+ \\d+ \\d+ \\S+|DONE \\S+ \\S+|FAIL .*|FIN \\S+)") ) continue;
+					switch (parts[0]) {
+						case "ENQ":
+							open.computeIfAbsent(parts[1], k -> new ArrayList<>()).add(line);
+							break;
+						case "DONE":
+							if ( open.containsKey(parts[1]) ) open.get(parts[1]).add(line);
+							break;
+						case "FAIL":
+						case "FIN":
+							open.remove(parts[1]);
+							break;
+						default:
+					}
+				}
+			}
+		}
+
+		final List<String> lines = new ArrayList<>();
+		for ( List<String> l : open.values() ) lines.addAll(l);
+		final Path tmp = _directory.resolve(JOURNAL + ".tmp");
+		Files.write(tmp, lines, StandardCharsets.UTF_8);
+		try ( FileChannel c = FileChannel.open(tmp, StandardOpenOption.WRITE) ) {
+			c.force(true);
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		try ( DirectoryStream<Path> parts = Files.newDirectoryStream(_directory, "scan*.part") ) {
+			for ( Path p : parts ) Files.deleteIfExists(p);
+		}
+		if ( !open.isEmpty() ) log.info("recover(): resuming " + open.size() + " jobs");
+		return new ArrayList<>(open.values());
+	}
+
+
+	/**
+	 * Resubmits an unfinished job after the last stage journaled as done.
+	 *
+	 * @param lines the job's journal lines, ENQ first
+	 */
+	private void resume(List<String> lines)
+	{
+		final String[] enq = lines.get(0).split(" ");
+		final Path file = _directory.resolve(enq[4]);
+		if ( !Files.exists(file) ) {
+			// journaled, but not moved into place before a crash, or deleted
+			log.warning("resume(" + enq[1] + "): " + file + " missing");
+			tryAppend("FAIL " + enq[1] + " -");
+			return;
+		}
+		int first = 0;
+		for ( String line : lines.subList(1, lines.size()) ) {
+			String stage = line.split(" ")[2];
+			for ( int i = first; i<_stages.length; i++ ) {
+				if ( _stages[i].name().equals(stage) ) first = i + 1;
+			}
+		}
+		submit(new ScanJob(enq[1], file, Long.parseLong(enq[2]), Integer.parseInt(enq[3])), first);
+	}
+
+
+	private synchronized void append(String record) throws IOException
+	{
+		final ByteBuffer buf = ByteBuffer.wrap((record + "\n").getBytes(StandardCharsets.UTF_8));
+		synchronized (_journal) {
+			while ( buf.hasRemaining() ) _journal.write(buf);
+			_journal.force(false);
+		}
+	}
+
+
+	private boolean tryAppend(String record)
+	{
+		try {
+			append(record);
+			return true;
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "append(" + record + ")", e);
+			return false;
+		}
+	}
+}
@@ -0,0 +1,82 @@
+/* This file is licensed under Creative Commons License CC-CC0 1.0 (http://creativecommons.org/publicdomain/zero/1.0/).
+ *
+ * Created 2026-10-18 by bastel.
+ */
+
+package hwfs400w;
+
+import java.util.Locale;
+
+/**
+ * A snapshot of a running scan transfer, see {@link ScanProgressListener}.
+ *
+ * @author bastel
+ * @since 2026-10-18
+ */
+public final class ScanProgress
+{
+	/** Transfer phase. */
+	public enum Phase
+	{
+		PREVIEW,
+		JPEG
+	}
+
+	private final Phase _phase;
+	private final long _bytes;
+	private final long _expected;
+	private final long _throughput;
+
+
+	ScanProgress(Phase phase, long bytes, long expected, long throughput)
+	{
+		_phase = phase;
+		_bytes = bytes;
+		_expected = expected;
+		_throughput = throughput;
+	}
+
+
+	/**
+	 * Returns the current phase.
+	 */
+	public Phase getPhase()
+	{
+		return _phase;
+	}
+
+
+	/**
+	 * Returns the number of bytes received in the current phase.
+	 */
+	public long getBytes()
+	{
+		return _bytes;
+	}
+
+
+	/**
+	 * Returns the number of bytes expected in the current phase, {@code -1} if unknown (preview).
+	 */
+	public long getExpected()
+	{
+		return _expected;
+	}
+
+
+	/**
+	 * Returns the current throughput in bytes per second over the watchdog window,
+	 * see {@link S400WSettings#throughputWindow}.
+	 */
+	public long getThroughput()
+	{
+		return _throughput;
+	}
+
+
+	@Override
+	public String toString()
+	{
+		return String.format(Locale.ROOT, "%s %,d/%,d bytes, %,d bytes/s", _phase, _bytes, _expected, _throughput);
+	}
+}
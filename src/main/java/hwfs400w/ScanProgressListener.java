@@ -0,0 +1,24 @@
+/* This file is licensed under Creative Commons License CC-CC0 1.0 (http://creativecommons.org/publicdomain/zero/1.0/).
+ *
+ * Created 2026-10-18 by bastel.
+ */
+
+package hwfs400w;
+
+/**
+ * A callback interface notified while scan data is received.
+ *
+ * @author bastel
+ * @since 2026-10-18
+ */
+@FunctionalInterface
+public interface ScanProgressListener
+{
+	/**
+	 * Called after each block of preview or jpeg data has been received.
+	 * Called on the scanning thread, so implementations should return quickly.
+	 *
+	 * @param progress the current progress.
+	 */
+	void progress(ScanProgress progress);
+}
@@ -0,0 +1,178 @@
+/* This file is licensed under Creative Commons License CC-CC0 1.0 (http://creativecommons.org/publicdomain/zero/1.0/).
+ *
+ * Created 2026-10-18 by bastel.
+ */
+
+package hwfs400w;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * A reactive streams {@link Publisher} of scan data.
+ * <p>
+ * The scan starts on subscription and runs on the given executor. Each buffer received from the scanner
+ * is copied and signalled as one {@link Subscriber#onNext(Object) onNext}. Without outstanding demand the
+ * scan stops reading from the socket, so the TCP receive window throttles the scanner.
+ * Transfer stall detection only counts time spent waiting for the scanner, not for demand.
+ * <p>
+ * The stream completes after a successful scan and fails with an {@link S400WException} carrying the
+ * scanner's response otherwise. Cancelling aborts the scan and closes the connection.
+ * A publisher performs a single scan, so it accepts only one subscriber.
+ *
+ * @author bastel
+ * @since 2026-10-18
+ */
+public final class ScanPublisher implements Publisher<ByteBuffer>
+{
+	private final static Logger log = Logger.getLogger(ScanPublisher.class.getName());
+
+	private final S400W _device;
+	private final int _resolution;
+	private final boolean _preview;
+	private final Executor _executor;
+	private final AtomicBoolean _subscribed = new AtomicBoolean();
+
+
+	private ScanPublisher(S400W device, int resolution, boolean preview, Executor executor)
+	{
+		_device = device;
+		_resolution = resolution;
+		_preview = preview;
+		_executor = executor;
+	}
+
+
+	/**
+	 * Creates a publisher of the jpeg data of a scan, skipping the preview.
+	 *
+	 * @param resolution resolution setting, or {@code 0}
+	 * @param executor runs the scan, blocking a thread for its duration
+	 */
+	public static ScanPublisher jpeg(S400W device, int resolution, Executor executor)
+	{
+		return new ScanPublisher(device, resolution, false, executor);
+	}
+
+
+	/**
+	 * Creates a publisher of the RGB preview data of a scan, without fetching the jpeg.
+	 *
+	 * @param resolution resolution setting, or {@code 0}
+	 * @param executor runs the scan, blocking a thread for its duration
+	 */
+	public static ScanPublisher preview(S400W device, int resolution, Executor executor)
+	{
+		return new ScanPublisher(device, resolution, true, executor);
+	}
+
+
+	@Override
+	public void subscribe(Subscriber<? super ByteBuffer> subscriber)
+	{
+		Objects.requireNonNull(subscriber, "subscriber");
+		if ( !_subscribed.compareAndSet(false, true) ) {
+			subscriber.onSubscribe(new Subscription() {
+				@Override public void request(long n) {}
+				@Override public void cancel() {}
+			});
+			subscriber.onError(new IllegalStateException("ScanPublisher supports a single subscriber"));
+			return;
+		}
+		final Transfer transfer = new Transfer(subscriber);
+		subscriber.onSubscribe(transfer);
+		_executor.execute(transfer);
+	}
+
+
+	/**
+	 * The subscription, receiving data from the scan and waiting for demand.
+	 */
+	private final class Transfer implements Subscription, ScanDataReceiver, Runnable
+	{
+		private final Subscriber<? super ByteBuffer> _subscriber;
+		private long _demand;
+		private boolean _cancelled;
+		private Throwable _error;
+
+
+		Transfer(Subscriber<? super ByteBuffer> subscriber)
+		{
+			_subscriber = subscriber;
+		}
+
+
+		@Override
+		public synchronized void request(long n)
+		{
+			if ( _cancelled ) return;
+			if ( n<=0 ) {
+				_error = new IllegalArgumentException("Non-positive request " + n + " (rule 3.9)");
+				_cancelled = true;
+			}
+			else {
+				_demand = _demand + n<0 ? Long.MAX_VALUE : _demand + n;
+			}
+			notifyAll();
+		}
+
+
+		@Override
+		public synchronized void cancel()
+		{
+			_cancelled = true;
+			notifyAll();
+		}
+
+
+		@Override
+		public void write(byte[] array, int offset, int length) throws IOException
+		{
+			synchronized (this) {
+				try {
+					while ( _demand==0 && !_cancelled ) wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for demand");
+				}
+				if ( _cancelled ) throw new IOException("Subscription cancelled");
+				if ( _demand!=Long.MAX_VALUE ) _demand--;
+			}
+			final byte[] copy = new byte[length];
+			System.arraycopy(array, offset, copy, 0, length);
+			_subscriber.onNext(ByteBuffer.wrap(copy));
+		}
+
+
+		@Override
+		public void run()
+		{
+			Throwable failure;
+			try {
+				final S400WResponse response = _preview ? _device.scan(_resolution, this, null) : _device.scan(_resolution, null, this);
+				failure = response==S400WResponse.SCAN_READY ? null : new S400WException("scan()", response);
+			}
+			catch (IOException | RuntimeException e) {
+				failure = e;
+			}
+			synchronized (this) {
+				if ( _error!=null ) failure = _error;
+				else if ( _cancelled ) return;
+				_cancelled = true;
+			}
+			if ( log.isLoggable(Level.FINE) ) log.fine("run(): " + (failure==null ? "complete" : failure.toString()));
+			if ( failure==null ) _subscriber.onComplete();
+			else _subscriber.onError(failure);
+		}
+	}
+}
@@ -0,0 +1,35 @@
+/* This file is licensed under Creative Commons License CC-CC0 1.0 (http://creativecommons.org/publicdomain/zero/1.0/).
+ *
+ * Created 2026-10-18 by bastel.
+ */
+
+package hwfs400w;
+
+/**
+ * A post-processing step of a {@link ScanPipeline}, e.g. PDF assembly, thumbnails or archiving.
+ * <p>
+ * A stage may be run again for the same job if the process died before its completion was journaled,
+ * so implementations must be idempotent, e.g. by writing to a temporary file and renaming it.
+ * Implementations must be thread safe, jobs are processed concurrently.
+ *
+ * @author bastel
+ * @since 2026-10-18
+ */
+public interface ScanStage
+{
+	/**
+	 * Returns the stage name, used in the journal, so it must not change between restarts. Must not contain whitespace.
+	 */
+	default String name()
+	{
+		return getClass().getSimpleName();
+	}
+
+
+	/**
+	 * Processes a job.
+	 *
+	 * @throws Exception if processing failed, the job is not processed any further.
+	 */
+	void process(ScanJob job) throws Exception;
+}
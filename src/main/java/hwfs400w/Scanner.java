@@ -5,9 +5,17 @@
 
 package hwfs400w;
 
-import java.io.ByteArrayOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
@@ -16,6 +24,14 @@ import java.util.logging.Logger;
 /**
  * A simple command line scanner application for demonstration purposes.
  * <p>
+ * Device requests are retried on transient failures, see {@link RetryPolicy}, interrupted jpeg transfers are resumed.
+ * <p>
+ * {@code deskew [dpi300|dpi600] <file.tif>} scans as bitonal TIFF straightened by the skew estimated from the preview,
+ * see {@link SkewEstimator} and {@link Deskewer}.
+ * <p>
+ * {@code daemon [port]} keeps running and accepts the commands over a local socket, {@code client [--port=<port>] <command>...}
+ * sends them, both use the secret in {@code ~/.hwfs400w-daemon.secret}, see {@link ScannerDaemon}.
+ * <p>
  * This file is licensed under the <a href="http://creativecommons.org/publicdomain/zero/1.0/">Creative Commons License CC-CC0 1.0</a>.
  *
  * @author bastel
@@ -24,6 +40,13 @@ public class Scanner
 {
 	public static void main(final String[] args) throws IOException, InterruptedException
 	{
+		if ( "client".equals(args[0]) ) {
+			// before anything else, a client should be quick
+			final boolean port = args.length>1 && args[1].startsWith("--port=");
+			System.exit(ScannerDaemon.client(port ? Integer.parseInt(args[1].substring(7)) : ScannerDaemon.DEFAULT_PORT,
+				Arrays.copyOfRange(args, port ? 2 : 1, args.length)));
+		}
+
 		Handler h = new ConsoleHandler();
 		h.setLevel(Level.FINE);
 		Logger.getLogger(Scanner.class.getPackage().getName()).addHandler(h);
@@ -31,7 +54,7 @@ public class Scanner
 		S400W device = new S400W();
 		S400WResponse response;
 		if ( "version".equals(args[0])  ) {
-			response = device.getVersion();
+			response = RetryPolicy.STATUS.call("version", device::getVersion);
 			if ( response.isEmpty() || response.isEOF() || response.isKnown() ) System.exit(-1);
 			System.out.println(response);
 		}
@@ -44,7 +67,7 @@ public class Scanner
 
 		else if ( "status".equals(args[0]) ) {
 			while ( true ) {
-				response = device.getStatus();
+				response = RetryPolicy.STATUS.call("status", device::getStatus);
 				if ( response.isEmpty() || response.isEOF() ) System.exit(-1);
 				System.out.println(response);
 				Thread.sleep(5000);
@@ -53,7 +76,7 @@ public class Scanner
 
 		else if ( "battery".equals(args[0]) ) {
 			while ( true ) {
-				response = device.getBatteryState();
+				response = RetryPolicy.STATUS.call("battery", device::getBatteryState);
 				if ( response.isEmpty() || response.isEOF() ) System.exit(-1);
 				System.out.println(response);
 				if ( response.isKnown() ) System.exit(-1);
@@ -70,47 +93,144 @@ public class Scanner
 		}
 
 		else if ( "clean".equals(args[0]) ) {
-			response = device.clean();
+			response = RetryPolicy.SCAN.call("clean", device::clean);
 			if ( response!=S400WResponse.CLEAN_END ) System.exit(-1);
 			System.out.println(response);
 		}
 
 		else if ( "calibrate".equals(args[0]) ) {
-			response = device.calibrate();
+			response = RetryPolicy.SCAN.call("calibrate", device::calibrate);
 			if ( response!=S400WResponse.CALIBRATE_END ) System.exit(-1);
 			System.out.println(response);
 		}
 
 		else if ( "preview".equals(args[0]) ) {
-			final ByteArrayOutputStream os = new ByteArrayOutputStream();
-			response = device.scan(0, os::write, null);
+			response = preview(device, args.length>1 ? args[1] : ("./" + System.currentTimeMillis() + ".png"));
 			if ( response!=S400WResponse.SCAN_READY ) System.exit(-1);
-			FileOutputStream fos = new FileOutputStream("./" + System.currentTimeMillis() + ".raw");
-			fos.write(os.toByteArray());
-			fos.close();
 			System.out.println(response);
 		}
 
 		else if ( "scan".equals(args[0]) ) {
 			final int dpi  = args.length <3  ? 0 : "dpi300".equals(args[1]) ? 300 : "dpi600".equals(args[1]) ? 600 : 0;
 			final String name = args.length==1 ? ("./" + System.currentTimeMillis() + ".jpg") : args.length==2 ? args[1] : args[2];
-			response = device.scan(dpi, null, new ScanDataReceiver() {
-				FileOutputStream o = null;
-				@Override
-				public void open(long length) throws IOException {
-					o = new FileOutputStream(name);
-				}
-				@Override
-				public void write(byte[] array, int offset, int length) throws IOException {
-					o.write(array, offset, length);
-				}
-				@Override
-				public void close() throws IOException {
-					o.close();
-				}
-			});
+			response = scan(device, dpi, name);
+			if ( response!=S400WResponse.SCAN_READY ) System.exit(-1);
+			System.out.println(response);
+		}
+
+		else if ( "deskew".equals(args[0]) ) {
+			final int dpi  = args.length <3  ? 0 : "dpi300".equals(args[1]) ? 300 : "dpi600".equals(args[1]) ? 600 : 0;
+			final String name = args.length==1 ? ("./" + System.currentTimeMillis() + ".tif") : args.length==2 ? args[1] : args[2];
+			response = deskew(device, dpi, name);
 			if ( response!=S400WResponse.SCAN_READY ) System.exit(-1);
 			System.out.println(response);
 		}
+
+		else if ( "serve".equals(args[0]) ) {
+			final int port = args.length>1 ? Integer.parseInt(args[1]) : S400WServer.DEFAULT_PORT;
+			new S400WServer(new InetSocketAddress(port)).start();
+			Thread.currentThread().join();
+		}
+
+		else if ( "daemon".equals(args[0]) ) {
+			final int port = args.length>1 ? Integer.parseInt(args[1]) : ScannerDaemon.DEFAULT_PORT;
+			new ScannerDaemon(port, new S400WSettings()).start().join();
+			System.exit(0);
+		}
+	}
+
+
+	/**
+	 * Writes a preview as PNG file.
+	 */
+	static S400WResponse preview(S400W device, String name) throws IOException
+	{
+		final PngWriter png = new PngWriter(Paths.get(name), PreviewKernels.WIDTH, 3, ForkJoinPool.commonPool());
+		return RetryPolicy.SCAN.call("preview", () -> device.scan(0, png, null));
+	}
+
+
+	/**
+	 * Writes a scan as jpeg file, or as bitonal CCITT G4 TIFF if the name ends with {@code .tif} or {@code .tiff}.
+	 *
+	 * @param dpi resolution to scan with, {@code 0} for the current one
+	 */
+	static S400WResponse scan(S400W device, int dpi, String name) throws IOException
+	{
+		// .tif: bitonal CCITT G4, converted from a temporary jpeg
+		final boolean g4 = name.toLowerCase(Locale.ROOT).matches(".*\\.tiff?");
+		if ( !g4 ) {
+			final Path jpeg = Paths.get(name);
+			return RetryPolicy.SCAN.call("scan", () -> device.scan(dpi, null, file(jpeg)));
+		}
+		final Path jpeg = Files.createTempFile("s400w-scan", ".jpg");
+		try {
+			final S400WResponse response = RetryPolicy.SCAN.call("scan", () -> device.scan(dpi, null, file(jpeg)));
+			// the tiff is only created for a complete scan
+			if ( response!=S400WResponse.SCAN_READY ) return response;
+			final TiffG4Writer tiff;
+			try ( InputStream in = Files.newInputStream(jpeg) ) {
+				tiff = TiffG4Writer.convert(in, dpi);
+			}
+			try ( OutputStream out = new FileOutputStream(name) ) {
+				tiff.writeTo(out);
+			}
+			return response;
+		} finally {
+			Files.delete(jpeg);
+		}
+	}
+
+
+	/**
+	 * Writes a scan as bitonal CCITT G4 TIFF, rotated by the skew estimated from the preview, and prints angle and times.
+	 *
+	 * @param dpi resolution to scan with, {@code 0} for the current one
+	 */
+	static S400WResponse deskew(S400W device, int dpi, String name) throws IOException
+	{
+		final SkewEstimator skew = new SkewEstimator();
+		final Path jpeg = Files.createTempFile("s400w-scan", ".jpg");
+		try {
+			final S400WResponse response = RetryPolicy.SCAN.call("deskew", () -> device.scan(dpi, skew, file(jpeg)));
+			if ( response!=S400WResponse.SCAN_READY ) return response;
+			final TiffG4Writer tiff = new TiffG4Writer();
+			final Deskewer deskewer = new Deskewer(new Binarizer(tiff), skew.getAngle());
+			final long start = System.nanoTime();
+			try ( InputStream in = Files.newInputStream(jpeg) ) {
+				new JpegStripeDecoder(in, dpi).decode(deskewer, ForkJoinPool.commonPool());
+			}
+			try ( OutputStream out = new FileOutputStream(name) ) {
+				tiff.writeTo(out);
+			}
+			System.out.println(String.format(Locale.ROOT, "skew %.2f degrees, estimated in %d ms, rotated in %d ms, converted in %d ms",
+				skew.getAngle(), skew.getMillis(), deskewer.getMillis(), (System.nanoTime() - start) / 1000000L));
+			return response;
+		} finally {
+			Files.delete(jpeg);
+		}
+	}
+
+
+	/**
+	 * Returns a receiver writing to a file.
+	 */
+	private static ScanDataReceiver file(Path file)
+	{
+		return new ScanDataReceiver() {
+			FileOutputStream o = null;
+			@Override
+			public void open(long length) throws IOException {
+				o = new FileOutputStream(file.toFile());
+			}
+			@Override
+			public void write(byte[] array, int offset, int length) throws IOException {
+				o.write(array, offset, length);
+			}
+			@Override
+			public void close() throws IOException {
+				o.close();
+			}
+		};
 	}
 }
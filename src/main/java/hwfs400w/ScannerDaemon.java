@@ -0,0 +1,414 @@
+/* This file is licensed under Creative Commons License CC-CC0 1.0 (http://creativecommons.org/publicdomain/zero/1.0/).
+ *
+ * Created 2026-10-18 by bastel.
+ */
+
+package hwfs400w;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A resident scanner process controlled over a loopback socket, so scripts don't pay JVM start, class loading
+ * and logging setup for every {@link Scanner} call, and the {@link AdaptiveTimeouts} learned stay warm.
+ * <p>
+ * Protocol: the client sends the shared secret in a line, then a single UTF-8 command line, arguments separated by tabs,
+ * or by whitespace if there's no tab.
+ * The daemon answers with any number of {@code DATA <n>} lines, each followed by {@code n} bytes of scan data,
+ * and a final line {@code OK <result>} or {@code ERR <result>}, then closes the connection.
+ * <p>
+ * Commands, as those of {@link Scanner}: {@code version}, {@code status}, {@code battery}, {@code poweroff}, {@code dpi 300|600},
+ * {@code clean}, {@code calibrate}, {@code preview <file.png>}, {@code scan [dpi300|dpi600] <file>|-}, and {@code shutdown}.
+ * Files are written by the daemon, so their paths should be absolute, a scan to {@code -} is streamed as data.
+ * Commands run concurrently, access to the scanner is coordinated by its {@link DeviceLease}.
+ * <p>
+ * The socket is bound to the loopback address, commands are only executed with the secret from a file only its owner
+ * may access, {@link #DEFAULT_SECRET} unless given. The daemon creates the file with a random secret if it doesn't exist,
+ * and refuses to use it, as does the client, if group or others have any permission. So only the daemon's user,
+ * or whoever it shares the file with, can control the scanner and have files written with the daemon's permissions.
+ * <p>
+ * Start with {@code java -jar hwfs400w.jar daemon [port]}, send commands with {@code java -jar hwfs400w.jar client [--port=<port>] <command>...}.
+ *
+ * @author bastel
+ * @since 2026-10-18
+ */
+public class ScannerDaemon
+{
+	private final static Logger log = Logger.getLogger(ScannerDaemon.class.getName());
+
+	/** Default control port. */
+	public final static int DEFAULT_PORT = 8401;
+
+	/** Default file of the shared secret, {@code ~/.hwfs400w-daemon.secret}. */
+	public final static Path DEFAULT_SECRET = Paths.get(System.getProperty("user.home"), ".hwfs400w-daemon.secret");
+
+	/** Time a client may take to send its command. */
+	private final static int COMMAND_TIMEOUT = 10000;
+
+	private final S400WSettings _settings;
+	private final byte[] _secret;
+	private final ServerSocket _server;
+	private final ExecutorService _executor;
+	private final CountDownLatch _stopped = new CountDownLatch(1);
+
+
+	/**
+	 * Creates a new daemon bound to the given loopback port, {@code 0} for any, with the secret from {@link #DEFAULT_SECRET},
+	 * call {@link #start()} to start.
+	 *
+	 * @throws IOException if the port can't be bound or the secret can't be read.
+	 */
+	public ScannerDaemon(int port, S400WSettings settings) throws IOException
+	{
+		this(port, settings, DEFAULT_SECRET);
+	}
+
+
+	/**
+	 * Creates a new daemon bound to the given loopback port, {@code 0} for any, call {@link #start()} to start.
+	 *
+	 * @param secret file of the shared secret, created if it doesn't exist
+	 * @throws IOException if the port can't be bound or the secret can't be read.
+	 */
+	public ScannerDaemon(int port, S400WSettings settings, Path secret) throws IOException
+	{
+		_secret = secret(secret, true);
+		// settings are shared by all commands, including the adaptive timeouts
+		_settings = settings.clone();
+		_server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		_executor = Threads.executor("s400w-daemon-");
+	}
+
+
+	/**
+	 * Starts accepting commands.
+	 */
+	public ScannerDaemon start()
+	{
+		Threads.newThread("s400w-daemon", this::accept).start();
+		log.info("listening on " + getAddress());
+		return this;
+	}
+
+
+	/**
+	 * Stops accepting commands, waiting at most the given seconds for running commands.
+	 */
+	public void stop(int seconds)
+	{
+		try {
+			_server.close();
+		} catch (IOException e) {
+			log.log(Level.WARNING, "stop()", e);
+		}
+		_executor.shutdown();
+		try {
+			_executor.awaitTermination(seconds, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		_stopped.countDown();
+	}
+
+
+	/**
+	 * Waits until the daemon has been stopped, e.g. by the {@code shutdown} command.
+	 */
+	public void join() throws InterruptedException
+	{
+		_stopped.await();
+	}
+
+
+	/**
+	 * Returns the bound address.
+	 */
+	public InetSocketAddress getAddress()
+	{
+		return (InetSocketAddress)_server.getLocalSocketAddress();
+	}
+
+
+	private void accept()
+	{
+		while ( !_server.isClosed() ) {
+			try {
+				final Socket socket = _server.accept();
+				_executor.execute(() -> serve(socket));
+			}
+			catch (IOException e) {
+				if ( !_server.isClosed() ) log.log(Level.WARNING, "accept()", e);
+			}
+		}
+	}
+
+
+	private void serve(Socket socket)
+	{
+		try ( Socket s = socket ) {
+			s.setTcpNoDelay(true);
+			s.setSoTimeout(COMMAND_TIMEOUT);
+			final InputStream in = new BufferedInputStream(s.getInputStream());
+			final String secret = readLine(in);
+			final boolean authorized = secret!=null && MessageDigest.isEqual(_secret, secret.trim().getBytes(StandardCharsets.UTF_8));
+			final String line = authorized ? readLine(in) : null;
+			s.setSoTimeout(0);
+			final OutputStream out = new BufferedOutputStream(s.getOutputStream(), 65536);
+			String result;
+			boolean shutdown = false;
+			if ( !authorized ) {
+				log.warning("serve(): wrong secret from " + s.getRemoteSocketAddress());
+				result = "ERR unauthorized";
+			}
+			else if ( line==null || line.trim().isEmpty() ) {
+				result = "ERR no command";
+			}
+			else {
+				final String[] args = line.indexOf('\t')>=0 ? line.split("\t") : line.trim().split("\\s+");
+				if ( log.isLoggable(Level.FINE) ) log.fine("serve(): " + String.join(" ", args));
+				shutdown = "shutdown".equals(args[0]);
+				try {
+					result = execute(args, out);
+				}
+				catch (IllegalArgumentException e) {
+					result = "ERR " + e.getMessage();
+				}
+				catch (IOException e) {
+					log.log(Level.WARNING, "serve(): " + args[0], e);
+					result = "ERR " + e;
+				}
+			}
+			out.write((result + "\n").getBytes(StandardCharsets.UTF_8));
+			out.flush();
+			// not on this thread, stop() waits for the running commands
+			if ( shutdown ) Threads.newThread("s400w-daemon-stop", () -> stop(10)).start();
+		}
+		catch (IOException e) {
+			log.log(Level.WARNING, "serve()", e);
+		}
+	}
+
+
+	/**
+	 * Executes a command.
+	 *
+	 * @return the result line
+	 * @throws IllegalArgumentException if the command or its arguments are invalid.
+	 */
+	private String execute(String[] args, OutputStream out) throws IOException, IllegalArgumentException
+	{
+		final S400W device = new S400W(_settings);
+		S400WResponse response;
+		switch (args[0]) {
+			case "version":
+				response = RetryPolicy.STATUS.call("version", device::getVersion);
+				return result(response, !response.isEmpty() && !response.isEOF() && !response.isKnown());
+
+			case "status":
+				response = RetryPolicy.STATUS.call("status", device::getStatus);
+				return result(response, !response.isEmpty() && !response.isEOF());
+
+			case "battery":
+				response = RetryPolicy.STATUS.call("battery", device::getBatteryState);
+				return result(response, !response.isEmpty() && !response.isEOF() && !response.isKnown());
+
+			case "poweroff":
+				// the scanner just drops the connection
+				response = device.poweroff();
+				return result(response, response.isEOF());
+
+			case "dpi":
+				if ( args.length!=2 || !args[1].matches("300|600") ) throw new IllegalArgumentException("dpi 300|600");
+				return device.setResolution(Integer.parseInt(args[1])) ? "OK dpi " + args[1] : "ERR dpi " + args[1];
+
+			case "clean":
+				response = RetryPolicy.SCAN.call("clean", device::clean);
+				return result(response, response==S400WResponse.CLEAN_END);
+
+			case "calibrate":
+				response = RetryPolicy.SCAN.call("calibrate", device::calibrate);
+				return result(response, response==S400WResponse.CALIBRATE_END);
+
+			case "preview":
+				if ( args.length!=2 ) throw new IllegalArgumentException("preview <file.png>");
+				response = Scanner.preview(device, args[1]);
+				return result(response, response==S400WResponse.SCAN_READY);
+
+			case "scan":
+				if ( args.length<2 || args.length>3 ) throw new IllegalArgumentException("scan [dpi300|dpi600] <file>|-");
+				final int dpi = args.length<3 ? 0 : "dpi300".equals(args[1]) ? 300 : "dpi600".equals(args[1]) ? 600 : 0;
+				final String name = args[args.length - 1];
+				response = "-".equals(name) ? RetryPolicy.SCAN.call("scan", () -> device.scan(dpi, null, stream(out))) : Scanner.scan(device, dpi, name);
+				return result(response, response==S400WResponse.SCAN_READY);
+
+			case "shutdown":
+				return "OK shutdown";
+
+			default:
+				throw new IllegalArgumentException("unknown command " + args[0]);
+		}
+	}
+
+
+	private static String result(S400WResponse response, boolean ok)
+	{
+		return (ok ? "OK " : "ERR ") + response;
+	}
+
+
+	/**
+	 * Returns a receiver passing scan data on as {@code DATA} frames.
+	 */
+	private static ScanDataReceiver stream(final OutputStream out)
+	{
+		return new ScanDataReceiver() {
+			@Override
+			public void open(long length) throws IOException {
+			}
+
+			@Override
+			public void write(byte[] array, int offset, int length) throws IOException {
+				out.write(("DATA " + length + "\n").getBytes(StandardCharsets.US_ASCII));
+				out.write(array, offset, length);
+			}
+
+			@Override
+			public void close() throws IOException {
+				out.flush();
+			}
+		};
+	}
+
+
+	/**
+	 * Sends a command to a daemon with the secret from {@link #DEFAULT_SECRET}, see {@link #client(int, Path, String...)}.
+	 */
+	public static int client(int port, String... command) throws IOException
+	{
+		return client(port, DEFAULT_SECRET, command);
+	}
+
+
+	/**
+	 * Sends a command to a daemon and prints the result, to standard error if data was written to standard output.
+	 * Paths of {@code scan} and {@code preview} are made absolute, a missing one is named by the current time like {@link Scanner} does.
+	 *
+	 * @param secret file of the shared secret, as used by the daemon
+	 * @return the exit code, {@code 0} if the command succeeded
+	 * @throws IOException if the daemon can't be reached or the secret can't be read.
+	 */
+	public static int client(int port, Path secret, String... command) throws IOException
+	{
+		if ( command.length==0 ) throw new IllegalArgumentException("no command");
+		final byte[] key = secret(secret, false);
+		final String[] args;
+		if ( "scan".equals(command[0]) || "preview".equals(command[0]) ) {
+			final boolean named = "scan".equals(command[0]) ? command.length==3 || command.length==2 && !command[1].matches("dpi\\d+") : command.length>1;
+			args = Arrays.copyOf(command, named ? command.length : command.length + 1);
+			if ( !named ) args[args.length - 1] = System.currentTimeMillis() + ("scan".equals(command[0]) ? ".jpg" : ".png");
+			final String name = args[args.length - 1];
+			if ( !"-".equals(name) ) args[args.length - 1] = Paths.get(name).toAbsolutePath().toString();
+		}
+		else {
+			args = command;
+		}
+
+		try ( Socket socket = new Socket(InetAddress.getLoopbackAddress(), port) ) {
+			socket.setTcpNoDelay(true);
+			socket.getOutputStream().write(key);
+			socket.getOutputStream().write(("\n" + String.join("\t", args) + "\n").getBytes(StandardCharsets.UTF_8));
+			socket.getOutputStream().flush();
+			final InputStream in = new BufferedInputStream(socket.getInputStream(), 65536);
+			final byte[] buffer = new byte[65536];
+			boolean data = false;
+			for ( String line = readLine(in); line!=null; line = readLine(in) ) {
+				if ( line.startsWith("DATA ") ) {
+					data = true;
+					for ( int n = Integer.parseInt(line.substring(5)), r; n>0; n -= r ) {
+						if ( (r = in.read(buffer, 0, Math.min(n, buffer.length)))<0 ) throw new EOFException("Truncated data");
+						System.out.write(buffer, 0, r);
+					}
+					continue;
+				}
+				System.out.flush();
+				final boolean ok = line.startsWith("OK ");
+				final PrintStream print = ok && !data ? System.out : System.err;
+				print.println(line.substring(line.indexOf(' ') + 1));
+				return ok ? 0 : -1;
+			}
+			System.err.println("Connection closed by daemon");
+			return -1;
+		}
+	}
+
+
+	/**
+	 * Reads the shared secret, creating the file with a random one if requested and it doesn't exist.
+	 *
+	 * @throws IOException if the file can't be read or created, group or others have any permission, or the secret is too short.
+	 */
+	private static byte[] secret(Path file, boolean create) throws IOException
+	{
+		final boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+		if ( create && !Files.exists(file) ) {
+			final byte[] random = new byte[32];
+			new SecureRandom().nextBytes(random);
+			final StringBuilder hex = new StringBuilder(2 * random.length);
+			for ( byte b : random ) hex.append(Character.forDigit(b >> 4 & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			if ( posix ) Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+			else Files.createFile(file);
+			Files.write(file, (hex + "\n").getBytes(StandardCharsets.US_ASCII));
+			log.info("created daemon secret " + file);
+		}
+		if ( posix ) {
+			final Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(file);
+			permissions.remove(PosixFilePermission.OWNER_READ);
+			permissions.remove(PosixFilePermission.OWNER_WRITE);
+			if ( !permissions.isEmpty() ) throw new IOException(file + " must be accessible by its owner only, e.g. chmod 600");
+		}
+		final String secret = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+		if ( secret.length()<16 ) throw new IOException(file + ": secret too short");
+		return secret.getBytes(StandardCharsets.UTF_8);
+	}
+
+
+	/**
+	 * Reads an UTF-8 line ending with LF, without the line end, or {@code null} at the end of the stream.
+	 */
+	private static String readLine(InputStream in) throws IOException
+	{
+		final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+		for ( int b = in.read(); b!='\n'; b = in.read() ) {
+			if ( b<0 ) return line.size()==0 ? null : line.toString("UTF-8");
+			if ( line.size()>=65536 ) throw new IOException("Line too long");
+			if ( b!='\r' ) line.write(b);
+		}
+		return line.toString("UTF-8");
+	}
+}
@@ -0,0 +1,276 @@
+/* This file is licensed under Creative Commons License CC-CC0 1.0 (http://creativecommons.org/publicdomain/zero/1.0/).
+ *
+ * Created 2026-10-18 by bastel.
+ */
+
+package hwfs400w;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Estimates the skew of a page by projection profiles while its rows arrive, from the RGB preview as {@link ScanDataReceiver},
+ * or from gray stripes as {@link StripeConsumer}, downsampled to about 75 dpi.
+ * <p>
+ * Dark pixels are projected along lines of each candidate angle, the angle whose profile has the largest sum of squares,
+ * i.e. the sharpest text lines, wins. Profiles are kept in a ring reaching just over the slope of the steepest angle,
+ * and the sums of squares are updated per pixel, so memory is bounded by the width and the estimate is available at any time.
+ * The dark threshold is {@link PreviewKernels#otsu Otsu's} of the rows seen so far.
+ * <p>
+ * Pixels are assumed to be square. A positive angle means lines descending to the right, see {@link Deskewer}.
+ *
+ * @author bastel
+ * @since 2026-10-18
+ */
+public class SkewEstimator implements ScanDataReceiver, StripeConsumer
+{
+	/** Resolution the stripes are downsampled to. */
+	private final static int DPI = 75;
+
+	/** Minimum number of dark pixels for an estimate. */
+	private final static int MIN_DARK = 500;
+
+	/** Minimum difference of the class means for the threshold to separate ink from paper. */
+	private final static int MIN_CONTRAST = 48;
+
+	private final double _max, _step;
+	private final int _angles;
+	private int _width;
+
+	/** Shift of column {@code x} for angle {@code a} at {@code [a * _width + x]}, {@code round(x * tan(angle))} plus the reach. */
+	private int[] _shift;
+
+	/** Profiles of all angles, ring of {@code _ring} bins each. */
+	private int[] _bins;
+	private int _ring;
+	private long[] _squares;
+
+	/** Current row. */
+	private int _y;
+	private long _dark;
+
+	private final int[] _histogram = new int[256];
+	private int _threshold = -1;
+
+	/** Rows not yet projected. */
+	private byte[] _gray = new byte[0];
+	private int _rows;
+
+	/** Preview: partial RGB line. Stripes: downsampling factor and column sums. */
+	private final byte[] _line = new byte[PreviewKernels.LINE_BYTES];
+	private int _linePos;
+	private int _factor, _sourceWidth, _summed;
+	private int[] _sums;
+
+	private long _nanos;
+
+
+	/**
+	 * Creates an estimator for angles up to 5 degrees in steps of 0.1 degrees.
+	 */
+	public SkewEstimator()
+	{
+		this(5, 0.1);
+	}
+
+
+	/**
+	 * Creates an estimator for angles up to {@code max} degrees in {@code step} degrees.
+	 */
+	public SkewEstimator(double max, double step)
+	{
+		if ( !(max>0 && max<45 && step>0 && step<=max) ) throw new IllegalArgumentException("max=" + max + ", step=" + step);
+		_max = max;
+		_step = step;
+		_angles = 2 * (int)Math.round(max / step) + 1;
+	}
+
+
+	@Override
+	public void open(long length) throws IOException
+	{
+		init(PreviewKernels.WIDTH);
+		_linePos = 0;
+	}
+
+
+	@Override
+	public void write(byte[] array, int offset, int length) throws IOException
+	{
+		final long start = System.nanoTime();
+		while ( length>0 ) {
+			final int n = Math.min(length, _line.length - _linePos);
+			System.arraycopy(array, offset, _line, _linePos, n);
+			_linePos += n;
+			offset += n;
+			length -= n;
+			if ( _linePos==_line.length ) {
+				PreviewKernels.luma(_line, 0, buffer(), _rows++ * _width, _width);
+				_linePos = 0;
+			}
+		}
+		project();
+		_nanos += System.nanoTime() - start;
+	}
+
+
+	@Override
+	public void close() throws IOException
+	{
+	}
+
+
+	@Override
+	public void begin(int width, int height, int dpi) throws IOException
+	{
+		_factor = Math.max(1, Math.round((dpi>0 ? dpi : 300) / (float)DPI));
+		_sourceWidth = width;
+		_sums = new int[width / _factor];
+		_summed = 0;
+		init(width / _factor);
+	}
+
+
+	@Override
+	public void stripe(byte[] pixels, int offset, int y, int rows) throws IOException
+	{
+		final long start = System.nanoTime();
+		for ( int r = 0; r<rows; r++ ) {
+			final int src = offset + r * _sourceWidth;
+			for ( int x = 0, s = src; x<_width; x++ ) {
+				int sum = 0;
+				for ( int i = 0; i<_factor; i++ ) sum += pixels[s++] & 0xff;
+				_sums[x] += sum;
+			}
+			if ( ++_summed==_factor ) {
+				final byte[] gray = buffer();
+				final int dst = _rows++ * _width, area = _factor * _factor;
+				for ( int x = 0; x<_width; x++ ) gray[dst + x] = (byte)(_sums[x] / area);
+				Arrays.fill(_sums, 0);
+				_summed = 0;
+			}
+		}
+		project();
+		_nanos += System.nanoTime() - start;
+	}
+
+
+	@Override
+	public void end() throws IOException
+	{
+	}
+
+
+	/**
+	 * Returns the estimated skew in degrees, or {@link Double#NaN} if there weren't enough dark pixels.
+	 */
+	public double getAngle()
+	{
+		if ( _dark<MIN_DARK ) return Double.NaN;
+		int best = 0;
+		for ( int a = 1; a<_angles; a++ ) if ( _squares[a]>_squares[best] ) best = a;
+		double offset = 0;
+		if ( best>0 && best<_angles - 1 ) {
+			// vertex of the parabola through the neighbours
+			final double l = _squares[best - 1], c = _squares[best], r = _squares[best + 1], d = l - 2 * c + r;
+			if ( d<0 ) offset = 0.5 * (l - r) / d;
+		}
+		return (best - _angles / 2 + offset) * _step;
+	}
+
+
+	/**
+	 * Returns the number of rows projected.
+	 */
+	public int getRows()
+	{
+		return _y;
+	}
+
+
+	/**
+	 * Returns the time spent estimating in milliseconds.
+	 */
+	public long getMillis()
+	{
+		return _nanos / 1000000L;
+	}
+
+
+	private void init(int width)
+	{
+		_width = width;
+		final int reach = (int)Math.ceil(width * Math.tan(Math.toRadians(_max))) + 1;
+		_shift = new int[_angles * width];
+		for ( int a = 0; a<_angles; a++ ) {
+			final double tan = Math.tan(Math.toRadians((a - _angles / 2) * _step));
+			for ( int x = 0; x<width; x++ ) _shift[a * width + x] = reach - (int)Math.round(x * tan);
+		}
+		// bins of row y are [y, y + 2 * reach], the oldest is done when the newest is cleared
+		_ring = 2 * reach + 2;
+		_bins = new int[_angles * _ring];
+		_squares = new long[_angles];
+		_y = _rows = 0;
+		_dark = 0;
+		_threshold = -1;
+		Arrays.fill(_histogram, 0);
+	}
+
+
+	/**
+	 * Returns the row buffer with space for another row.
+	 */
+	private byte[] buffer()
+	{
+		if ( (_rows + 1) * _width>_gray.length ) _gray = Arrays.copyOf(_gray, Math.max((_rows + 1) * _width, 64 * _width));
+		return _gray;
+	}
+
+
+	/**
+	 * Projects the buffered rows.
+	 */
+	private void project()
+	{
+		if ( _rows==0 ) return;
+		PreviewKernels.histogram(_gray, 0, _rows * _width, _histogram);
+		_threshold = threshold();
+		final int reach = (_ring - 2) / 2;
+		for ( int r = 0; r<_rows; r++, _y++ ) {
+			final int row = r * _width;
+			final int clear = (_y + 2 * reach) % _ring;
+			for ( int a = 0; a<_angles; a++ ) _bins[a * _ring + clear] = 0;
+			if ( _threshold<0 ) continue;
+			for ( int x = 0; x<_width; x++ ) {
+				if ( (_gray[row + x] & 0xff)>=_threshold ) continue;
+				_dark++;
+				for ( int a = 0, s = x; a<_angles; a++, s += _width ) {
+					final int bin = a * _ring + (_y + _shift[s]) % _ring;
+					_squares[a] += 2 * _bins[bin] + 1;
+					_bins[bin]++;
+				}
+			}
+		}
+		_rows = 0;
+	}
+
+
+	/**
+	 * Returns Otsu's threshold of the rows seen so far, or {@code -1} if it doesn't separate ink from paper (yet).
+	 */
+	private int threshold()
+	{
+		final int t = PreviewKernels.otsu(_histogram);
+		long n0 = 0, s0 = 0, n1 = 0, s1 = 0;
+		for ( int i = 0; i<256; i++ ) {
+			if ( i<t ) {
+				n0 += _histogram[i];
+				s0 += (long)i * _histogram[i];
+			} else {
+				n1 += _histogram[i];
+				s1 += (long)i * _histogram[i];
+			}
+		}
+		return n0==0 || n1==0 || s1 / n1 - s0 / n0<MIN_CONTRAST ? -1 : t;
+	}
+}
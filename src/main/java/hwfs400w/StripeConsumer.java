@@ -0,0 +1,41 @@
+/* This file is licensed under Creative Commons License CC-CC0 1.0 (http://creativecommons.org/publicdomain/zero/1.0/).
+ *
+ * Created 2026-10-18 by bastel.
+ */
+
+package hwfs400w;
+
+import java.io.IOException;
+
+/**
+ * Receives an image as consecutive horizontal stripes of one byte per pixel,
+ * so that the whole raster never needs to be kept in memory.
+ * Gray stripes hold values 0 (black) to 255 (white), bitonal stripes 1 (black) and 0 (white).
+ *
+ * @author bastel
+ * @since 2026-10-18
+ */
+public interface StripeConsumer
+{
+	/**
+	 * Notifies of the image size, called once before the first stripe.
+	 *
+	 * @param dpi resolution, {@code 0} if unknown
+	 */
+	void begin(int width, int height, int dpi) throws IOException;
+
+
+	/**
+	 * Receives the next stripe, rows of {@code width} bytes each.
+	 * The array is only valid during the call.
+	 *
+	 * @param y first row of the stripe
+	 */
+	void stripe(byte[] pixels, int offset, int y, int rows) throws IOException;
+
+
+	/**
+	 * Notifies that all rows have been delivered.
+	 */
+	void end() throws IOException;
+}
@@ -0,0 +1,304 @@
+/* This file is licensed under Creative Commons License CC-CC0 1.0 (http://creativecommons.org/publicdomain/zero/1.0/).
+ *
+ * Created 2026-10-18 by bastel.
+ */
+
+package hwfs400w;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the history of battery levels, status transitions and scan durations in memory.
+ * <p>
+ * Battery levels (centivolts, see {@link S400WInfo#getBatteryVoltage()}) and scan durations (milliseconds) are kept
+ * in fixed size rings of primitive arrays, as raw samples and downsampled to minute and hour buckets with minimum, maximum,
+ * sum and count. Status changes are kept as transitions. Memory use is constant, recording doesn't allocate.
+ * <p>
+ * Samples come from the requests that read them anyway, e.g. {@code /info}, and from an optional sampler,
+ * see {@link #startSampler(S400WSettings, Duration)}.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author bastel
+ * @since 2026-10-18
+ */
+public class Telemetry
+{
+	private final static Logger log = Logger.getLogger(Telemetry.class.getName());
+
+	/** Resolutions of the series, finest first. */
+	private enum Resolution
+	{
+		RAW(0), MINUTE(60000), HOUR(3600000);
+
+		private final long _millis;
+
+		Resolution(long millis)
+		{
+			_millis = millis;
+		}
+	}
+
+	/** Status responses with their own code, {@link #STATUSES}{@code .length} is used for any other. */
+	private final static S400WResponse[] STATUSES = { S400WResponse.EOF, S400WResponse.EMPTY, S400WResponse.SCAN_READY,
+		S400WResponse.NOPAPER, S400WResponse.BATTERY_LOW, S400WResponse.SCAN_GO, S400WResponse.CALIBRATE_GO, S400WResponse.CLEAN_GO };
+
+	private final Series[] _battery = new Series[Resolution.values().length];
+	private final Series[] _scans = new Series[Resolution.values().length];
+
+	/** Ring of status transitions. */
+	private final long[] _statusTime;
+	private final byte[] _status;
+	private int _statusHead = -1;
+	private int _statusCount;
+
+	private ScheduledExecutorService _sampler;
+
+
+	/**
+	 * Creates a new store keeping 1500 raw samples and minute buckets (a day and some) and 744 hour buckets (a month) per series.
+	 */
+	public Telemetry()
+	{
+		this(1500, 1500, 744);
+	}
+
+
+	/**
+	 * Creates a new store with the given number of samples and buckets per series, and of status transitions (raw).
+	 */
+	public Telemetry(int raw, int minutes, int hours)
+	{
+		final int[] capacity = { raw, minutes, hours };
+		for ( Resolution r : Resolution.values() ) {
+			if ( capacity[r.ordinal()]<1 ) throw new IllegalArgumentException(r + " capacity " + capacity[r.ordinal()]);
+			_battery[r.ordinal()] = new Series(r, capacity[r.ordinal()]);
+			_scans[r.ordinal()] = new Series(r, capacity[r.ordinal()]);
+		}
+		_statusTime = new long[raw];
+		_status = new byte[raw];
+	}
+
+
+	/**
+	 * Records a battery level in centivolts.
+	 */
+	public synchronized void recordBattery(long time, int level)
+	{
+		for ( Series s : _battery ) s.add(time, level);
+	}
+
+
+	/**
+	 * Records the duration of a successful scan, at the time it finished.
+	 */
+	public synchronized void recordScan(long time, long millis)
+	{
+		for ( Series s : _scans ) s.add(time, (int)Math.min(millis, Integer.MAX_VALUE));
+	}
+
+
+	/**
+	 * Records a status response, if it differs from the last one.
+	 * {@link S400WResponse#DEVICE_BUSY} isn't a device status and ignored.
+	 */
+	public synchronized void recordStatus(long time, S400WResponse status)
+	{
+		if ( status==S400WResponse.DEVICE_BUSY ) return;
+		byte code = (byte)STATUSES.length;
+		for ( int i = 0; i<STATUSES.length; i++ ) if ( STATUSES[i]==status ) code = (byte)i;
+		if ( _statusCount>0 && _status[_statusHead]==code ) return;
+		_statusHead = (_statusHead + 1) % _status.length;
+		_statusTime[_statusHead] = time;
+		_status[_statusHead] = code;
+		if ( _statusCount<_status.length ) _statusCount++;
+	}
+
+
+	/**
+	 * Records status and battery level of the given info, as far as available.
+	 */
+	public void record(S400WInfo info)
+	{
+		recordStatus(info.getStatus().getTime(), info.getStatus().getResponse());
+		if ( info.getBatteryLevel()>=0 ) recordBattery(info.getBattery().getTime(), info.getBatteryLevel());
+	}
+
+
+	/**
+	 * Records a battery state response, if it could be parsed.
+	 */
+	public void recordBattery(long time, S400WResponse battery)
+	{
+		final int level = S400WInfo.parseBatteryLevel(battery);
+		if ( level>=0 ) recordBattery(time, level);
+	}
+
+
+	/**
+	 * Starts reading {@link S400W#getInfo()} in the given interval, replacing a running sampler.
+	 * Every sample takes a short {@link DeviceLease}, a sample that can't get it in time is skipped.
+	 */
+	public synchronized Telemetry startSampler(S400WSettings settings, Duration interval)
+	{
+		stopSampler();
+		final S400WSettings sampled = settings.clone();
+		_sampler = new ScheduledThreadPoolExecutor(1, Threads.factory("s400w-telemetry-"));
+		_sampler.scheduleWithFixedDelay(() -> sample(sampled), 0, interval.toMillis(), TimeUnit.MILLISECONDS);
+		log.info("sampling " + settings.host + ":" + settings.port + " every " + interval);
+		return this;
+	}
+
+
+	/**
+	 * Stops the sampler, if running, a running sample is finished.
+	 */
+	public synchronized void stopSampler()
+	{
+		if ( _sampler!=null ) _sampler.shutdown();
+		_sampler = null;
+	}
+
+
+	private void sample(S400WSettings settings)
+	{
+		try {
+			record(new S400W(settings).getInfo());
+		} catch (IOException | RuntimeException e) {
+			log.log(Level.FINE, "sample()", e);
+		}
+	}
+
+
+	/**
+	 * Appends the history of the given range before {@code now} as JSON object.
+	 * Each series uses the finest resolution still covering the range, its points are
+	 * {@code [time, min, avg, max, count]} with times in epoch milliseconds, status transitions are {@code [time, status]}.
+	 */
+	public synchronized StringBuilder appendJson(StringBuilder json, long now, Duration range)
+	{
+		final long from = now - range.toMillis();
+		json.append("{\"now\":").append(now).append(",\"range\":").append(range.toMillis());
+		json.append(",\"battery\":");
+		finest(_battery, from).appendJson(json, from, "centivolts");
+		json.append(",\"scans\":");
+		finest(_scans, from).appendJson(json, from, "ms");
+		json.append(",\"status\":[");
+		boolean first = true;
+		for ( int i = _statusCount - 1; i>=0; i-- ) {
+			final int idx = (_statusHead - i + _status.length) % _status.length;
+			// the status at the start of the range is the last transition before it
+			if ( _statusTime[idx]<from && i>0 && _statusTime[(idx + 1) % _status.length]<from ) continue;
+			if ( !first ) json.append(',');
+			first = false;
+			json.append('[').append(_statusTime[idx]).append(',').append(S400WService.quote(status(_status[idx]))).append(']');
+		}
+		return json.append("]}");
+	}
+
+
+	private static String status(byte code)
+	{
+		if ( code>=STATUSES.length ) return "other";
+		final S400WResponse r = STATUSES[code];
+		return r.isEOF() ? "eof" : r.isEmpty() ? "timeout" : r.toString();
+	}
+
+
+	private static Series finest(Series[] series, long from)
+	{
+		for ( Series s : series ) if ( s.covers(from) ) return s;
+		return series[series.length - 1];
+	}
+
+
+	/**
+	 * Parses a range like {@code 90} (seconds), {@code 30m}, {@code 24h} or {@code 7d}.
+	 *
+	 * @throws IllegalArgumentException if the range is invalid.
+	 */
+	public static Duration parseRange(String range)
+	{
+		if ( !range.matches("\\d{1,9}[smhd]?") ) throw new IllegalArgumentException("range=" + range);
+		final char unit = range.charAt(range.length() - 1);
+		final long n = Long.parseLong(Character.isDigit(unit) ? range : range.substring(0, range.length() - 1));
+		return unit=='d' ? Duration.ofDays(n) : unit=='h' ? Duration.ofHours(n) : unit=='m' ? Duration.ofMinutes(n) : Duration.ofSeconds(n);
+	}
+
+
+	/**
+	 * A ring of samples or time buckets, the newest at {@code _head}.
+	 */
+	private final static class Series
+	{
+		private final Resolution _resolution;
+		private final long[] _time;
+		private final int[] _min, _max, _count;
+		private final long[] _sum;
+		private int _head = -1;
+		private int _size;
+
+
+		Series(Resolution resolution, int capacity)
+		{
+			_resolution = resolution;
+			_time = new long[capacity];
+			_min = new int[capacity];
+			_max = new int[capacity];
+			_count = new int[capacity];
+			_sum = new long[capacity];
+		}
+
+
+		void add(long time, int value)
+		{
+			final long start = _resolution==Resolution.RAW ? time : time - Math.floorMod(time, _resolution._millis);
+			if ( _size>0 && _resolution!=Resolution.RAW && _time[_head]==start ) {
+				if ( value<_min[_head] ) _min[_head] = value;
+				if ( value>_max[_head] ) _max[_head] = value;
+				_sum[_head] += value;
+				_count[_head]++;
+				return;
+			}
+			_head = (_head + 1) % _time.length;
+			_time[_head] = start;
+			_min[_head] = _max[_head] = value;
+			_sum[_head] = value;
+			_count[_head] = 1;
+			if ( _size<_time.length ) _size++;
+		}
+
+
+		/**
+		 * Returns {@code true} if nothing since {@code from} has been overwritten.
+		 */
+		boolean covers(long from)
+		{
+			return _size<_time.length || _time[(_head + 1) % _time.length]<=from;
+		}
+
+
+		void appendJson(StringBuilder json, long from, String unit)
+		{
+			json.append("{\"resolution\":\"").append(_resolution.name().toLowerCase(Locale.ROOT)).append("\",\"unit\":\"").append(unit).append("\",\"points\":[");
+			boolean first = true;
+			for ( int i = _size - 1; i>=0; i-- ) {
+				final int idx = (_head - i + _time.length) % _time.length;
+				// samples since from, buckets ending after it
+				if ( _resolution==Resolution.RAW ? _time[idx]<from : _time[idx] + _resolution._millis<=from ) continue;
+				if ( !first ) json.append(',');
+				first = false;
+				json.append('[').append(_time[idx]).append(',').append(_min[idx]).append(',').append(_sum[idx] / _count[idx])
+					.append(',').append(_max[idx]).append(',').append(_count[idx]).append(']');
+			}
+			json.append("]}");
+		}
+	}
+}
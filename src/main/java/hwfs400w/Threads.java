@@ -0,0 +1,158 @@
+/* This file is licensed under Creative Commons License CC-CC0 1.0 (http://creativecommons.org/publicdomain/zero/1.0/).
+ *
+ * Created 2026-10-18 by bastel.
+ */
+
+package hwfs400w;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Threads for blocking scanner I/O, virtual threads if the JVM supports them (Java 21+), daemon platform threads otherwise.
+ * <p>
+ * Scanner operations mostly sleep or wait for the device, so on a virtual thread they don't occupy
+ * a carrier thread meanwhile. {@link S400W} therefore reads the device with blocking socket timeouts on a virtual
+ * thread instead of a {@link java.nio.channels.Selector}, which would pin the carrier thread while it waits.
+ * The virtual thread API is used by reflection, so the library still builds
+ * and runs unchanged on Java 8. Virtual threads can be disabled with the system property
+ * {@code hwfs400w.Threads.virtual=false}.
+ *
+ * @author bastel
+ * @since 2026-10-18
+ */
+public final class Threads
+{
+	private final static Logger log = Logger.getLogger(Threads.class.getName());
+
+	/** System property to disable virtual threads. */
+	public final static String PROPERTY_KEY = "hwfs400w.Threads.virtual";
+
+	/** {@code Thread.ofVirtual()}, {@code null} if not available or disabled. */
+	private final static Method OF_VIRTUAL;
+
+	/** {@code Thread.Builder.name(String, long)} */
+	private final static Method NAME;
+
+	/** {@code Thread.Builder.factory()} */
+	private final static Method FACTORY;
+
+	/** {@code Executors.newThreadPerTaskExecutor(ThreadFactory)} */
+	private final static Method PER_TASK;
+
+	/** {@code Thread.isVirtual()}, {@code null} if not available. */
+	private final static Method IS_VIRTUAL;
+
+	static {
+		Method ofVirtual = null, name = null, factory = null, perTask = null;
+		if ( !"false".equals(System.getProperty(PROPERTY_KEY)) ) {
+			try {
+				final Class<?> builder = Class.forName("java.lang.Thread$Builder");
+				ofVirtual = Thread.class.getMethod("ofVirtual");
+				name = builder.getMethod("name", String.class, long.class);
+				factory = builder.getMethod("factory");
+				perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+				// fails if virtual threads are a preview feature that isn't enabled
+				factory.invoke(ofVirtual.invoke(null));
+			} catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+				if ( log.isLoggable(Level.FINE) ) log.fine("virtual threads not available: " + e);
+				ofVirtual = null;
+			}
+		}
+		OF_VIRTUAL = ofVirtual;
+		NAME = name;
+		FACTORY = factory;
+		PER_TASK = perTask;
+
+		Method isVirtual = null;
+		try {
+			isVirtual = Thread.class.getMethod("isVirtual");
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// older jvm, no virtual threads at all
+		}
+		IS_VIRTUAL = isVirtual;
+	}
+
+
+	private Threads()
+	{
+	}
+
+
+	/**
+	 * Returns whether virtual threads are used.
+	 */
+	public static boolean isVirtual()
+	{
+		return OF_VIRTUAL!=null;
+	}
+
+
+	/**
+	 * Returns whether the current thread is a virtual thread, regardless of who started it.
+	 */
+	public static boolean isVirtualThread()
+	{
+		if ( IS_VIRTUAL==null ) return false;
+		try {
+			return (Boolean)IS_VIRTUAL.invoke(Thread.currentThread());
+		} catch (ReflectiveOperationException e) {
+			return false;
+		}
+	}
+
+
+	/**
+	 * Returns a factory of threads named {@code prefix} and a counter, virtual or daemon platform threads.
+	 */
+	public static ThreadFactory factory(String prefix)
+	{
+		if ( OF_VIRTUAL!=null ) {
+			try {
+				return (ThreadFactory)FACTORY.invoke(NAME.invoke(OF_VIRTUAL.invoke(null), prefix, 1L));
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		final AtomicInteger count = new AtomicInteger();
+		return r -> {
+			Thread t = new Thread(r, prefix + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+
+
+	/**
+	 * Returns an executor for blocking tasks, starting a virtual thread per task,
+	 * or a cached pool of daemon platform threads.
+	 */
+	public static ExecutorService executor(String prefix)
+	{
+		final ThreadFactory factory = factory(prefix);
+		if ( OF_VIRTUAL!=null ) {
+			try {
+				return (ExecutorService)PER_TASK.invoke(null, factory);
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		return Executors.newCachedThreadPool(factory);
+	}
+
+
+	/**
+	 * Creates an unstarted thread for a blocking task, virtual or a daemon platform thread.
+	 */
+	public static Thread newThread(String name, Runnable task)
+	{
+		final Thread t = factory(name).newThread(task);
+		t.setName(name);
+		return t;
+	}
+}
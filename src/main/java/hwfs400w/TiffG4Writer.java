@@ -0,0 +1,126 @@
+/* This file is licensed under Creative Commons License CC-CC0 1.0 (http://creativecommons.org/publicdomain/zero/1.0/).
+ *
+ * Created 2026-10-18 by bastel.
+ */
+
+package hwfs400w;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Encodes bitonal stripes as a single strip CCITT Group 4 TIFF.
+ * <p>
+ * Only the compressed data is kept in memory, typically a few percent of the raster,
+ * since the TIFF header needs its size. The file is written by {@link #writeTo(OutputStream)} after {@link #end()}.
+ *
+ * @author bastel
+ * @since 2026-10-18
+ */
+public class TiffG4Writer implements StripeConsumer
+{
+	/** Number of IFD entries. */
+	private final static int ENTRIES = 13;
+
+	/** Offset of the resolution values, behind the IFD. */
+	private final static int RESOLUTION = 8 + 2 + ENTRIES * 12 + 4;
+
+	/** Offset of the image data. */
+	private final static int DATA = RESOLUTION + 16;
+
+	private final ByteArrayOutputStream _data = new ByteArrayOutputStream(65536);
+	private G4Encoder _encoder;
+	private int _width, _height, _dpi;
+	private boolean _done;
+
+
+	/**
+	 * Converts a jpeg into a Group 4 TIFF, decoding in parallel on the common pool if the jpeg has restart markers.
+	 *
+	 * @param dpi resolution, {@code 0} to use the JFIF density
+	 * @throws IOException if the jpeg can't be read or isn't supported.
+	 */
+	public static TiffG4Writer convert(InputStream jpeg, int dpi) throws IOException
+	{
+		final TiffG4Writer tiff = new TiffG4Writer();
+		new JpegStripeDecoder(jpeg, dpi).decode(new Binarizer(tiff), ForkJoinPool.commonPool());
+		return tiff;
+	}
+
+
+	@Override
+	public void begin(int width, int height, int dpi) throws IOException
+	{
+		_width = width;
+		_height = height;
+		_dpi = dpi>0 ? dpi : 300;
+		_encoder = new G4Encoder(_data, width);
+	}
+
+
+	@Override
+	public void stripe(byte[] pixels, int offset, int y, int rows) throws IOException
+	{
+		for ( int r = 0; r<rows; r++ ) _encoder.encode(pixels, offset + r * _width);
+	}
+
+
+	@Override
+	public void end() throws IOException
+	{
+		_encoder.finish();
+		_done = true;
+	}
+
+
+	/**
+	 * Returns the size of the TIFF file.
+	 */
+	public long length()
+	{
+		if ( !_done ) throw new IllegalStateException("Not complete");
+		return DATA + _data.size();
+	}
+
+
+	/**
+	 * Writes the TIFF file.
+	 */
+	public void writeTo(OutputStream out) throws IOException
+	{
+		if ( !_done ) throw new IllegalStateException("Not complete");
+		final ByteBuffer header = ByteBuffer.allocate(DATA).order(ByteOrder.LITTLE_ENDIAN);
+		header.put((byte)'I').put((byte)'I').putShort((short)42).putInt(8);
+		header.putShort((short)ENTRIES);
+		entry(header, 256, 4, _width);                // ImageWidth
+		entry(header, 257, 4, _height);               // ImageLength
+		entry(header, 258, 3, 1);                     // BitsPerSample
+		entry(header, 259, 3, 4);                     // Compression: CCITT T.6
+		entry(header, 262, 3, 0);                     // PhotometricInterpretation: WhiteIsZero
+		entry(header, 273, 4, DATA);                  // StripOffsets
+		entry(header, 277, 3, 1);                     // SamplesPerPixel
+		entry(header, 278, 4, _height);               // RowsPerStrip
+		entry(header, 279, 4, _data.size());          // StripByteCounts
+		entry(header, 282, 5, RESOLUTION);            // XResolution
+		entry(header, 283, 5, RESOLUTION + 8);        // YResolution
+		entry(header, 293, 4, 0);                     // T6Options
+		entry(header, 296, 3, 2);                     // ResolutionUnit: inch
+		header.putInt(0);
+		header.putInt(_dpi).putInt(1).putInt(_dpi).putInt(1);
+		out.write(header.array());
+		_data.writeTo(out);
+	}
+
+
+	private static void entry(ByteBuffer buf, int tag, int type, int value)
+	{
+		buf.putShort((short)tag).putShort((short)type).putInt(1);
+		if ( type==3 ) buf.putShort((short)value).putShort((short)0);
+		else buf.putInt(value);
+	}
+}
@@ -0,0 +1,147 @@
+/* This file is licensed under Creative Commons License CC-CC0 1.0 (http://creativecommons.org/publicdomain/zero/1.0/).
+ *
+ * Created 2026-10-18 by bastel.
+ */
+
+package hwfs400w;
+
+import java.time.Duration;
+
+/**
+ * Tracks a data transfer for progress notifications and stall detection.
+ * <p>
+ * Only time spent waiting for the socket is taken into account, time spent in
+ * {@link ScanDataReceiver}s is not, so slow consumers are not mistaken for a stalled link.
+ * Throughput is measured over a sliding window of that receive time.
+ *
+ * @author bastel
+ * @since 2026-10-18
+ */
+final class TransferMonitor
+{
+	/** Number of samples kept, samples closer together than {@code window / SAMPLES} are merged to cover the window. */
+	private final static int SAMPLES = 1024;
+
+	private final ScanProgress.Phase _phase;
+	private final long _expected;
+	private final long _window;
+	private final long _merge;
+	private final long _floor;
+	private final ScanProgressListener _listener;
+
+	/** Sample ring: receive clock in nanos and total bytes at that time. */
+	private final long[] _clock = new long[SAMPLES];
+	private final long[] _total = new long[SAMPLES];
+	private int _first, _count;
+
+	/** Accumulated receive time in nanos. */
+	private long _now;
+	private long _bytes;
+	private long _started;
+	private long _maxWait;
+
+
+	/**
+	 * @param phase transfer phase
+	 * @param expected expected number of bytes, {@code -1} if unknown
+	 * @param settings settings providing {@link S400WSettings#throughputWindow} and {@link S400WSettings#minThroughput}
+	 * @param listener progress listener, or {@code null}
+	 */
+	TransferMonitor(ScanProgress.Phase phase, long expected, S400WSettings settings, ScanProgressListener listener)
+	{
+		_phase = phase;
+		_expected = expected;
+		_window = settings.throughputWindow.toNanos();
+		// window / SAMPLES, with room for the sample before the window and the unmerged newest one
+		_merge = _window / (SAMPLES - 3);
+		_floor = settings.minThroughput;
+		_listener = listener;
+		add(0, 0);
+	}
+
+
+	/**
+	 * Marks the start of a receive call.
+	 */
+	void begin()
+	{
+		_started = System.nanoTime();
+	}
+
+
+	/**
+	 * Marks the end of a receive call.
+	 *
+	 * @param read number of bytes received, may be {@code 0} or negative
+	 */
+	void end(int read)
+	{
+		final long wait = System.nanoTime() - _started;
+		_now += wait;
+		_maxWait = Math.max(_maxWait, wait);
+		if ( read>0 ) _bytes += read;
+		add(_now, _bytes);
+		while ( _count>2 && _clock[(_first + 1) % SAMPLES]<=_now - _window ) {
+			_first = (_first + 1) % SAMPLES;
+			_count--;
+		}
+		if ( read>0 && _listener!=null ) _listener.progress(new ScanProgress(_phase, _bytes, _expected, throughput()));
+	}
+
+
+	/**
+	 * Returns the throughput in bytes per second over the last window.
+	 */
+	long throughput()
+	{
+		long nanos = _now - _clock[_first];
+		return nanos<=0 ? 0 : (_bytes - _total[_first]) * 1000000000L / nanos;
+	}
+
+
+	/**
+	 * Returns {@code true} if a full window has been observed and its throughput is below the floor.
+	 */
+	boolean isStalled()
+	{
+		return _floor>0 && _window>0 && _now - _clock[_first]>=_window && throughput()<_floor;
+	}
+
+
+	/**
+	 * Returns the longest single receive call.
+	 */
+	Duration maxWait()
+	{
+		return Duration.ofNanos(_maxWait);
+	}
+
+
+	/**
+	 * Returns the number of bytes received.
+	 */
+	long bytes()
+	{
+		return _bytes;
+	}
+
+
+	private void add(long clock, long total)
+	{
+		// replace the newest sample while it is close to the one before, so expired samples make room first
+		if ( _count>1 && clock - _clock[(_first + _count - 2) % SAMPLES]<_merge ) {
+			final int idx = (_first + _count - 1) % SAMPLES;
+			_clock[idx] = clock;
+			_total[idx] = total;
+			return;
+		}
+		if ( _count==SAMPLES ) {
+			_first = (_first + 1) % SAMPLES;
+			_count--;
+		}
+		int idx = (_first + _count) % SAMPLES;
+		_clock[idx] = clock;
+		_total[idx] = total;
+		_count++;
+	}
+}